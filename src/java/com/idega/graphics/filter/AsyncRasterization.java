@@ -0,0 +1,230 @@
+package com.idega.graphics.filter;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.idega.graphics.util.DaemonThreadFactory;
+
+/**
+ * <p>
+ * Rasterizes for {@link SVGFilter} on its own threads, so the container thread is released while the
+ * image is made. The request is put in asynchronous mode with the Servlet 3.0 <code>AsyncContext</code>,
+ * which is called by reflection as the filter is built against an older servlet API.
+ * </p>
+ * <p>
+ * When the container does not support asynchronous requests (or the filter is not mapped with
+ * <code>async-supported</code>) the caller rasterizes on its own thread. When the pool is full the
+ * rasterization is done on the container thread too. Requests not started within the timeout are
+ * answered with 503, requests still being rasterized at the timeout are completed when the rasterization
+ * finishes, as the response can not be handed back to the container while it is written.
+ * </p>
+ * <p>
+ * A rasterization that writes nothing (e.g. a static file that can not be rasterized from the disk) is
+ * dispatched back to the container with {@link #ATTRIBUTE_DISPATCHED} set, so the filter sends it down
+ * the chain like a synchronous request. This needs the filter mapped for the <code>ASYNC</code> dispatcher.
+ * </p>
+ */
+class AsyncRasterization {
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncRasterization.class.getName());
+
+	private static final String ASYNC_CONTEXT_CLASS = "javax.servlet.AsyncContext";
+	private static final String ASYNC_LISTENER_CLASS = "javax.servlet.AsyncListener";
+
+	/**
+	 * Request attribute of requests dispatched back to the container because the rasterization wrote nothing
+	 */
+	static final String ATTRIBUTE_DISPATCHED = AsyncRasterization.class.getName().concat(".dispatched");
+
+	private static final int PENDING = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+
+	/**
+	 * Writes the response of an asynchronous request
+	 */
+	interface Rasterization {
+
+		/**
+		 * @return <code>false</code> if nothing was written and the request has to be sent down the filter chain
+		 */
+		boolean run() throws IOException;
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final long timeout;
+	private final RasterizationLimiter limiter;
+
+	private Method isAsyncSupported;
+	private Method isAsyncStarted;
+	private Method startAsync;
+	private Method setTimeout;
+	private Method addListener;
+	private Method complete;
+	private Method dispatch;
+	private Class<?> listenerClass;
+
+	/**
+	 * @param threads threads rasterizing
+	 * @param queueSize rasterizations waiting for a thread, more are done on the container threads
+	 * @param timeout milliseconds a request may take after it is released, 0 for the default of the container
+	 * @param limiter tells rejected clients when to try again, may be <code>null</code>
+	 */
+	AsyncRasterization(int threads, int queueSize, long timeout, RasterizationLimiter limiter) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				new DaemonThreadFactory("SVGRasterizer"));
+		this.timeout = timeout;
+		this.limiter = limiter;
+
+		try {
+			ClassLoader loader = ServletRequest.class.getClassLoader();
+			Class<?> contextClass = Class.forName(ASYNC_CONTEXT_CLASS, false, loader);
+			this.listenerClass = Class.forName(ASYNC_LISTENER_CLASS, false, loader);
+			this.isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+			this.isAsyncStarted = ServletRequest.class.getMethod("isAsyncStarted");
+			this.startAsync = ServletRequest.class.getMethod("startAsync", ServletRequest.class, ServletResponse.class);
+			this.setTimeout = contextClass.getMethod("setTimeout", long.class);
+			this.addListener = contextClass.getMethod("addListener", this.listenerClass);
+			this.complete = contextClass.getMethod("complete");
+			this.dispatch = contextClass.getMethod("dispatch");
+		} catch (Exception e) {
+			LOGGER.info("Asynchronous requests are not supported by the servlet API, SVG images are rasterized on the request threads");
+			this.startAsync = null;
+		}
+	}
+
+	/**
+	 * Releases the container thread and runs the rasterization on the pool
+	 * @param rasterization writes the image into the response
+	 * @return <code>false</code> if the request can not be asynchronous, the caller has to run the rasterization itself
+	 */
+	boolean start(final HttpServletRequest request, final HttpServletResponse response, final Rasterization rasterization) {
+		if (this.startAsync == null || !isTrue(this.isAsyncSupported, request) || isTrue(this.isAsyncStarted, request)) {
+			return false;
+		}
+
+		final Object context;
+		try {
+			context = this.startAsync.invoke(request, request, response);
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Unable to start asynchronous request", e);
+			return false;
+		}
+
+		//	The timeout answers requests whose rasterization has not started, the others are completed by the rasterization
+		final AtomicInteger state = new AtomicInteger(PENDING);
+		try {
+			if (this.timeout > 0) {
+				this.setTimeout.invoke(context, Long.valueOf(this.timeout));
+			}
+			this.addListener.invoke(context, Proxy.newProxyInstance(this.listenerClass.getClassLoader(), new Class<?>[] {this.listenerClass},
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if ("onTimeout".equals(method.getName()) || "onError".equals(method.getName())) {
+								if (state.compareAndSet(PENDING, DONE)) {
+									if ("onTimeout".equals(method.getName())) {
+										SVGFilter.rejectRequest(response, AsyncRasterization.this.limiter);
+									}
+									complete(context);
+								}
+								else if (state.get() == RUNNING) {
+									//	The response is still being written, the rasterization completes the request when it finishes
+									LOGGER.fine("Asynchronous request timed out while it is rasterized");
+								}
+							}
+							else if (method.getDeclaringClass() == Object.class) {
+								return method.invoke(this, args);
+							}
+							return null;
+						}
+					}));
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Unable to set up asynchronous request", e);
+		}
+
+		Runnable task = new Runnable() {
+			public void run() {
+				if (!state.compareAndSet(PENDING, RUNNING)) {
+					return;
+				}
+				boolean written = true;
+				try {
+					written = rasterization.run();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Unable to write image", e);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Unable to rasterize SVG", e);
+				} finally {
+					if (state.compareAndSet(RUNNING, DONE)) {
+						if (written) {
+							complete(context);
+						}
+						else {
+							dispatch(request, response, context);
+						}
+					}
+				}
+			}
+		};
+		try {
+			this.executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+		return true;
+	}
+
+	void shutdown() {
+		this.executor.shutdown();
+	}
+
+	private void complete(Object context) {
+		try {
+			this.complete.invoke(context);
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Unable to complete asynchronous request", e);
+		}
+	}
+
+	/**
+	 * Sends the request through the filter chain again, or answers it with 500 if it can not be dispatched
+	 */
+	private void dispatch(HttpServletRequest request, HttpServletResponse response, Object context) {
+		request.setAttribute(ATTRIBUTE_DISPATCHED, Boolean.TRUE);
+		try {
+			this.dispatch.invoke(context);
+			return;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to dispatch asynchronous request", e);
+		}
+		try {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to answer asynchronous request", e);
+		}
+		complete(context);
+	}
+
+	private static boolean isTrue(Method method, ServletRequest request) {
+		try {
+			return Boolean.TRUE.equals(method.invoke(request));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.idega.graphics.filter;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG image row by row, so an image painted in strips is encoded without ever having the whole
+ * raster in memory. Every row is written with the Sub or the Up filter, whichever gives the smaller differences,
+ * 8 bits per channel, RGBA or RGB.
+ */
+class PNGStreamEncoder {
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final byte FILTER_SUB = 1;
+	private static final byte FILTER_UP = 2;
+
+	/**
+	 * Collects the compressed data into IDAT chunks
+	 */
+	private class ImageDataStream extends OutputStream {
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int count = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (this.count == this.buffer.length) {
+				flushChunk();
+			}
+			this.buffer[this.count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (this.count == this.buffer.length) {
+					flushChunk();
+				}
+				int length = Math.min(len, this.buffer.length - this.count);
+				System.arraycopy(b, off, this.buffer, this.count, length);
+				this.count += length;
+				off += length;
+				len -= length;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.count > 0) {
+				flushChunk();
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			writeChunk("IDAT", this.buffer, this.count);
+			this.count = 0;
+		}
+	}
+
+	private final DataOutputStream output;
+	private final int width;
+	private final int height;
+	private final boolean alpha;
+	private final int bytesPerPixel;
+	private final DeflaterOutputStream imageData;
+	private final Deflater deflater;
+	private final int[] pixels;
+	private byte[] raw;
+	private byte[] previous;
+	private final byte[] sub;
+	private final byte[] up;
+	private int rowsWritten = 0;
+
+	/**
+	 * Writes the header of the image
+	 * @param alpha <code>true</code> for RGBA, <code>false</code> for RGB
+	 */
+	PNGStreamEncoder(OutputStream output, int width, int height, boolean alpha) throws IOException {
+		this.output = new DataOutputStream(output);
+		this.width = width;
+		this.height = height;
+		this.alpha = alpha;
+		this.bytesPerPixel = alpha ? 4 : 3;
+		this.pixels = new int[width];
+		this.raw = new byte[width * this.bytesPerPixel];
+		this.previous = new byte[width * this.bytesPerPixel];
+		this.sub = new byte[1 + width * this.bytesPerPixel];
+		this.up = new byte[1 + width * this.bytesPerPixel];
+		this.sub[0] = FILTER_SUB;
+		this.up[0] = FILTER_UP;
+
+		this.output.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;
+		header[9] = (byte) (alpha ? 6 : 2);
+		writeChunk("IHDR", header, header.length);
+
+		//	Created last, so a failed header does not leave the native memory of the deflater to the finalizer
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		this.imageData = new DeflaterOutputStream(new ImageDataStream(), this.deflater, CHUNK_SIZE);
+	}
+
+	/**
+	 * Writes all rows of the strip, which must be as wide as the image
+	 */
+	void writeRows(BufferedImage strip) throws IOException {
+		int rows = Math.min(strip.getHeight(), this.height - this.rowsWritten);
+		for (int y = 0; y < rows; y++) {
+			strip.getRGB(0, y, this.width, 1, this.pixels, 0, this.width);
+			for (int x = 0, i = 0; x < this.width; x++) {
+				int pixel = this.pixels[x];
+				this.raw[i++] = (byte) (pixel >> 16);
+				this.raw[i++] = (byte) (pixel >> 8);
+				this.raw[i++] = (byte) pixel;
+				if (this.alpha) {
+					this.raw[i++] = (byte) (pixel >>> 24);
+				}
+			}
+
+			//	The filter with the smaller sum of differences usually compresses better
+			long subSum = 0;
+			long upSum = 0;
+			for (int i = 0; i < this.raw.length; i++) {
+				byte left = i < this.bytesPerPixel ? 0 : this.raw[i - this.bytesPerPixel];
+				this.sub[i + 1] = (byte) (this.raw[i] - left);
+				this.up[i + 1] = (byte) (this.raw[i] - this.previous[i]);
+				subSum += Math.abs(this.sub[i + 1]);
+				upSum += Math.abs(this.up[i + 1]);
+			}
+			this.imageData.write(upSum < subSum ? this.up : this.sub);
+
+			byte[] row = this.previous;
+			this.previous = this.raw;
+			this.raw = row;
+		}
+		this.rowsWritten += rows;
+	}
+
+	/**
+	 * Writes the rest of the image, every row must have been written
+	 */
+	void finish() throws IOException {
+		if (this.rowsWritten != this.height) {
+			throw new IOException("Only " + this.rowsWritten + " of " + this.height + " rows were written");
+		}
+		this.imageData.finish();
+		this.imageData.close();
+		close();
+		writeChunk("IEND", new byte[0], 0);
+		this.output.flush();
+	}
+
+	/**
+	 * Frees the native memory of the compression, must be called when the image is finished or abandoned, may be
+	 * called more than once
+	 */
+	void close() {
+		this.deflater.end();
+	}
+
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		this.output.writeInt(length);
+		this.output.write(typeBytes);
+		this.output.write(data, 0, length);
+		this.output.writeInt((int) crc.getValue());
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,346 @@
+package com.idega.graphics.filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Cache of images rasterized by {@link SVGFilter}. Entries are keyed by the request (path, query,
+ * output format and size) and only used while their validator matches: the modification time of
+ * static SVG files, a hash of the generated SVG for dynamic ones.
+ * </p>
+ * <p>
+ * The memory tier is bounded by the size of the images, least recently used images are evicted
+ * first. The optional disk tier keeps images in a directory, also bounded by size, so they survive
+ * restarts and eviction from memory.
+ * </p>
+ */
+public class RasterCache {
+
+	private static final Logger LOGGER = Logger.getLogger(RasterCache.class.getName());
+
+	private static final String FILE_SUFFIX = ".raster";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/**
+	 * Rasterized image with the validator of the SVG it was made from
+	 */
+	public static class Entry {
+		private final String validator;
+		private final String contentType;
+		private final byte[] image;
+
+		public Entry(String validator, String contentType, byte[] image) {
+			this.validator = validator;
+			this.contentType = contentType;
+			this.image = image;
+		}
+
+		public String getValidator() {
+			return this.validator;
+		}
+
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		public byte[] getImage() {
+			return this.image;
+		}
+	}
+
+	private final long maxBytes;
+	private long usedBytes = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final File directory;
+	private final long maxDiskBytes;
+	private long usedDiskBytes = 0;
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/**
+	 * @param maxBytes size of the images kept in memory
+	 * @param directory where images are kept on disk, <code>null</code> for no disk tier
+	 * @param maxDiskBytes size of the images kept on disk
+	 */
+	public RasterCache(long maxBytes, File directory, long maxDiskBytes) {
+		this.maxBytes = maxBytes;
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		if (directory != null) {
+			loadDirectory();
+		}
+	}
+
+	/**
+	 * @return validator of a static SVG file
+	 */
+	public static String getFileValidator(File file) {
+		return new StringBuffer("modified:").append(file.lastModified()).append(':').append(file.length()).toString();
+	}
+
+	/**
+	 * @return validator of generated SVG
+	 */
+	public static String getContentValidator(byte[] svg) {
+		return "sha1:".concat(toHex(getDigest().digest(svg)));
+	}
+
+	/**
+	 * @return strong ETag of the image made with the key (the rendering parameters) from the source with the validator
+	 */
+	public static String getETag(String key, String validator) {
+		try {
+			MessageDigest digest = getDigest();
+			digest.update(key.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(validator.getBytes("UTF-8"));
+			return new StringBuffer("\"").append(toHex(digest.digest())).append('"').toString();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the image or <code>null</code> if it is not cached or was made from other content
+	 */
+	public Entry get(String key, String validator) {
+		synchronized (this) {
+			Entry entry = this.entries.get(key);
+			if (entry != null) {
+				if (entry.validator.equals(validator)) {
+					return entry;
+				}
+				this.entries.remove(key);
+				this.usedBytes -= entry.image.length;
+			}
+		}
+
+		if (this.directory == null) {
+			return null;
+		}
+		Entry entry = readFile(key);
+		if (entry == null || !entry.validator.equals(validator)) {
+			return null;
+		}
+		putInMemory(key, entry);
+		return entry;
+	}
+
+	public void put(String key, Entry entry) {
+		putInMemory(key, entry);
+		if (this.directory != null) {
+			writeFile(key, entry);
+		}
+	}
+
+	/**
+	 * Removes all images from memory and disk
+	 */
+	public void clear() {
+		List<String> fileNames = null;
+		synchronized (this) {
+			this.entries.clear();
+			this.usedBytes = 0;
+			fileNames = new ArrayList<String>(this.files.keySet());
+			this.files.clear();
+			this.usedDiskBytes = 0;
+		}
+		for (String fileName: fileNames) {
+			new File(this.directory, fileName).delete();
+		}
+	}
+
+	private synchronized void putInMemory(String key, Entry entry) {
+		if (entry.image.length > this.maxBytes) {
+			return;
+		}
+		Entry previous = this.entries.put(key, entry);
+		if (previous != null) {
+			this.usedBytes -= previous.image.length;
+		}
+		this.usedBytes += entry.image.length;
+		for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext() && this.usedBytes > this.maxBytes;) {
+			Entry eldest = iterator.next();
+			iterator.remove();
+			this.usedBytes -= eldest.image.length;
+		}
+	}
+
+	private Entry readFile(String key) {
+		String fileName = getFileName(key);
+		synchronized (this) {
+			if (this.files.get(fileName) == null) {
+				return null;
+			}
+		}
+
+		File file = new File(this.directory, fileName);
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (!key.equals(input.readUTF())) {
+				return null;
+			}
+			String validator = input.readUTF();
+			String contentType = input.readUTF();
+			byte[] image = new byte[input.readInt()];
+			input.readFully(image);
+			return new Entry(validator, contentType, image);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to read cached image ".concat(file.getAbsolutePath()), e);
+			return null;
+		} finally {
+			IOUtil.close(input);
+		}
+	}
+
+	/**
+	 * Writes into a temporary file first, so readers never see half written images
+	 */
+	private void writeFile(String key, Entry entry) {
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			LOGGER.warning("Unable to create directory ".concat(this.directory.getAbsolutePath()));
+			return;
+		}
+
+		String fileName = getFileName(key);
+		File file = new File(this.directory, fileName);
+		File temporary = null;
+		DataOutputStream output = null;
+		try {
+			temporary = File.createTempFile(fileName, TEMPORARY_SUFFIX, this.directory);
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			output.writeUTF(key);
+			output.writeUTF(entry.validator);
+			output.writeUTF(entry.contentType);
+			output.writeInt(entry.image.length);
+			output.write(entry.image);
+			output.close();
+			output = null;
+			if (!temporary.renameTo(file)) {
+				file.delete();
+				if (!temporary.renameTo(file)) {
+					throw new IOException("Unable to store ".concat(file.getAbsolutePath()));
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to write cached image ".concat(file.getAbsolutePath()), e);
+			return;
+		} finally {
+			IOUtil.close(output);
+			if (temporary != null) {
+				temporary.delete();
+			}
+		}
+
+		List<String> evicted = null;
+		synchronized (this) {
+			Long previous = this.files.put(fileName, Long.valueOf(file.length()));
+			if (previous != null) {
+				this.usedDiskBytes -= previous.longValue();
+			}
+			this.usedDiskBytes += file.length();
+			evicted = evictFiles();
+		}
+		deleteFiles(evicted);
+	}
+
+	/**
+	 * Removes the least recently used files from the disk tier until it fits into its size, the caller holds the lock
+	 * @return names of the files to delete
+	 */
+	private List<String> evictFiles() {
+		List<String> evicted = new ArrayList<String>();
+		for (Iterator<Map.Entry<String, Long>> iterator = this.files.entrySet().iterator(); iterator.hasNext() &&
+				this.usedDiskBytes > this.maxDiskBytes;) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			this.usedDiskBytes -= eldest.getValue().longValue();
+			evicted.add(eldest.getKey());
+		}
+		return evicted;
+	}
+
+	private void deleteFiles(List<String> names) {
+		for (String name: names) {
+			new File(this.directory, name).delete();
+		}
+	}
+
+	/**
+	 * Takes over the images left on disk, the least recently modified are evicted first, also right away when they do
+	 * not fit into the size of the disk tier
+	 */
+	private void loadDirectory() {
+		File[] existing = this.directory.listFiles();
+		if (existing == null) {
+			return;
+		}
+		Arrays.sort(existing, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				long difference = file1.lastModified() - file2.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (int i = 0; i < existing.length; i++) {
+			String name = existing[i].getName();
+			if (name.endsWith(FILE_SUFFIX)) {
+				this.files.put(name, Long.valueOf(existing[i].length()));
+				this.usedDiskBytes += existing[i].length();
+			}
+			else if (name.endsWith(TEMPORARY_SUFFIX)) {
+				existing[i].delete();
+			}
+		}
+		List<String> evicted = null;
+		synchronized (this) {
+			evicted = evictFiles();
+		}
+		deleteFiles(evicted);
+	}
+
+	private static String getFileName(String key) {
+		try {
+			return toHex(getDigest().digest(key.getBytes("UTF-8"))).concat(FILE_SUFFIX);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuffer hex = new StringBuffer(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,316 @@
+package com.idega.graphics.filter;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+import com.idega.graphics.util.DaemonThreadFactory;
+
+/**
+ * <p>
+ * Rasterizes the static *.psvg files of a web application into the cache of {@link SVGFilter}, so the first
+ * requests after a deploy find their images ready. Every file is rasterized for every configured query, e.g.
+ * <code>?</code> for the size of the document and <code>?width=32&amp;dpr=2</code>, under the key the filter
+ * uses for the request of the file with that query. Images already in the cache are skipped.
+ * </p>
+ * <p>
+ * The filter runs it in the background after it starts (see {@link SVGFilter#INIT_PARAM_WARM_UP_THREADS}). It can
+ * also be run from the command line to fill the disk tier of the cache before the server starts:
+ * </p>
+ * <pre>
+ * java com.idega.graphics.filter.RasterCacheWarmUp [-baseUrl http://host] [-context /path] [-threads n] [-diskSizeMB n] webapp-directory cache-directory [?query ...]
+ * </pre>
+ * <p>
+ * The files are rasterized with the address they are requested at, the base URL followed by the context path and
+ * their path, so relative references in them resolve as they do in requests.
+ * </p>
+ */
+public class RasterCacheWarmUp {
+
+	private static final Logger LOGGER = Logger.getLogger(RasterCacheWarmUp.class.getName());
+
+	public static final String DEFAULT_QUERY = "?";
+	public static final String DEFAULT_BASE_URL = "http://localhost";
+
+	private static final String STATIC_SVG_SUFFIX = SVGInitParameters.STATIC_SVG_SUFFIX;
+	private static final String[] SKIPPED_DIRECTORIES = {"/WEB-INF/", "/META-INF/"};
+
+	private static final int DEFAULT_MAX_SIZE = SVGInitParameters.DEFAULT_MAX_SIZE;
+	private static final float DEFAULT_MAX_DPR = SVGInitParameters.DEFAULT_MAX_DPR;
+	private static final int DEFAULT_DISK_SIZE_MB = SVGInitParameters.DEFAULT_CACHE_DISK_SIZE_MB;
+
+	private final SVGRasterizer rasterizer;
+	private final RasterCache cache;
+	private final String baseUrl;
+	private final String contextPath;
+	private final List<String> queries;
+	private final int maxWidth;
+	private final int maxHeight;
+	private final float maxDpr;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param baseUrl scheme, host and port the files are requested at, e.g. {@link #DEFAULT_BASE_URL}
+	 * @param contextPath context path of the web application, the start of the requested URIs
+	 * @param queries query strings the files are requested with, starting with '?'
+	 * @param threads number of files rasterized at once
+	 */
+	public RasterCacheWarmUp(SVGRasterizer rasterizer, RasterCache cache, String baseUrl, String contextPath, List<String> queries, int maxWidth,
+			int maxHeight, float maxDpr, int threads) {
+		this.rasterizer = rasterizer;
+		this.cache = cache;
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		this.contextPath = contextPath == null ? "" : contextPath;
+		this.queries = queries;
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.maxDpr = maxDpr;
+
+		//	The thread walking the files rasterizes too when the queue is full, so it never gets far ahead
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+				new DaemonThreadFactory("SVGCacheWarmUp", Thread.MIN_PRIORITY), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @return the query strings in the list separated by commas or white space, {@link #DEFAULT_QUERY} if there are none
+	 */
+	public static List<String> getQueries(String queryList) {
+		List<String> queries = new ArrayList<String>();
+		if (queryList != null) {
+			String[] values = queryList.split("[,\\s]+");
+			for (int i = 0; i < values.length; i++) {
+				if (values[i].length() > 0) {
+					queries.add(values[i].startsWith("?") ? values[i] : "?".concat(values[i]));
+				}
+			}
+		}
+		if (queries.isEmpty()) {
+			queries.add(DEFAULT_QUERY);
+		}
+		return queries;
+	}
+
+	/**
+	 * Rasterizes the files for every query and waits until they are done
+	 * @param sources the files by their path in the web application
+	 * @return number of images put in the cache
+	 */
+	public int warmUp(Map<String, File> sources) {
+		long start = System.currentTimeMillis();
+		final AtomicInteger rasterized = new AtomicInteger(0);
+		for (Map.Entry<String, File> source: sources.entrySet()) {
+			final String path = source.getKey();
+			final File file = source.getValue();
+			for (final String query: this.queries) {
+				if (this.executor.isShutdown()) {
+					break;
+				}
+				this.executor.execute(new Runnable() {
+					public void run() {
+						if (warmUp(path, file, query)) {
+							rasterized.incrementAndGet();
+						}
+					}
+				});
+			}
+		}
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.info(new StringBuffer("Rasterized ").append(rasterized.get()).append(" images of ").append(sources.size())
+				.append(" SVG files into the cache in ").append(System.currentTimeMillis() - start).append(" ms").toString());
+		return rasterized.get();
+	}
+
+	/**
+	 * Stops rasterizing, the files being rasterized are finished
+	 */
+	public void stop() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * @return <code>true</code> if the image was rasterized and put in the cache
+	 */
+	private boolean warmUp(String path, File file, String query) {
+		String queryString = query.length() > 1 ? query.substring(1) : null;
+		Map<String, String> parameters = getParameters(queryString);
+		RasterSize size = SVGFilter.getRasterSize(parameters.get(SVGFilter.PARAMETER_WIDTH), parameters.get(SVGFilter.PARAMETER_HEIGHT),
+				parameters.get(SVGFilter.PARAMETER_DPR), this.maxWidth, this.maxHeight, this.maxDpr);
+		String uri = this.contextPath.concat(path);
+		String key = SVGFilter.getCacheKey(uri, queryString, SVGFilter.FORMAT_PNG, size);
+		String validator = RasterCache.getFileValidator(file);
+		if (this.cache.get(key, validator) != null) {
+			return false;
+		}
+		try {
+			byte[] image = this.rasterizer.rasterize(file, this.baseUrl.concat(uri), validator, SVGFilter.FORMAT_PNG, size);
+			this.cache.put(key, new RasterCache.Entry(validator, SVGRasterizer.CONTENT_TYPE_PNG, image));
+			return true;
+		} catch (RasterizationRejectedException e) {
+			if (e.isTooLarge()) {
+				LOGGER.warning(new StringBuffer("Not rasterizing ").append(path).append(query).append(": ").append(e.getMessage()).toString());
+			}
+			else {
+				LOGGER.fine("Too busy to rasterize ".concat(path));
+			}
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to rasterize ".concat(path), e);
+		}
+		return false;
+	}
+
+	private static Map<String, String> getParameters(String queryString) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (queryString == null) {
+			return parameters;
+		}
+		String[] pairs = queryString.split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			int index = pairs[i].indexOf('=');
+			if (index > 0) {
+				try {
+					String name = URLDecoder.decode(pairs[i].substring(0, index), "UTF-8");
+					if (!parameters.containsKey(name)) {
+						parameters.put(name, URLDecoder.decode(pairs[i].substring(index + 1), "UTF-8"));
+					}
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * @return the static SVG files of the web application by their path in it, WEB-INF and META-INF are skipped
+	 */
+	public static Map<String, File> findSources(ServletContext context) {
+		Map<String, File> sources = new TreeMap<String, File>();
+		findSources(context, "/", sources);
+		return sources;
+	}
+
+	private static void findSources(ServletContext context, String directory, Map<String, File> sources) {
+		Set<?> paths = context.getResourcePaths(directory);
+		if (paths == null) {
+			return;
+		}
+		for (Object entry: paths) {
+			String path = (String) entry;
+			if (path.endsWith("/")) {
+				if (!isSkipped(path)) {
+					findSources(context, path, sources);
+				}
+			}
+			else if (path.endsWith(STATIC_SVG_SUFFIX)) {
+				String realPath = context.getRealPath(path);
+				File file = realPath == null ? null : new File(realPath);
+				if (file != null && file.isFile()) {
+					sources.put(path, file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the static SVG files under the directory of a web application by their path in it
+	 */
+	public static Map<String, File> findSources(File directory) {
+		Map<String, File> sources = new TreeMap<String, File>();
+		findSources(directory, "/", sources);
+		return sources;
+	}
+
+	private static void findSources(File directory, String path, Map<String, File> sources) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			String filePath = path.concat(files[i].getName());
+			if (files[i].isDirectory()) {
+				if (!isSkipped(filePath.concat("/"))) {
+					findSources(files[i], filePath.concat("/"), sources);
+				}
+			}
+			else if (filePath.endsWith(STATIC_SVG_SUFFIX)) {
+				sources.put(filePath, files[i]);
+			}
+		}
+	}
+
+	private static boolean isSkipped(String directory) {
+		for (int i = 0; i < SKIPPED_DIRECTORIES.length; i++) {
+			if (SKIPPED_DIRECTORIES[i].equals(directory)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void main(String[] args) {
+		String baseUrl = DEFAULT_BASE_URL;
+		String contextPath = "";
+		int threads = Runtime.getRuntime().availableProcessors();
+		int diskSize = DEFAULT_DISK_SIZE_MB;
+		List<String> arguments = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-baseUrl".equals(args[i])) {
+					baseUrl = args[++i];
+				}
+				else if ("-context".equals(args[i])) {
+					contextPath = args[++i];
+				}
+				else if ("-threads".equals(args[i])) {
+					threads = Integer.parseInt(args[++i]);
+				}
+				else if ("-diskSizeMB".equals(args[i])) {
+					diskSize = Integer.parseInt(args[++i]);
+				}
+				else {
+					arguments.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			arguments.clear();
+		}
+		if (arguments.size() < 2 || threads < 1) {
+			System.err.println("Usage: java " + RasterCacheWarmUp.class.getName() +
+					" [-baseUrl http://host] [-context /path] [-threads n] [-diskSizeMB n] webapp-directory cache-directory [?query ...]");
+			System.exit(2);
+		}
+
+		File webapp = new File(arguments.get(0));
+		StringBuffer queries = new StringBuffer();
+		for (String query: arguments.subList(2, arguments.size())) {
+			queries.append(query).append(' ');
+		}
+		//	Only the disk tier is filled, the images are not needed in memory
+		RasterCache cache = SVGInitParameters.createCache(0, arguments.get(1), diskSize);
+		SVGRasterizer rasterizer = new SVGRasterizer(SVGRasterizer.DEFAULT_DOCUMENT_CACHE_SIZE, null);
+		SVGInitParameters.setMaxImageSize(rasterizer, DEFAULT_MAX_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_DPR,
+				SVGInitParameters.DEFAULT_MAX_IMAGE_MEGAPIXELS * 1000000L);
+		new RasterCacheWarmUp(rasterizer, cache, baseUrl, contextPath, getQueries(queries.toString()), DEFAULT_MAX_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_DPR,
+				threads).warmUp(findSources(webapp));
+		rasterizer.shutdown();
+	}
+}
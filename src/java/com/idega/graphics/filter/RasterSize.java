@@ -0,0 +1,79 @@
+package com.idega.graphics.filter;
+
+/**
+ * Size an SVG document is rasterized at for {@link SVGFilter}: the width and height in CSS pixels,
+ * either of them 0 to keep the aspect ratio of the document (both 0 for the size of the document),
+ * and the device pixel ratio the image is made for.
+ */
+public class RasterSize {
+
+	public static final RasterSize INTRINSIC = new RasterSize(0, 0, 1);
+
+	private final float width;
+	private final float height;
+	private final float scale;
+
+	/**
+	 * @param width width in CSS pixels, 0 if not set
+	 * @param height height in CSS pixels, 0 if not set
+	 * @param scale device pixel ratio, image pixels per CSS pixel
+	 */
+	public RasterSize(float width, float height, float scale) {
+		this.width = Math.max(0, width);
+		this.height = Math.max(0, height);
+		this.scale = scale > 0 ? scale : 1;
+	}
+
+	public float getWidth() {
+		return this.width;
+	}
+
+	public float getHeight() {
+		return this.height;
+	}
+
+	public float getScale() {
+		return this.scale;
+	}
+
+	/**
+	 * @return <code>true</code> if the document is rasterized at its own size
+	 */
+	public boolean isIntrinsic() {
+		return this.width == 0 && this.height == 0 && this.scale == 1;
+	}
+
+	/**
+	 * @return width in image pixels of the image of a document of the provided size, like the Batik transcoders compute it
+	 */
+	public float getImageWidth(float documentWidth, float documentHeight) {
+		if (this.width > 0) {
+			return this.width * this.scale;
+		}
+		if (this.height > 0) {
+			return documentWidth * this.height / documentHeight * this.scale;
+		}
+		return documentWidth * this.scale;
+	}
+
+	/**
+	 * @return height in image pixels of the image of a document of the provided size
+	 */
+	public float getImageHeight(float documentWidth, float documentHeight) {
+		if (this.height > 0) {
+			return this.height * this.scale;
+		}
+		if (this.width > 0) {
+			return documentHeight * this.width / documentWidth * this.scale;
+		}
+		return documentHeight * this.scale;
+	}
+
+	/**
+	 * @return the size for cache keys, e.g. "120x0@2.0"
+	 */
+	@Override
+	public String toString() {
+		return new StringBuffer().append(this.width).append('x').append(this.height).append('@').append(this.scale).toString();
+	}
+}
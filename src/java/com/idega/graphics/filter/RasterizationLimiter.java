@@ -0,0 +1,140 @@
+package com.idega.graphics.filter;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.batik.transcoder.TranscoderException;
+
+/**
+ * <p>
+ * Limits the rasterization done by {@link SVGFilter}: the number of images rasterized at once and the
+ * number of pixels of the images being rasterized, as every pixel takes 4 bytes of memory until the
+ * image is encoded. A rasterization waits for its turn at most the queue timeout and is rejected
+ * after it.
+ * </p>
+ * <p>
+ * Identical requests arriving while their image is rasterized do not rasterize it again, they wait
+ * for the rasterization in progress and get the same image (or the same failure).
+ * </p>
+ */
+public class RasterizationLimiter {
+
+	private final Semaphore renders;
+	private final Semaphore pixels;
+	private final int maxPixels;
+	private final long queueTimeout;
+	private final int retryAfter;
+	private final ConcurrentMap<String, FutureTask<RasterCache.Entry>> inProgress = new ConcurrentHashMap<String, FutureTask<RasterCache.Entry>>();
+
+	/**
+	 * @param maxRenders number of images rasterized at once
+	 * @param maxPixels number of pixels of the images rasterized at once, larger images are rejected
+	 * @param queueTimeout milliseconds a rasterization waits for its turn
+	 * @param retryAfter seconds rejected clients are told to wait before trying again
+	 */
+	public RasterizationLimiter(int maxRenders, int maxPixels, long queueTimeout, int retryAfter) {
+		this.renders = new Semaphore(Math.max(1, maxRenders), true);
+		this.maxPixels = Math.max(1, maxPixels);
+		this.pixels = new Semaphore(this.maxPixels, true);
+		this.queueTimeout = queueTimeout;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return seconds rejected clients are told to wait before trying again
+	 */
+	public int getRetryAfter() {
+		return this.retryAfter;
+	}
+
+	/**
+	 * Rasterizes the image in turn, or waits for the identical rasterization already in progress
+	 * @param key the rendering parameters and the validator of the source, identical rasterizations have the same key
+	 * @param renderer rasterizes the image, called with a free place for rasterization
+	 * @return the image
+	 */
+	public RasterCache.Entry render(String key, final Callable<RasterCache.Entry> renderer) throws RasterizationRejectedException,
+			TranscoderException, IOException {
+		FutureTask<RasterCache.Entry> task = new FutureTask<RasterCache.Entry>(new Callable<RasterCache.Entry>() {
+			public RasterCache.Entry call() throws Exception {
+				acquire(RasterizationLimiter.this.renders, 1);
+				try {
+					return renderer.call();
+				} finally {
+					RasterizationLimiter.this.renders.release();
+				}
+			}
+		});
+		FutureTask<RasterCache.Entry> running = this.inProgress.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				this.inProgress.remove(key, task);
+			}
+			running = task;
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RasterizationRejectedException("Interrupted while waiting for rasterization");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RasterizationRejectedException) {
+				throw (RasterizationRejectedException) cause;
+			}
+			if (cause instanceof TranscoderException) {
+				throw (TranscoderException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Exception) {
+				throw new TranscoderException((Exception) cause);
+			}
+			throw new TranscoderException(cause.toString());
+		}
+	}
+
+	/**
+	 * Waits until the pixels of an image fit in the budget, they must be released with {@link #releasePixels(int)}
+	 * @return the number of pixels to release
+	 * @throws RasterizationRejectedException if the image is larger than the whole budget ({@link RasterizationRejectedException#isTooLarge()})
+	 * or does not get its turn in time
+	 */
+	public int acquirePixels(long imagePixels) throws RasterizationRejectedException {
+		if (imagePixels > this.maxPixels) {
+			throw new RasterizationRejectedException(new StringBuffer("Image of ").append(imagePixels).append(" pixels is larger than the limit of ")
+					.append(this.maxPixels).toString(), true);
+		}
+		int permits = (int) Math.max(1, imagePixels);
+		acquire(this.pixels, permits);
+		return permits;
+	}
+
+	public void releasePixels(int permits) {
+		this.pixels.release(permits);
+	}
+
+	private void acquire(Semaphore semaphore, int permits) throws RasterizationRejectedException {
+		try {
+			if (!semaphore.tryAcquire(permits, this.queueTimeout, TimeUnit.MILLISECONDS)) {
+				throw new RasterizationRejectedException("Too many SVG images are rasterized at the moment");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RasterizationRejectedException("Interrupted while waiting for rasterization");
+		}
+	}
+}
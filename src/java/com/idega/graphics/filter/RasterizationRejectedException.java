@@ -0,0 +1,29 @@
+package com.idega.graphics.filter;
+
+/**
+ * Thrown when an SVG document is not rasterized because too many images are rasterized at the moment,
+ * {@link SVGFilter} answers the request with 503 and the client is expected to try again later. An image
+ * larger than the whole pixel budget is never rasterized, the request is answered with 413.
+ */
+public class RasterizationRejectedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean tooLarge;
+
+	public RasterizationRejectedException(String message) {
+		this(message, false);
+	}
+
+	public RasterizationRejectedException(String message, boolean tooLarge) {
+		super(message);
+		this.tooLarge = tooLarge;
+	}
+
+	/**
+	 * @return <code>true</code> if the image does not fit in the budget at all and trying again does not help
+	 */
+	public boolean isTooLarge() {
+		return this.tooLarge;
+	}
+}
@@ -9,12 +9,17 @@
  */
 package com.idega.graphics.filter;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -28,6 +33,55 @@ import javax.servlet.http.HttpServletResponse;
  * This filter is mapped by default on urls with the patterns *.psvg and *.jsvg , and the default behaviour is to try
  * to render the image out to PNG even if the browser accepts viewing svg.
  * </p>
+ * <p>
+ * Rasterized images are cached, static *.psvg files are validated by their modification time and generated SVG by its
+ * content. The cache is configured with the init-params {@link #INIT_PARAM_CACHE_SIZE} (megabytes of memory),
+ * {@link #INIT_PARAM_CACHE_DIRECTORY} (turns on the disk tier) and {@link #INIT_PARAM_CACHE_DISK_SIZE} (megabytes on disk).
+ * The parsed documents of the most recently used static files are kept ({@link #INIT_PARAM_DOCUMENT_CACHE_SIZE} documents,
+ * {@link #INIT_PARAM_DOCUMENT_CACHE_SIZE_MB} megabytes estimated). Responses carry an ETag of the source and the rendering
+ * parameters, and the modification time of static files, so conditional requests are answered with 304 without rasterizing.
+ * </p>
+ * <p>
+ * Static files are passed down the filter chain like generated SVG, unless {@link #INIT_PARAM_STATIC_FILES_BYPASS_CHAIN} is
+ * <code>true</code>: then they are rasterized straight from the disk with the kept documents, and cached images and 304 responses
+ * are sent without running the chain. Filters mapped after this one, e.g. access control, do not run for static files then, so
+ * it should only be turned on when they are public.
+ * </p>
+ * <p>
+ * The size of the image can be requested with the parameters {@link #PARAMETER_WIDTH} and {@link #PARAMETER_HEIGHT} (CSS pixels,
+ * with one of them the aspect ratio is kept) and {@link #PARAMETER_DPR} (device pixel ratio), limited by the init-params
+ * {@link #INIT_PARAM_MAX_WIDTH}, {@link #INIT_PARAM_MAX_HEIGHT} and {@link #INIT_PARAM_MAX_DPR}. Every size is cached separately.
+ * The image computed from the size of the document is scaled down, keeping its aspect ratio, to at most maxWidth &times; maxDpr
+ * by maxHeight &times; maxDpr image pixels and {@link #INIT_PARAM_MAX_IMAGE_MEGAPIXELS} million pixels, however wide or tall the
+ * document is.
+ * </p>
+ * <p>
+ * At most {@link #INIT_PARAM_MAX_RENDERS} images (0 for no limit) with at most {@link #INIT_PARAM_MAX_MEGAPIXELS} million pixels
+ * in all are rasterized at once. Requests wait {@link #INIT_PARAM_QUEUE_TIMEOUT} milliseconds for their turn, then they are
+ * answered with 503 and Retry-After ({@link #INIT_PARAM_RETRY_AFTER} seconds). Images with more pixels than the whole budget are
+ * answered with 413. Identical requests rasterized at the same time share one rasterization. The limiter is shared with
+ * {@link SVGSpriteServlet} through the servlet context attribute {@link #ATTRIBUTE_LIMITER}.
+ * </p>
+ * <p>
+ * With {@link #INIT_PARAM_ASYNC_THREADS} set, images are rasterized on a pool of that many threads and the container thread is
+ * released while they are made (the filter has to be declared with <code>async-supported</code> in a version 3.0 web.xml on a
+ * Servlet 3.0 container, otherwise they are rasterized on the container thread). Requests waiting for a thread beyond
+ * {@link #INIT_PARAM_ASYNC_QUEUE_SIZE} are rasterized on the container thread, and requests not started within
+ * {@link #INIT_PARAM_ASYNC_TIMEOUT} milliseconds get 503.
+ * A static file that can not be rasterized from the disk is dispatched back to the container and sent down the filter chain, as
+ * it is in synchronous mode, so the filter also has to be mapped for the <code>ASYNC</code> dispatcher.
+ * </p>
+ * <p>
+ * PNG images of at least {@link #INIT_PARAM_TILE_THRESHOLD} million pixels are painted in strips by {@link #INIT_PARAM_TILE_THREADS}
+ * threads (by default one for every processor, 1 or less turns it off) and encoded as the strips are painted.
+ * </p>
+ * <p>
+ * With {@link #INIT_PARAM_WARM_UP_THREADS} set, the static *.psvg files of the web application are rasterized into the cache
+ * in the background after the filter starts, by that many threads, for every query in {@link #INIT_PARAM_WARM_UP_QUERIES}
+ * (e.g. "?, ?width=32&amp;dpr=2", by default only "?" for the size of the documents); see {@link RasterCacheWarmUp}. The files are
+ * rasterized as if they were requested at {@link #INIT_PARAM_WARM_UP_BASE_URL} (by default http://localhost) followed by the
+ * context path, so relative references in them resolve as in requests.
+ * </p>
  *  Last modified: $Date: 2008/11/05 16:40:02 $ by $Author: laddi $
  * 
  * @author <a href="mailto:tryggvil@idega.com">Tryggvi Larusson</a>
@@ -42,14 +96,154 @@ public class SVGFilter implements Filter {
 	public static final String BATIK_USERAGENT_START="Batik";
 	public static final String JAVA_USERAGENT_START="Java";
 	
+	public static final String CACHE_CONTROL = "max-age=3600, must-revalidate";
+	
+	public static final String INIT_PARAM_CACHE_SIZE = "cacheSizeMB";
+	public static final String INIT_PARAM_CACHE_DIRECTORY = "cacheDirectory";
+	public static final String INIT_PARAM_CACHE_DISK_SIZE = "cacheDiskSizeMB";
+	public static final String INIT_PARAM_DOCUMENT_CACHE_SIZE = "documentCacheSize";
+	public static final String INIT_PARAM_DOCUMENT_CACHE_SIZE_MB = "documentCacheSizeMB";
+	public static final String INIT_PARAM_STATIC_FILES_BYPASS_CHAIN = "staticFilesBypassChain";
+	public static final String INIT_PARAM_MAX_WIDTH = "maxWidth";
+	public static final String INIT_PARAM_MAX_HEIGHT = "maxHeight";
+	public static final String INIT_PARAM_MAX_DPR = "maxDpr";
+	public static final String INIT_PARAM_MAX_IMAGE_MEGAPIXELS = "maxImageMegapixels";
+	public static final String INIT_PARAM_MAX_RENDERS = "maxRenders";
+	public static final String INIT_PARAM_MAX_MEGAPIXELS = "maxMegapixels";
+	public static final String INIT_PARAM_QUEUE_TIMEOUT = "queueTimeoutMs";
+	public static final String INIT_PARAM_RETRY_AFTER = "retryAfterSeconds";
+	public static final String INIT_PARAM_ASYNC_THREADS = "asyncThreads";
+	public static final String INIT_PARAM_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+	public static final String INIT_PARAM_ASYNC_TIMEOUT = "asyncTimeoutMs";
+	public static final String INIT_PARAM_TILE_THREADS = "tileThreads";
+	public static final String INIT_PARAM_TILE_THRESHOLD = "tileThresholdMegapixels";
+	public static final String INIT_PARAM_WARM_UP_THREADS = "warmUpThreads";
+	public static final String INIT_PARAM_WARM_UP_QUERIES = "warmUpQueries";
+	public static final String INIT_PARAM_WARM_UP_BASE_URL = "warmUpBaseUrl";
+	
+	/**
+	 * Servlet context attribute with the {@link RasterizationLimiter} of the filter
+	 */
+	public static final String ATTRIBUTE_LIMITER = RasterizationLimiter.class.getName();
+
+	public static final String PARAMETER_WIDTH = "width";
+	public static final String PARAMETER_HEIGHT = "height";
+	public static final String PARAMETER_DPR = "dpr";
+	
+	private static final int DEFAULT_CACHE_SIZE_MB = 16;
+	private static final int DEFAULT_CACHE_DISK_SIZE_MB = SVGInitParameters.DEFAULT_CACHE_DISK_SIZE_MB;
+	private static final int DEFAULT_MAX_WIDTH = SVGInitParameters.DEFAULT_MAX_SIZE;
+	private static final int DEFAULT_MAX_HEIGHT = SVGInitParameters.DEFAULT_MAX_SIZE;
+	private static final float DEFAULT_MAX_DPR = SVGInitParameters.DEFAULT_MAX_DPR;
+	private static final int DEFAULT_MAX_IMAGE_MEGAPIXELS = SVGInitParameters.DEFAULT_MAX_IMAGE_MEGAPIXELS;
+	private static final int DEFAULT_MAX_MEGAPIXELS = 32;
+	private static final int DEFAULT_QUEUE_TIMEOUT_MS = 2000;
+	private static final int DEFAULT_RETRY_AFTER_SECONDS = 5;
+	private static final int DEFAULT_ASYNC_QUEUE_SIZE = 256;
+	private static final int DEFAULT_ASYNC_TIMEOUT_MS = 30000;
+	private static final int DEFAULT_TILE_THRESHOLD_MEGAPIXELS = 4;
+	
+	private static final String STATIC_SVG_SUFFIX = SVGInitParameters.STATIC_SVG_SUFFIX;
+	
+	private ServletContext servletContext;
+	private SVGRasterizer rasterizer;
+	private RasterCache cache;
+	private AsyncRasterization async;
+	private RasterCacheWarmUp cacheWarmUp;
+	private int maxWidth = DEFAULT_MAX_WIDTH;
+	private int maxHeight = DEFAULT_MAX_HEIGHT;
+	private float maxDpr = DEFAULT_MAX_DPR;
+	private boolean staticFilesBypassChain = false;
 	
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
 	 */
-	public void init(FilterConfig arg0) throws ServletException {
+	public void init(FilterConfig config) throws ServletException {
 		Logger.getLogger(this.getClass().getName()).info("[idegaWebApp] : Starting SVGFilter");
+		this.servletContext = config.getServletContext();
+		int maxRenders = getIntInitParameter(config, INIT_PARAM_MAX_RENDERS, Runtime.getRuntime().availableProcessors());
+		RasterizationLimiter limiter = null;
+		if (maxRenders > 0) {
+			limiter = createLimiter(maxRenders, getIntInitParameter(config, INIT_PARAM_MAX_MEGAPIXELS, DEFAULT_MAX_MEGAPIXELS),
+					getIntInitParameter(config, INIT_PARAM_QUEUE_TIMEOUT, DEFAULT_QUEUE_TIMEOUT_MS),
+					getIntInitParameter(config, INIT_PARAM_RETRY_AFTER, DEFAULT_RETRY_AFTER_SECONDS));
+			this.servletContext.setAttribute(ATTRIBUTE_LIMITER, limiter);
+		}
+		this.rasterizer = new SVGRasterizer(getIntInitParameter(config, INIT_PARAM_DOCUMENT_CACHE_SIZE, SVGRasterizer.DEFAULT_DOCUMENT_CACHE_SIZE),
+				getIntInitParameter(config, INIT_PARAM_DOCUMENT_CACHE_SIZE_MB, SVGRasterizer.DEFAULT_DOCUMENT_CACHE_SIZE_MB) * 1024L * 1024L, limiter);
+		this.staticFilesBypassChain = Boolean.valueOf(config.getInitParameter(INIT_PARAM_STATIC_FILES_BYPASS_CHAIN)).booleanValue();
+		this.maxWidth = getIntInitParameter(config, INIT_PARAM_MAX_WIDTH, DEFAULT_MAX_WIDTH);
+		this.maxHeight = getIntInitParameter(config, INIT_PARAM_MAX_HEIGHT, DEFAULT_MAX_HEIGHT);
+		this.maxDpr = getFloatInitParameter(config, INIT_PARAM_MAX_DPR, DEFAULT_MAX_DPR);
+		long maxImagePixels = getIntInitParameter(config, INIT_PARAM_MAX_IMAGE_MEGAPIXELS, DEFAULT_MAX_IMAGE_MEGAPIXELS) * 1000000L;
+		SVGInitParameters.setMaxImageSize(this.rasterizer, this.maxWidth, this.maxHeight, this.maxDpr, maxImagePixels);
+		int tileThreads = getIntInitParameter(config, INIT_PARAM_TILE_THREADS, Runtime.getRuntime().availableProcessors());
+		if (tileThreads > 1) {
+			this.rasterizer.setTiling(tileThreads, getIntInitParameter(config, INIT_PARAM_TILE_THRESHOLD, DEFAULT_TILE_THRESHOLD_MEGAPIXELS) * 1000000);
+		}
+		
+		this.cache = SVGInitParameters.createCache(getIntInitParameter(config, INIT_PARAM_CACHE_SIZE, DEFAULT_CACHE_SIZE_MB),
+				config.getInitParameter(INIT_PARAM_CACHE_DIRECTORY), getIntInitParameter(config, INIT_PARAM_CACHE_DISK_SIZE, DEFAULT_CACHE_DISK_SIZE_MB));
+		
+		int asyncThreads = getIntInitParameter(config, INIT_PARAM_ASYNC_THREADS, 0);
+		if (asyncThreads > 0) {
+			this.async = new AsyncRasterization(asyncThreads, getIntInitParameter(config, INIT_PARAM_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE),
+					getIntInitParameter(config, INIT_PARAM_ASYNC_TIMEOUT, DEFAULT_ASYNC_TIMEOUT_MS), limiter);
+		}
+		
+		int warmUpThreads = getIntInitParameter(config, INIT_PARAM_WARM_UP_THREADS, 0);
+		if (warmUpThreads > 0 && this.cache != null) {
+			//a rasterizer of its own, so the trees of the files warmed up do not push out the ones requested
+			SVGRasterizer warmUpRasterizer = new SVGRasterizer(warmUpThreads * 2, limiter);
+			SVGInitParameters.setMaxImageSize(warmUpRasterizer, this.maxWidth, this.maxHeight, this.maxDpr, maxImagePixels);
+			String baseUrl = config.getInitParameter(INIT_PARAM_WARM_UP_BASE_URL);
+			this.cacheWarmUp = new RasterCacheWarmUp(warmUpRasterizer, this.cache,
+					baseUrl == null || baseUrl.length() == 0 ? RasterCacheWarmUp.DEFAULT_BASE_URL : baseUrl, this.servletContext.getContextPath(),
+					RasterCacheWarmUp.getQueries(config.getInitParameter(INIT_PARAM_WARM_UP_QUERIES)), this.maxWidth, this.maxHeight, this.maxDpr,
+					warmUpThreads);
+		}
+		
+		//Batik takes a while to load, doing it before the first request comes
+		final SVGRasterizer rasterizer = this.rasterizer;
+		final RasterCacheWarmUp cacheWarmUp = this.cacheWarmUp;
+		final ServletContext servletContext = this.servletContext;
+		Thread warmUp = new Thread(new Runnable() {
+			public void run() {
+				rasterizer.warmUp();
+				if (cacheWarmUp != null) {
+					cacheWarmUp.warmUp(RasterCacheWarmUp.findSources(servletContext));
+				}
+			}
+		}, "SVGFilterWarmUp");
+		warmUp.setDaemon(true);
+		warmUp.setPriority(Thread.MIN_PRIORITY);
+		warmUp.start();
+	}
+	
+	private static RasterizationLimiter createLimiter(int maxRenders, int maxMegapixels, int queueTimeout, int retryAfter) {
+		return new RasterizationLimiter(maxRenders, Math.min(maxMegapixels, Integer.MAX_VALUE / 1000000) * 1000000, queueTimeout, retryAfter);
+	}
+
+	/**
+	 * @return the limiter of the filter running in the web application, or a new one with the default limits if there is none
+	 */
+	static RasterizationLimiter getSharedLimiter(ServletContext context) {
+		Object limiter = context.getAttribute(ATTRIBUTE_LIMITER);
+		if (limiter instanceof RasterizationLimiter) {
+			return (RasterizationLimiter) limiter;
+		}
+		return createLimiter(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_MEGAPIXELS, DEFAULT_QUEUE_TIMEOUT_MS,
+				DEFAULT_RETRY_AFTER_SECONDS);
+	}
+
+	private int getIntInitParameter(FilterConfig config, String name, int defaultValue) throws ServletException {
+		return SVGInitParameters.getInt(name, config.getInitParameter(name), defaultValue);
+	}
+
+	private float getFloatInitParameter(FilterConfig config, String name, float defaultValue) throws ServletException {
+		return SVGInitParameters.getFloat(name, config.getInitParameter(name), defaultValue);
 	}
 
 	
@@ -59,14 +253,28 @@ public class SVGFilter implements Filter {
 	 * @see javax.servlet.Filter#destroy()
 	 */
 	public void destroy() {
-		// TODO Auto-generated method stub
+		this.cache = null;
+		if (this.servletContext != null && this.rasterizer != null && this.rasterizer.getLimiter() != null) {
+			this.servletContext.removeAttribute(ATTRIBUTE_LIMITER);
+		}
+		if (this.cacheWarmUp != null) {
+			this.cacheWarmUp.stop();
+			this.cacheWarmUp = null;
+		}
+		if (this.async != null) {
+			this.async.shutdown();
+			this.async = null;
+		}
+		if (this.rasterizer != null) {
+			this.rasterizer.shutdown();
+		}
 	}
 
 	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
 		if (req instanceof HttpServletRequest) {
-			HttpServletRequest request = (HttpServletRequest) req;
-			HttpServletResponse response = (HttpServletResponse) res;
-			String outputFormat = getOutputFormatForClient(request);
+			final HttpServletRequest request = (HttpServletRequest) req;
+			final HttpServletResponse response = (HttpServletResponse) res;
+			final String outputFormat = getOutputFormatForClient(request);
 			if(outputFormat.equals(FORMAT_SVG)){
 				//just bypass this filter to do the default handing:
 				response.setContentType("image/svg+xml");
@@ -74,12 +282,278 @@ public class SVGFilter implements Filter {
 				response.setContentType("image/svg+xml");
 			}
 			else{
+				final RasterSize size = getRasterSize(request);
+				final String cacheKey = getCacheKey(request, outputFormat, size);
+				final File staticFile = getStaticFile(request);
+				final String validator = staticFile == null ? null : RasterCache.getFileValidator(staticFile);
+				final long lastModified = staticFile == null ? -1 : staticFile.lastModified();
+				RasterCache cache = this.cache;
+				AsyncRasterization async = this.async;
+				//a static file dispatched back after it could not be rasterized from the disk goes down the chain:
+				boolean dispatched = request.getAttribute(AsyncRasterization.ATTRIBUTE_DISPATCHED) != null;
+				if (dispatched) {
+					async = null;
+				}
+				if (validator != null && this.staticFilesBypassChain && !dispatched) {
+					//a static file which is not changed does not need to be read at all:
+					final String eTag = RasterCache.getETag(cacheKey, validator);
+					if (isNotModified(request, eTag, lastModified)) {
+						response.addHeader("Cache-Control", CACHE_CONTROL);
+						setValidators(response, eTag, lastModified);
+						response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					}
+					RasterCache.Entry image = cache == null ? null : cache.get(cacheKey, validator);
+					if (image != null) {
+						writeImage(response, image, eTag, lastModified);
+						return;
+					}
+					if (async != null && async.start(request, response, new AsyncRasterization.Rasterization() {
+						public boolean run() throws IOException {
+							return writeStaticImage(request, response, staticFile, cacheKey, validator, eTag, lastModified, outputFormat, size);
+						}
+					})) {
+						return;
+					}
+					if (writeStaticImage(request, response, staticFile, cacheKey, validator, eTag, lastModified, outputFormat, size)) {
+						return;
+					}
+				}
+				
 				//else wrap the response:
-				SVGFilterResponseWrapper wrappedResponse = new SVGFilterResponseWrapper(response,request,outputFormat);
+				final SVGFilterResponseWrapper wrappedResponse = new SVGFilterResponseWrapper(response,request,outputFormat,this.rasterizer,cache,
+						cacheKey,validator,lastModified,size);
 				chain.doFilter(req, wrappedResponse);
-				wrappedResponse.finishResponse();
+				//the SVG is buffered, it can be rasterized after the container thread is released:
+				if (async == null || !async.start(request, response, new AsyncRasterization.Rasterization() {
+					public boolean run() {
+						wrappedResponse.finishResponse();
+						return true;
+					}
+				})) {
+					wrappedResponse.finishResponse();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the image of the static SVG file, shedding the request if too many images are rasterized
+	 * @return <code>false</code> if the file can not be rasterized and nothing is written
+	 */
+	private boolean writeStaticImage(HttpServletRequest request, HttpServletResponse response, File file, String cacheKey, String validator,
+			String eTag, long lastModified, String outputFormat, RasterSize size) throws IOException {
+		RasterCache.Entry image = null;
+		try {
+			image = rasterize(file, request, cacheKey, validator, outputFormat, size);
+		} catch (RasterizationRejectedException e) {
+			rejectRequest(response, this.rasterizer.getLimiter(), e);
+			return true;
+		}
+		if (image == null) {
+			return false;
+		}
+		writeImage(response, image, eTag, lastModified);
+		return true;
+	}
+	
+	private void writeImage(HttpServletResponse response, RasterCache.Entry image, String eTag, long lastModified) throws IOException {
+		response.addHeader("Cache-Control", CACHE_CONTROL);
+		setValidators(response, eTag, lastModified);
+		writeImage(response, response.getOutputStream(), image);
+	}
+	
+	/**
+	 * Rasterizes static SVG file straight from the disk, with the tree built from it before if it is not changed,
+	 * and puts the image in the cache. Identical requests rasterized at the same time share the image.
+	 * @return the image or <code>null</code> if it can not be rasterized
+	 */
+	private RasterCache.Entry rasterize(final File file, HttpServletRequest request, final String cacheKey, final String validator,
+			final String outputFormat, final RasterSize size) throws RasterizationRejectedException {
+		final String uri = request.getRequestURL().toString();
+		final SVGRasterizer rasterizer = this.rasterizer;
+		final RasterCache cache = this.cache;
+		Callable<RasterCache.Entry> renderer = new Callable<RasterCache.Entry>() {
+			public RasterCache.Entry call() throws Exception {
+				RasterCache.Entry image = new RasterCache.Entry(validator, SVGRasterizer.getContentType(outputFormat),
+						rasterizer.rasterize(file, uri, validator, outputFormat, size));
+				if (cache != null) {
+					cache.put(cacheKey, image);
+				}
+				return image;
+			}
+		};
+		try {
+			RasterizationLimiter limiter = rasterizer.getLimiter();
+			return limiter == null ? renderer.call() : limiter.render(cacheKey.concat("\n").concat(validator), renderer);
+		} catch (RasterizationRejectedException e) {
+			throw e;
+		} catch (Exception e) {
+			Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Unable to rasterize ".concat(uri), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Sheds the request when too many images are rasterized, telling the client when to try again
+	 */
+	static void rejectRequest(HttpServletResponse response, RasterizationLimiter limiter) throws IOException {
+		rejectRequest(response, limiter, null);
+	}
+
+	/**
+	 * Answers the request of an image that was not rasterized, with 413 if the image is too large to be rasterized ever
+	 * and with 503 and the time to try again otherwise
+	 */
+	static void rejectRequest(HttpServletResponse response, RasterizationLimiter limiter, RasterizationRejectedException rejection)
+			throws IOException {
+		if (rejection != null && rejection.isTooLarge()) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "The image is too large");
+			return;
+		}
+		if (limiter != null) {
+			response.setIntHeader("Retry-After", limiter.getRetryAfter());
+		}
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many images are rasterized at the moment");
+	}
+	
+	/**
+	 * Writes the rasterized image with its length into the response
+	 */
+	static void writeImage(HttpServletResponse response, OutputStream output, RasterCache.Entry image) throws IOException {
+		response.setContentType(image.getContentType());
+		response.setContentLength(image.getImage().length);
+		output.write(image.getImage());
+		output.flush();
+		output.close();
+	}
+	
+	/**
+	 * Sets the ETag and, if known, the modification time of the source
+	 * @param lastModified modification time of a static source, -1 if unknown
+	 */
+	static void setValidators(HttpServletResponse response, String eTag, long lastModified) {
+		response.setHeader("ETag", eTag);
+		if (lastModified > 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the client has the image with the ETag or the image is not modified since the client got it
+	 */
+	static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String method = request.getMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			return false;
+		}
+		
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			//If-Modified-Since is ignored when If-None-Match is sent
+			String[] tags = ifNoneMatch.split(",");
+			for (int i = 0; i < tags.length; i++) {
+				String tag = tags[i].trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(eTag)) {
+					return true;
+				}
 			}
+			return false;
+		}
+		
+		if (lastModified <= 0) {
+			return false;
+		}
+		long ifModifiedSince = -1;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		//HTTP dates have no milliseconds
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+	
+	private String getCacheKey(HttpServletRequest request, String outputFormat, RasterSize size) {
+		return getCacheKey(request.getRequestURI(), request.getQueryString(), outputFormat, size);
+	}
+	
+	/**
+	 * @param uri the requested URI, with the context path
+	 * @param query the query string, <code>null</code> if there is none
+	 * @return key of the image in the cache
+	 */
+	static String getCacheKey(String uri, String query, String outputFormat, RasterSize size) {
+		StringBuffer key = new StringBuffer(outputFormat).append(':').append(size).append(':').append(uri);
+		if (query != null) {
+			key.append('?').append(query);
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * @return size requested with the parameters {@link #PARAMETER_WIDTH}, {@link #PARAMETER_HEIGHT} and {@link #PARAMETER_DPR},
+	 * within the limits of the init-params; sizes are rounded to whole pixels and ratios to hundredths, so there are not endless variants
+	 */
+	private RasterSize getRasterSize(HttpServletRequest request) {
+		return getRasterSize(request, this.maxWidth, this.maxHeight, this.maxDpr);
+	}
+	
+	/**
+	 * @return size requested with the parameters {@link #PARAMETER_WIDTH}, {@link #PARAMETER_HEIGHT} and {@link #PARAMETER_DPR}
+	 * within the provided limits
+	 */
+	static RasterSize getRasterSize(HttpServletRequest request, int maxWidth, int maxHeight, float maxDpr) {
+		return getRasterSize(request.getParameter(PARAMETER_WIDTH), request.getParameter(PARAMETER_HEIGHT), request.getParameter(PARAMETER_DPR),
+				maxWidth, maxHeight, maxDpr);
+	}
+	
+	/**
+	 * @return size of the values of the parameters {@link #PARAMETER_WIDTH}, {@link #PARAMETER_HEIGHT} and {@link #PARAMETER_DPR}
+	 * within the provided limits
+	 */
+	static RasterSize getRasterSize(String widthValue, String heightValue, String dprValue, int maxWidth, int maxHeight, float maxDpr) {
+		float width = Math.min(Math.round(getFloatParameter(widthValue)), maxWidth);
+		float height = Math.min(Math.round(getFloatParameter(heightValue)), maxHeight);
+		float scale = Math.min(Math.round(getFloatParameter(dprValue) * 100) / 100f, maxDpr);
+		if (width <= 0 && height <= 0 && (scale <= 0 || scale == 1)) {
+			return RasterSize.INTRINSIC;
+		}
+		return new RasterSize(width, height, scale);
+	}
+	
+	/**
+	 * @return value of the parameter, 0 if it is not set or not a positive number
+	 */
+	private static float getFloatParameter(String value) {
+		if (value == null || value.length() == 0) {
+			return 0;
+		}
+		try {
+			float number = Float.parseFloat(value.trim());
+			return number > 0 && !Float.isInfinite(number) ? number : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * @return the requested file if it is a static SVG file, <code>null</code> if the SVG is generated
+	 */
+	private File getStaticFile(HttpServletRequest request) {
+		String path = request.getServletPath();
+		if (path == null || !path.endsWith(STATIC_SVG_SUFFIX) || this.servletContext == null) {
+			return null;
+		}
+		String realPath = this.servletContext.getRealPath(path);
+		if (realPath == null) {
+			return null;
 		}
+		File file = new File(realPath);
+		return file.isFile() ? file : null;
 	}
 
 	/**
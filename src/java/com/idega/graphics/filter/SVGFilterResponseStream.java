@@ -5,19 +5,21 @@ package com.idega.graphics.filter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.batik.transcoder.TranscoderInput;
-import org.apache.batik.transcoder.TranscoderOutput;
-import org.apache.batik.transcoder.image.JPEGTranscoder;
-import org.apache.batik.transcoder.image.PNGTranscoder;
+import org.apache.batik.transcoder.TranscoderException;
 
 /**
  * @author tryggvil
  */
 public class SVGFilterResponseStream extends ServletOutputStream {
 
+	private static final Logger LOGGER = Logger.getLogger(SVGFilterResponseStream.class.getName());
+
 	//protected ByteArrayOutputStream baos = null;
 	//protected GZIPOutputStream gzipstream = null;
 	protected ByteArrayOutputStream buffer = null;
@@ -26,6 +28,13 @@ public class SVGFilterResponseStream extends ServletOutputStream {
 	protected HttpServletRequest request;
 	protected ServletOutputStream output = null;
 	protected String outputFormat=SVGFilter.FORMAT_PNG;
+	protected String characterEncoding = null;
+	protected SVGRasterizer rasterizer = new SVGRasterizer();
+	protected RasterCache cache = null;
+	protected String cacheKey = null;
+	protected String validator = null;
+	protected long lastModified = -1;
+	protected RasterSize size = RasterSize.INTRINSIC;
 
 	public SVGFilterResponseStream(HttpServletResponse response,HttpServletRequest request,String outputFormat) throws IOException {
 		super();
@@ -70,36 +79,91 @@ public class SVGFilterResponseStream extends ServletOutputStream {
 	}
 	
 	public void emitPNG(ServletOutputStream output) {
-		this.response.setContentType("image/png");
-		PNGTranscoder t = new PNGTranscoder();
-		//TranscoderInput input = new TranscoderInput(new StringReader(svgString));
-		String requestUri = getRequestedUri();
-		TranscoderInput input = new TranscoderInput(requestUri);
-		try {
-			TranscoderOutput tOutput = new TranscoderOutput(output);
-			t.transcode(input, tOutput);
-			output.flush();
-			output.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		emit(output, SVGFilter.FORMAT_PNG);
 	}
 
 	public void emitJPEG(ServletOutputStream output) {
-		this.response.setContentType("image/jpeg");
-		JPEGTranscoder t = new JPEGTranscoder();
-		String requestUri = getRequestedUri();
-		TranscoderInput input = new TranscoderInput(requestUri);
-		//TranscoderInput input = new TranscoderInput(new StringReader(svgString));
+		emit(output, SVGFilter.FORMAT_JPEG);
+	}
+	
+	/**
+	 * Writes the image rasterized from the buffered SVG, or the cached image if the SVG is not changed.
+	 * If the client already has the image only 304 is sent.
+	 */
+	protected void emit(ServletOutputStream output, String format) {
 		try {
-			TranscoderOutput tOutput = new TranscoderOutput(output);
-			t.transcode(input, tOutput);
-			output.flush();
-			output.close();
+			String validator = this.validator == null ? RasterCache.getContentValidator(this.buffer.toByteArray()) : this.validator;
+			if (this.cacheKey != null) {
+				String eTag = RasterCache.getETag(this.cacheKey, validator);
+				SVGFilter.setValidators(this.response, eTag, this.lastModified);
+				if (SVGFilter.isNotModified(this.request, eTag, this.lastModified)) {
+					this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					output.close();
+					return;
+				}
+			}
+			SVGFilter.writeImage(this.response, output, getImage(format, validator));
+		} catch (RasterizationRejectedException e) {
+			try {
+				SVGFilter.rejectRequest(this.response, this.rasterizer.getLimiter(), e);
+			} catch (IOException ioe) {
+				LOGGER.log(Level.WARNING, "Unable to reject ".concat(getRequestedUri()), ioe);
+			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			LOGGER.log(Level.WARNING, "Unable to rasterize ".concat(getRequestedUri()), e);
 		}
-	}	
+	}
+	
+	/**
+	 * @return the cached image, or the image rasterized by this request or an identical one rasterized at the same time
+	 */
+	protected RasterCache.Entry getImage(final String format, final String validator) throws TranscoderException, IOException,
+			RasterizationRejectedException {
+		if (this.cache != null) {
+			RasterCache.Entry image = this.cache.get(this.cacheKey, validator);
+			if (image != null) {
+				return image;
+			}
+		}
+		
+		RasterizationLimiter limiter = this.rasterizer.getLimiter();
+		if (limiter == null || this.cacheKey == null) {
+			return rasterize(format, validator);
+		}
+		return limiter.render(this.cacheKey.concat("\n").concat(validator), new Callable<RasterCache.Entry>() {
+			public RasterCache.Entry call() throws Exception {
+				return rasterize(format, validator);
+			}
+		});
+	}
+	
+	/**
+	 * @return the image rasterized from the buffered SVG, put in the cache
+	 */
+	private RasterCache.Entry rasterize(String format, String validator) throws TranscoderException, IOException,
+			RasterizationRejectedException {
+		RasterCache.Entry image = new RasterCache.Entry(validator, SVGRasterizer.getContentType(format), rasterize(format));
+		if (this.cache != null) {
+			this.cache.put(this.cacheKey, image);
+		}
+		return image;
+	}
+	
+	/**
+	 * Rasterizes with the provided rasterizer and keeps the images in the cache
+	 * @param validator validator of the SVG source, <code>null</code> to validate by the generated SVG
+	 * @param lastModified modification time of a static source, -1 if the SVG is generated
+	 * @param size size of the image
+	 */
+	public void setRasterizer(SVGRasterizer rasterizer, RasterCache cache, String cacheKey, String validator, long lastModified,
+			RasterSize size) {
+		this.rasterizer = rasterizer;
+		this.cache = cache;
+		this.cacheKey = cacheKey;
+		this.validator = validator;
+		this.lastModified = lastModified;
+		this.size = size;
+	}
 	
 	/*
 	public void emitSVG(ServletOutputStream output, String svgString) {
@@ -119,6 +183,22 @@ public class SVGFilterResponseStream extends ServletOutputStream {
 		}
 	}*/
 	
+	/**
+	 * Rasterizes the SVG from the buffered response body, so the page is not requested again.
+	 * The requested URI is the base of relative references in the SVG.
+	 */
+	protected byte[] rasterize(String format) throws TranscoderException, IOException, RasterizationRejectedException {
+		//	Written as bytes (no character encoding), the XML declaration tells the encoding
+		return this.rasterizer.rasterize(this.buffer.toByteArray(), this.characterEncoding, getRequestedUri(), format, this.size);
+	}
+	
+	/**
+	 * Sets the encoding the body was written with when it was written as characters
+	 */
+	public void setCharacterEncoding(String characterEncoding) {
+		this.characterEncoding = characterEncoding;
+	}
+	
 	protected String getRequestedUri(){
 		StringBuffer url = this.request.getRequestURL();
 		return url.toString();
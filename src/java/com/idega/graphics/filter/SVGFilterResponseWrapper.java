@@ -21,6 +21,12 @@ public class SVGFilterResponseWrapper extends HttpServletResponseWrapper {
 	protected ServletOutputStream stream = null;
 	protected PrintWriter writer = null;
 	private String outputFormat;
+	private SVGRasterizer rasterizer = null;
+	private RasterCache cache = null;
+	private String cacheKey = null;
+	private String validator = null;
+	private long lastModified = -1;
+	private RasterSize size = RasterSize.INTRINSIC;
 
 	public SVGFilterResponseWrapper(HttpServletResponse response,HttpServletRequest request,String outputFormat) {
 		super(response);
@@ -29,7 +35,7 @@ public class SVGFilterResponseWrapper extends HttpServletResponseWrapper {
 		this.outputFormat=outputFormat;
 		
 		//cache the content for 3600 seconds:
-		this.addHeader("Cache-Control","max-age=3600, must-revalidate");
+		this.addHeader("Cache-Control",SVGFilter.CACHE_CONTROL);
 		//this.addHeader("Expires","Fri, 30 Oct 2006 14:19:41 GMT");
 		//this.setHeader("Last-Modified","Fri, 30 Oct 2000 14:19:41 GMT");
 		//origResponse.setHeader("Last-Modified","Fri, 30 Oct 2000 14:19:41 GMT");
@@ -37,8 +43,29 @@ public class SVGFilterResponseWrapper extends HttpServletResponseWrapper {
 		
 	}
 
+	/**
+	 * @param cache where the rasterized image is kept, <code>null</code> to rasterize every time
+	 * @param validator validator of the SVG source, <code>null</code> to validate by the generated SVG
+	 * @param lastModified modification time of a static source, -1 if the SVG is generated
+	 * @param size size of the image
+	 */
+	public SVGFilterResponseWrapper(HttpServletResponse response,HttpServletRequest request,String outputFormat,SVGRasterizer rasterizer,
+			RasterCache cache,String cacheKey,String validator,long lastModified,RasterSize size) {
+		this(response,request,outputFormat);
+		this.rasterizer=rasterizer;
+		this.cache=cache;
+		this.cacheKey=cacheKey;
+		this.validator=validator;
+		this.lastModified=lastModified;
+		this.size=size;
+	}
+
 	public ServletOutputStream createOutputStream() throws IOException {
-		return (new SVGFilterResponseStream(this.origResponse,this.request,this.outputFormat));
+		SVGFilterResponseStream responseStream = new SVGFilterResponseStream(this.origResponse,this.request,this.outputFormat);
+		if (this.rasterizer != null) {
+			responseStream.setRasterizer(this.rasterizer,this.cache,this.cacheKey,this.validator,this.lastModified,this.size);
+		}
+		return responseStream;
 	}
 
 	public void finishResponse() {
@@ -80,7 +107,9 @@ public class SVGFilterResponseWrapper extends HttpServletResponseWrapper {
 			throw new IllegalStateException("getOutputStream() has already been called!");
 		}
 
-		this.stream = createOutputStream();
+		SVGFilterResponseStream responseStream = (SVGFilterResponseStream) createOutputStream();
+		responseStream.setCharacterEncoding(this.origResponse.getCharacterEncoding());
+		this.stream = responseStream;
 		this.writer = new PrintWriter(new OutputStreamWriter(this.stream, this.origResponse.getCharacterEncoding()));
 		return (this.writer);
 	}
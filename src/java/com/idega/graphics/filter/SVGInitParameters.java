@@ -0,0 +1,80 @@
+package com.idega.graphics.filter;
+
+import java.io.File;
+
+import javax.servlet.ServletException;
+
+/**
+ * Defaults and parsing of the init-params shared by {@link SVGFilter}, {@link SVGSpriteServlet} and
+ * {@link RasterCacheWarmUp}.
+ */
+class SVGInitParameters {
+
+	static final String STATIC_SVG_SUFFIX = ".psvg";
+
+	static final int DEFAULT_MAX_SIZE = 2048;
+	static final float DEFAULT_MAX_DPR = 3;
+	static final int DEFAULT_MAX_IMAGE_MEGAPIXELS = 16;
+	static final int DEFAULT_CACHE_DISK_SIZE_MB = 256;
+
+	private SVGInitParameters() {}
+
+	/**
+	 * @param value the value of the init-param, <code>null</code> or empty if it is not set
+	 * @return the number or the default value if the init-param is not set
+	 * @throws ServletException if the value is not a number
+	 */
+	static int getInt(String name, String value, int defaultValue) throws ServletException {
+		if (value == null || value.length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid value of init-param " + name + ": " + value);
+		}
+	}
+
+	/**
+	 * @param value the value of the init-param, <code>null</code> or empty if it is not set
+	 * @return the number or the default value if the init-param is not set
+	 * @throws ServletException if the value is not a finite number
+	 */
+	static float getFloat(String name, String value, float defaultValue) throws ServletException {
+		if (value == null || value.length() == 0) {
+			return defaultValue;
+		}
+		float number;
+		try {
+			number = Float.parseFloat(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid value of init-param " + name + ": " + value);
+		}
+		if (Float.isNaN(number) || Float.isInfinite(number)) {
+			throw new ServletException("Invalid value of init-param " + name + ": " + value);
+		}
+		return number;
+	}
+
+	/**
+	 * @param sizeMB megabytes of images kept in memory
+	 * @param directory directory of the disk tier, <code>null</code> or empty for none
+	 * @param diskSizeMB megabytes of images kept on disk
+	 * @return the cache or <code>null</code> if it has neither memory nor a directory
+	 */
+	static RasterCache createCache(int sizeMB, String directory, int diskSizeMB) {
+		File cacheDirectory = directory == null || directory.length() == 0 ? null : new File(directory);
+		if (sizeMB <= 0 && cacheDirectory == null) {
+			return null;
+		}
+		return new RasterCache(Math.max(0, sizeMB) * 1024L * 1024L, cacheDirectory, diskSizeMB * 1024L * 1024L);
+	}
+
+	/**
+	 * Limits the images of the rasterizer to the maximum size of the requests at the maximum device pixel ratio
+	 * @param maxPixels number of pixels of the largest image
+	 */
+	static void setMaxImageSize(SVGRasterizer rasterizer, int maxWidth, int maxHeight, float maxDpr, long maxPixels) {
+		rasterizer.setMaxImageSize((int) (maxWidth * maxDpr), (int) (maxHeight * maxDpr), maxPixels);
+	}
+}
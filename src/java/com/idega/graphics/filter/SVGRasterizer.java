@@ -0,0 +1,705 @@
+package com.idega.graphics.filter;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Dimension2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.batik.bridge.BridgeContext;
+import org.apache.batik.bridge.BridgeException;
+import org.apache.batik.bridge.GVTBuilder;
+import org.apache.batik.bridge.UserAgentAdapter;
+import org.apache.batik.bridge.ViewBox;
+import org.apache.batik.dom.svg.SAXSVGDocumentFactory;
+import org.apache.batik.ext.awt.image.GraphicsUtil;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.transcoder.TranscoderOutput;
+import org.apache.batik.transcoder.image.ImageTranscoder;
+import org.apache.batik.transcoder.image.JPEGTranscoder;
+import org.apache.batik.transcoder.image.PNGTranscoder;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.w3c.dom.svg.SVGDocument;
+
+import com.idega.graphics.util.DaemonThreadFactory;
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Rasterizes SVG documents into PNG or JPEG images with Batik, for {@link SVGFilter}. A rasterizer
+ * can be used by several threads at once.
+ * </p>
+ * <p>
+ * Static SVG files are parsed and built into a graphics node tree once; the trees of the most recently
+ * used files are kept, so rasterizing a file again (e.g. at another size) only paints the tree. Batik
+ * text nodes fill their layout caches while painting, so one tree is painted by one thread at a time.
+ * When all trees of a file are being painted, another one is built from a copy of its document, up to
+ * one for every processor. The kept trees are bounded by their number and by their estimated memory.
+ * </p>
+ * <p>
+ * The size of every image is computed from the size of the document and scaled down, keeping the
+ * aspect ratio, to fit into the maximum image size ({@link #setMaxImageSize(int, int, long)}) before
+ * anything is allocated. With a {@link RasterizationLimiter} the pixels of every image are then taken
+ * from its budget.
+ * </p>
+ * <p>
+ * With tiling turned on ({@link #setTiling(int, int)}), PNG images larger than the threshold are painted
+ * in horizontal strips by a pool of painters, each taking a tree of the document as above (the copies are
+ * built by the painters at once), and the strips are encoded in order while the following ones are painted.
+ * Only the strips being painted and the one being encoded are in memory, never the whole raster.
+ * </p>
+ */
+public class SVGRasterizer {
+
+	private static final Logger LOGGER = Logger.getLogger(SVGRasterizer.class.getName());
+
+	public static final String CONTENT_TYPE_PNG = "image/png";
+	public static final String CONTENT_TYPE_JPEG = "image/jpeg";
+
+	public static final int DEFAULT_DOCUMENT_CACHE_SIZE = 64;
+	public static final int DEFAULT_DOCUMENT_CACHE_SIZE_MB = 32;
+
+	private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+	private static final int STRIP_HEIGHT = 256;
+	//	Rough memory of a built tree, its document and caches for every byte of the file it was parsed from
+	private static final int TREE_BYTES_PER_FILE_BYTE = 10;
+
+	private static final String WARM_UP_URI = "file:/idega-svg-warm-up.svg";
+	private static final String WARM_UP_SVG = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"16\" height=\"16\">" +
+			"<rect x=\"2\" y=\"2\" width=\"12\" height=\"12\" fill=\"#369\" stroke=\"black\"/><text x=\"4\" y=\"12\">i</text></svg>";
+
+	/**
+	 * Trees of one document, each painted by one thread at a time. The first tree is built from the parsed
+	 * document, the others from copies of it when all trees are being painted, up to {@link #getTreesPerDocument()}.
+	 * The validator is known before the first tree is built.
+	 */
+	private class TreePool {
+		private final String validator;
+		private final long treeBytes;
+		private final FutureTask<SVGTree> template;
+		private final LinkedList<SVGTree> idle = new LinkedList<SVGTree>();
+		private int trees = 0;
+
+		/**
+		 * @param treeBytes estimated memory of a tree
+		 * @param builder builds the first tree, run by {@link #buildTemplate()}
+		 */
+		private TreePool(String validator, long treeBytes, final Callable<SVGTree> builder) {
+			this.validator = validator;
+			this.treeBytes = treeBytes;
+			this.template = new FutureTask<SVGTree>(new Callable<SVGTree>() {
+				public SVGTree call() throws Exception {
+					SVGTree tree = builder.call();
+					synchronized (TreePool.this) {
+						TreePool.this.idle.add(tree);
+						TreePool.this.trees++;
+					}
+					return tree;
+				}
+			});
+		}
+
+		/**
+		 * Builds the first tree on this thread
+		 */
+		private void buildTemplate() {
+			this.template.run();
+		}
+
+		/**
+		 * @return the first tree, built by this thread or another one
+		 */
+		private SVGTree getTemplate() throws TranscoderException, IOException {
+			try {
+				return this.template.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TranscoderException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof Exception) {
+					throw new TranscoderException((Exception) cause);
+				}
+				throw new TranscoderException(cause.toString());
+			}
+		}
+
+		/**
+		 * @return a tree nobody else paints until it is released, waits for one if all trees that may be built are being painted
+		 */
+		private SVGTree acquire() throws TranscoderException, IOException {
+			SVGTree template = getTemplate();
+			synchronized (this) {
+				while (this.idle.isEmpty() && this.trees >= getTreesPerDocument()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new TranscoderException(e);
+					}
+				}
+				if (!this.idle.isEmpty()) {
+					return this.idle.removeFirst();
+				}
+				this.trees++;
+			}
+
+			SVGTree tree = null;
+			try {
+				SVGDocument copy = null;
+				synchronized (template.getDocument()) {
+					copy = (SVGDocument) template.getDocument().cloneNode(true);
+				}
+				tree = build(copy, template.getValidator());
+			} finally {
+				if (tree == null) {
+					synchronized (this) {
+						this.trees--;
+						notifyAll();
+					}
+				}
+			}
+			treeAdded(this);
+			return tree;
+		}
+
+		private synchronized void release(SVGTree tree) {
+			this.idle.addFirst(tree);
+			notifyAll();
+		}
+
+		/**
+		 * @return estimated memory of the trees built
+		 */
+		private synchronized long getBytes() {
+			return this.treeBytes * Math.max(1, this.trees);
+		}
+	}
+
+	private final Map<String, TreePool> trees;
+	private final long maxTreeBytes;
+	private final RasterizationLimiter limiter;
+	private ExecutorService tileExecutor = null;
+	private int tileThreads = 0;
+	private long tileThreshold = Long.MAX_VALUE;
+	private int maxImageWidth = Integer.MAX_VALUE;
+	private int maxImageHeight = Integer.MAX_VALUE;
+	private long maxImagePixels = Long.MAX_VALUE;
+
+	public SVGRasterizer() {
+		this(DEFAULT_DOCUMENT_CACHE_SIZE, null);
+	}
+
+	/**
+	 * @param documentCacheSize number of static documents whose trees are kept
+	 * @param limiter limits the pixels rasterized at once, <code>null</code> for no limit
+	 */
+	public SVGRasterizer(int documentCacheSize, RasterizationLimiter limiter) {
+		this(documentCacheSize, DEFAULT_DOCUMENT_CACHE_SIZE_MB * 1024L * 1024L, limiter);
+	}
+
+	/**
+	 * @param documentCacheSize number of static documents whose trees are kept
+	 * @param documentCacheBytes estimated memory of the trees kept
+	 * @param limiter limits the pixels rasterized at once, <code>null</code> for no limit
+	 */
+	public SVGRasterizer(final int documentCacheSize, long documentCacheBytes, RasterizationLimiter limiter) {
+		this.limiter = limiter;
+		this.maxTreeBytes = documentCacheBytes;
+		this.trees = new LinkedHashMap<String, TreePool>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, TreePool> eldest) {
+				return size() > documentCacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Limits the size of the images, larger ones are scaled down keeping the aspect ratio
+	 * @param maxWidth width in image pixels
+	 * @param maxHeight height in image pixels
+	 * @param maxPixels number of pixels
+	 */
+	public synchronized void setMaxImageSize(int maxWidth, int maxHeight, long maxPixels) {
+		this.maxImageWidth = Math.max(1, maxWidth);
+		this.maxImageHeight = Math.max(1, maxHeight);
+		this.maxImagePixels = Math.max(1, maxPixels);
+	}
+
+	/**
+	 * Paints large PNG images in strips on a pool of threads
+	 * @param threads number of strips painted at once, 0 to turn tiling off
+	 * @param thresholdPixels number of pixels of the smallest image painted in strips
+	 */
+	public synchronized void setTiling(int threads, int thresholdPixels) {
+		if (this.tileExecutor != null) {
+			this.tileExecutor.shutdown();
+			this.tileExecutor = null;
+		}
+		this.tileThreads = threads;
+		this.tileThreshold = thresholdPixels;
+		if (threads > 0) {
+			this.tileExecutor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("SVGTiles"));
+		}
+	}
+
+	/**
+	 * @param outputFormat {@link SVGFilter#FORMAT_PNG} or {@link SVGFilter#FORMAT_JPEG}
+	 * @return the encoded image
+	 */
+	public byte[] rasterize(TranscoderInput input, String outputFormat) throws TranscoderException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		createTranscoder(outputFormat).transcode(input, new TranscoderOutput(output));
+		return output.toByteArray();
+	}
+
+	/**
+	 * Rasterizes generated SVG, the tree built from it is not kept
+	 * @param svg the document
+	 * @param characterEncoding encoding of the document, <code>null</code> if the XML declaration tells it
+	 * @param uri base of relative references in the document
+	 * @param size size of the image
+	 * @return the encoded image
+	 */
+	public byte[] rasterize(byte[] svg, String characterEncoding, String uri, String outputFormat, RasterSize size)
+			throws TranscoderException, IOException, RasterizationRejectedException {
+		SAXSVGDocumentFactory factory = new SAXSVGDocumentFactory(XMLResourceDescriptor.getXMLParserClassName());
+		InputStream input = new ByteArrayInputStream(svg);
+		SVGDocument document = null;
+		if (characterEncoding == null) {
+			document = factory.createSVGDocument(uri, input);
+		}
+		else {
+			document = factory.createSVGDocument(uri, new InputStreamReader(input, characterEncoding));
+		}
+		final SVGTree tree = build(document, null);
+		TreePool pool = new TreePool(null, 0, new Callable<SVGTree>() {
+			public SVGTree call() {
+				return tree;
+			}
+		});
+		pool.buildTemplate();
+		return rasterize(pool, outputFormat, size);
+	}
+
+	/**
+	 * Rasterizes static SVG file, using the tree built from it before if the file is not changed
+	 * @param uri base of relative references in the file
+	 * @param validator validator of the file
+	 * @param size size of the image
+	 * @return the encoded image
+	 */
+	public byte[] rasterize(File file, String uri, String validator, String outputFormat, RasterSize size) throws TranscoderException,
+			IOException, RasterizationRejectedException {
+		return rasterize(getTrees(file, uri, validator), outputFormat, size);
+	}
+
+	/**
+	 * @return size in image pixels of the image {@link #paint(File, String, String, RasterSize)} makes of the static SVG file,
+	 * the file is parsed (and its tree kept) but not painted
+	 */
+	Dimension getImageSize(File file, String uri, String validator, RasterSize size) throws TranscoderException, IOException {
+		float[] imageSize = getImageSize(getTrees(file, uri, validator).getTemplate(), size);
+		return new Dimension(getImageSize(imageSize[0]), getImageSize(imageSize[1]));
+	}
+
+	/**
+	 * Paints static SVG file into a new image with transparent background, using the tree built from it before
+	 * if the file is not changed
+	 * @return the image, not encoded
+	 */
+	BufferedImage paint(File file, String uri, String validator, RasterSize size) throws TranscoderException, IOException {
+		TreePool pool = getTrees(file, uri, validator);
+		SVGTree tree = pool.acquire();
+		try {
+			float[] imageSize = getImageSize(tree, size);
+			return paint(tree, imageSize[0], imageSize[1], SVGFilter.FORMAT_PNG);
+		} finally {
+			pool.release(tree);
+		}
+	}
+
+	/**
+	 * @param pool trees of the document, painted by other threads too if the document is kept
+	 */
+	private byte[] rasterize(TreePool pool, String outputFormat, RasterSize size) throws TranscoderException, IOException,
+			RasterizationRejectedException {
+		float[] imageSize = getImageSize(pool.getTemplate(), size);
+		float width = imageSize[0];
+		float height = imageSize[1];
+		long imagePixels = (long) getImageSize(width) * getImageSize(height);
+		ExecutorService tileExecutor = null;
+		int tileThreads = 0;
+		synchronized (this) {
+			if (imagePixels >= this.tileThreshold && !SVGFilter.FORMAT_JPEG.equals(outputFormat)) {
+				tileExecutor = this.tileExecutor;
+				tileThreads = this.tileThreads;
+			}
+		}
+		long rasterPixels = imagePixels;
+		int painters = 0;
+		if (tileExecutor != null) {
+			//	The strips being painted and the one being encoded
+			painters = Math.min(tileThreads, getStrips(getImageSize(height)));
+			rasterPixels = Math.min(imagePixels, (long) (painters + 1) * getImageSize(width) * STRIP_HEIGHT);
+		}
+		int pixels = this.limiter == null ? 0 : this.limiter.acquirePixels(rasterPixels);
+		try {
+			if (tileExecutor != null) {
+				return rasterizeInStrips(pool, width, height, tileExecutor, painters);
+			}
+			SVGTree tree = pool.acquire();
+			BufferedImage image = null;
+			try {
+				image = paint(tree, width, height, outputFormat);
+			} finally {
+				pool.release(tree);
+			}
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+			createTranscoder(outputFormat).writeImage(image, new TranscoderOutput(output));
+			return output.toByteArray();
+		} finally {
+			if (pixels > 0) {
+				this.limiter.releasePixels(pixels);
+			}
+		}
+	}
+
+	private static int getStrips(int imageHeight) {
+		return (imageHeight + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+	}
+
+	/**
+	 * Paints the strips of a PNG image on the tile executor and encodes them in order. Every painter takes a tree
+	 * from the pool of the document, so the copies are built on the tile threads and kept for later requests.
+	 * @param painters number of strips painted while one is encoded
+	 */
+	private byte[] rasterizeInStrips(TreePool pool, float width, float height, ExecutorService executor, int painters)
+			throws TranscoderException {
+		int imageWidth = getImageSize(width);
+		int imageHeight = getImageSize(height);
+		int strips = getStrips(imageHeight);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		LinkedList<Future<BufferedImage>> painting = new LinkedList<Future<BufferedImage>>();
+		PNGStreamEncoder encoder = null;
+		try {
+			encoder = new PNGStreamEncoder(output, imageWidth, imageHeight, true);
+			int next = 0;
+			for (int strip = 0; strip < strips; strip++) {
+				for (; next < strips && painting.size() < painters; next++) {
+					painting.add(paintStrip(executor, pool, width, height, imageWidth, next * STRIP_HEIGHT,
+							Math.min(STRIP_HEIGHT, imageHeight - next * STRIP_HEIGHT)));
+				}
+				BufferedImage rows = painting.removeFirst().get();
+				//	The painters go on with the next strips while this one is encoded
+				for (; next < strips && painting.size() < painters; next++) {
+					painting.add(paintStrip(executor, pool, width, height, imageWidth, next * STRIP_HEIGHT,
+							Math.min(STRIP_HEIGHT, imageHeight - next * STRIP_HEIGHT)));
+				}
+				encoder.writeRows(rows);
+			}
+			encoder.finish();
+		} catch (IOException e) {
+			throw new TranscoderException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TranscoderException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TranscoderException) {
+				throw (TranscoderException) cause;
+			}
+			if (cause instanceof Exception) {
+				throw new TranscoderException((Exception) cause);
+			}
+			throw new TranscoderException(cause.toString());
+		} finally {
+			if (encoder != null) {
+				encoder.close();
+			}
+			for (Future<BufferedImage> future: painting) {
+				future.cancel(false);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	private Future<BufferedImage> paintStrip(ExecutorService executor, final TreePool pool, final float width, final float height,
+			final int imageWidth, final int y, final int stripHeight) {
+		return executor.submit(new Callable<BufferedImage>() {
+			public BufferedImage call() throws Exception {
+				SVGTree painter = pool.acquire();
+				try {
+					return paint(painter, getTransform(painter, width, height), imageWidth, y, stripHeight, false);
+				} finally {
+					pool.release(painter);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the limiter of the pixels rasterized at once, <code>null</code> if there is no limit
+	 */
+	public RasterizationLimiter getLimiter() {
+		return this.limiter;
+	}
+
+	/**
+	 * Loads the Batik classes, parser and fonts by rasterizing a small document
+	 */
+	public void warmUp() {
+		long start = System.currentTimeMillis();
+		try {
+			TranscoderInput input = new TranscoderInput(new StringReader(WARM_UP_SVG));
+			input.setURI(WARM_UP_URI);
+			rasterize(input, SVGFilter.FORMAT_PNG);
+		} catch (TranscoderException e) {
+			LOGGER.log(Level.WARNING, "Unable to warm up SVG rasterizer", e);
+			return;
+		}
+		LOGGER.info(new StringBuffer("SVG rasterizer warmed up in ").append(System.currentTimeMillis() - start).append(" ms").toString());
+	}
+
+	/**
+	 * Forgets the trees of all documents
+	 */
+	public void clear() {
+		synchronized (this.trees) {
+			this.trees.clear();
+		}
+	}
+
+	/**
+	 * Forgets the trees and stops the strip painters
+	 */
+	public void shutdown() {
+		clear();
+		setTiling(0, 0);
+	}
+
+	/**
+	 * @return content type of images in the format
+	 */
+	public static String getContentType(String outputFormat) {
+		return SVGFilter.FORMAT_JPEG.equals(outputFormat) ? CONTENT_TYPE_JPEG : CONTENT_TYPE_PNG;
+	}
+
+	protected ImageTranscoder createTranscoder(String outputFormat) {
+		if (SVGFilter.FORMAT_JPEG.equals(outputFormat)) {
+			return new JPEGTranscoder();
+		}
+		return new PNGTranscoder();
+	}
+
+	/**
+	 * @return trees of the file, the first one built by this thread or another one
+	 */
+	private TreePool getTrees(final File file, final String uri, final String validator) throws TranscoderException, IOException {
+		TreePool pool = null;
+		boolean building = false;
+		synchronized (this.trees) {
+			pool = this.trees.get(uri);
+			if (pool == null || !pool.validator.equals(validator)) {
+				pool = new TreePool(validator, file.length() * TREE_BYTES_PER_FILE_BYTE, new Callable<SVGTree>() {
+					public SVGTree call() throws Exception {
+						return build(file, uri, validator);
+					}
+				});
+				this.trees.put(uri, pool);
+				building = true;
+			}
+		}
+
+		if (building) {
+			pool.buildTemplate();
+			treeAdded(pool);
+		}
+		try {
+			pool.getTemplate();
+		} catch (IOException e) {
+			forget(uri, pool);
+			throw e;
+		} catch (TranscoderException e) {
+			//	Not keeping the failure, the next request tries again
+			forget(uri, pool);
+			throw e;
+		}
+		return pool;
+	}
+
+	private void forget(String uri, TreePool pool) {
+		synchronized (this.trees) {
+			if (this.trees.get(uri) == pool) {
+				this.trees.remove(uri);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the least recently used documents while the trees kept take more memory than allowed
+	 */
+	private void treeAdded(TreePool added) {
+		if (added.treeBytes == 0) {
+			return;
+		}
+		synchronized (this.trees) {
+			long bytes = 0;
+			for (TreePool pool: this.trees.values()) {
+				bytes += pool.getBytes();
+			}
+			for (Iterator<TreePool> iterator = this.trees.values().iterator(); iterator.hasNext() && bytes > this.maxTreeBytes;) {
+				TreePool eldest = iterator.next();
+				if (eldest != added) {
+					iterator.remove();
+					bytes -= eldest.getBytes();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of trees built for a document at most, so that many threads can paint it at once
+	 */
+	private int getTreesPerDocument() {
+		synchronized (this) {
+			return Math.max(Runtime.getRuntime().availableProcessors(), this.tileThreads);
+		}
+	}
+
+	private SVGTree build(File file, String uri, String validator) throws IOException, TranscoderException {
+		SAXSVGDocumentFactory factory = new SAXSVGDocumentFactory(XMLResourceDescriptor.getXMLParserClassName());
+		SVGDocument document = null;
+		InputStream input = new BufferedInputStream(new FileInputStream(file));
+		try {
+			document = factory.createSVGDocument(uri, input);
+		} finally {
+			IOUtil.close(input);
+		}
+		return build(document, validator);
+	}
+
+	private SVGTree build(SVGDocument document, String validator) throws TranscoderException {
+		BridgeContext context = new BridgeContext(new UserAgentAdapter());
+		context.setDynamic(false);
+		GraphicsNode root = null;
+		try {
+			root = new GVTBuilder().build(context, document);
+		} catch (BridgeException e) {
+			throw new TranscoderException(e);
+		}
+		Dimension2D size = context.getDocumentSize();
+		return new SVGTree(validator, document, context, root, (float) size.getWidth(), (float) size.getHeight());
+	}
+
+	/**
+	 * Paints the tree into a new image of the provided size, the document is fitted like the transcoders do
+	 */
+	private BufferedImage paint(SVGTree tree, float width, float height, String outputFormat) throws TranscoderException {
+		int imageHeight = getImageSize(height);
+		return paint(tree, getTransform(tree, width, height), getImageSize(width), 0, imageHeight, SVGFilter.FORMAT_JPEG.equals(outputFormat));
+	}
+
+	/**
+	 * @return transform fitting the document of the tree into an image of the provided size
+	 */
+	private AffineTransform getTransform(SVGTree tree, float width, float height) throws TranscoderException {
+		AffineTransform transform = ViewBox.getPreserveAspectRatioTransform(tree.getDocument().getRootElement(), width, height);
+		if (transform.isIdentity() && (width != tree.getWidth() || height != tree.getHeight())) {
+			float scale = Math.min(width / tree.getWidth(), height / tree.getHeight());
+			transform = AffineTransform.getScaleInstance(scale, scale);
+		}
+		if (tree.getViewingTransform() != null) {
+			//	The tree was built with the transform for the size of the document, only the difference is painted
+			try {
+				transform.concatenate(tree.getViewingTransform().createInverse());
+			} catch (NoninvertibleTransformException e) {
+				throw new TranscoderException(e);
+			}
+		}
+		return transform;
+	}
+
+	/**
+	 * Paints the rows of the image starting at y into a new image of the provided height
+	 */
+	private BufferedImage paint(SVGTree tree, AffineTransform transform, int imageWidth, int y, int imageHeight, boolean isJpeg) {
+		BufferedImage image = new BufferedImage(imageWidth, imageHeight, isJpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = GraphicsUtil.createGraphics(image);
+		try {
+			if (isJpeg) {
+				g.setColor(Color.WHITE);
+				g.fillRect(0, 0, imageWidth, imageHeight);
+			}
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.clipRect(0, 0, imageWidth, imageHeight);
+			g.translate(0, -y);
+			g.transform(transform);
+			tree.getRoot().paint(g);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * @return width and height in image pixels of the image of the document, within the maximum image size
+	 */
+	private float[] getImageSize(SVGTree tree, RasterSize size) {
+		float width = size.getImageWidth(tree.getWidth(), tree.getHeight());
+		float height = size.getImageHeight(tree.getWidth(), tree.getHeight());
+		if (!(width > 0) || !(height > 0)) {
+			//	Documents without a size (or NaN) get the smallest image
+			return new float[] {1, 1};
+		}
+		double scale = 1;
+		synchronized (this) {
+			scale = Math.min(scale, this.maxImageWidth / (double) width);
+			scale = Math.min(scale, this.maxImageHeight / (double) height);
+			scale = Math.min(scale, Math.sqrt(this.maxImagePixels / ((double) width * height)));
+		}
+		if (scale < 1) {
+			width = (float) Math.max(1, Math.floor(width * scale));
+			height = (float) Math.max(1, Math.floor(height * scale));
+		}
+		return new float[] {width, height};
+	}
+
+	private static int getImageSize(float size) {
+		return Math.max(1, (int) (size + 0.5f));
+	}
+}
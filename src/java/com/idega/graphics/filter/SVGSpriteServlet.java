@@ -0,0 +1,458 @@
+package com.idega.graphics.filter;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.batik.transcoder.TranscoderException;
+
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Rasterizes a set of static *.psvg icons into one atlas image, so a page needs one request and one image
+ * instead of one for every icon. The icons are listed with the parameter {@link #PARAMETER_ICONS} (paths in
+ * the web application, separated by commas) or in a *.txt manifest file given with {@link #PARAMETER_MANIFEST}
+ * (one path on every line, relative to the manifest, lines starting with # are ignored). Files under WEB-INF
+ * and META-INF can not be used. Every icon is rasterized at the size given with the same parameters as for
+ * {@link SVGFilter}.
+ * </p>
+ * <p>
+ * The extension of the requested path selects what is returned for the set: <code>.png</code> the atlas image,
+ * <code>.css</code> a style sheet with a class for every icon (named after its file) and <code>.json</code> the
+ * coordinates of the icons in the image. E.g. <code>/svgsprite/toolbar.css?manifest=/icons/toolbar.txt&amp;dpr=2</code>
+ * refers to the image <code>/svgsprite/toolbar.png</code> with the same parameters.
+ * </p>
+ * <p>
+ * The image, style sheet and map are made and cached together, and made again when any of the files changes.
+ * The atlas is made within the limits of the {@link RasterizationLimiter} of {@link SVGFilter} (or a limiter of its
+ * own when the filter does not run): its pixels are taken from the budget and identical requests made at the same
+ * time share one atlas. Atlases larger than {@link #INIT_PARAM_MAX_ATLAS_MEGAPIXELS} million pixels are answered with 413.
+ * </p>
+ * <p>
+ * The icons are read from the disk, so the filters that would run for the files themselves (e.g. access control) do
+ * not run for them. The servlet answers every request with 404 unless {@link #INIT_PARAM_STATIC_FILES_BYPASS_CHAIN} is
+ * <code>true</code>, which should only be set when the *.psvg files are public.
+ * </p>
+ */
+public class SVGSpriteServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger LOGGER = Logger.getLogger(SVGSpriteServlet.class.getName());
+
+	public static final String PARAMETER_ICONS = "icons";
+	public static final String PARAMETER_MANIFEST = "manifest";
+
+	public static final String INIT_PARAM_STATIC_FILES_BYPASS_CHAIN = SVGFilter.INIT_PARAM_STATIC_FILES_BYPASS_CHAIN;
+	public static final String INIT_PARAM_MAX_ICONS = "maxIcons";
+	public static final String INIT_PARAM_MAX_ICON_WIDTH = "maxIconWidth";
+	public static final String INIT_PARAM_MAX_ICON_HEIGHT = "maxIconHeight";
+	public static final String INIT_PARAM_MAX_DPR = SVGFilter.INIT_PARAM_MAX_DPR;
+	public static final String INIT_PARAM_MAX_ATLAS_MEGAPIXELS = "maxAtlasMegapixels";
+	public static final String INIT_PARAM_CLASS_PREFIX = "classPrefix";
+	public static final String INIT_PARAM_CACHE_SIZE = SVGFilter.INIT_PARAM_CACHE_SIZE;
+	public static final String INIT_PARAM_CACHE_DIRECTORY = SVGFilter.INIT_PARAM_CACHE_DIRECTORY;
+	public static final String INIT_PARAM_CACHE_DISK_SIZE = SVGFilter.INIT_PARAM_CACHE_DISK_SIZE;
+
+	private static final String TYPE_IMAGE = "png";
+	private static final String TYPE_STYLE_SHEET = "css";
+	private static final String TYPE_MAP = "json";
+
+	private static final String CONTENT_TYPE_STYLE_SHEET = "text/css; charset=UTF-8";
+	private static final String CONTENT_TYPE_MAP = "application/json; charset=UTF-8";
+
+	private static final String IMAGE_URL_PLACEHOLDER = "{atlas}";
+	private static final String MANIFEST_SUFFIX = ".txt";
+	private static final String[] PROTECTED_DIRECTORIES = {"WEB-INF", "META-INF"};
+	private static final String STATIC_SVG_SUFFIX = SVGInitParameters.STATIC_SVG_SUFFIX;
+
+	private static final int DEFAULT_MAX_ICONS = 256;
+	private static final int DEFAULT_MAX_ICON_SIZE = 512;
+	private static final float DEFAULT_MAX_DPR = SVGInitParameters.DEFAULT_MAX_DPR;
+	private static final int DEFAULT_MAX_ATLAS_MEGAPIXELS = 16;
+	private static final String DEFAULT_CLASS_PREFIX = "svg-sprite";
+	private static final int DEFAULT_CACHE_SIZE_MB = 4;
+	private static final int DEFAULT_CACHE_DISK_SIZE_MB = 64;
+
+	private SVGRasterizer rasterizer;
+	private RasterizationLimiter limiter;
+	private RasterCache cache;
+	private int maxIcons = DEFAULT_MAX_ICONS;
+	private int maxIconWidth = DEFAULT_MAX_ICON_SIZE;
+	private int maxIconHeight = DEFAULT_MAX_ICON_SIZE;
+	private float maxDpr = DEFAULT_MAX_DPR;
+	private long maxAtlasPixels = DEFAULT_MAX_ATLAS_MEGAPIXELS * 1000000L;
+	private String classPrefix = DEFAULT_CLASS_PREFIX;
+	private boolean enabled = false;
+
+	/**
+	 * Icon requested for the atlas
+	 */
+	private static class Icon {
+		private final String path;
+		private final File file;
+
+		private Icon(String path, File file) {
+			this.path = path;
+			this.file = file;
+		}
+	}
+
+	@Override
+	public void init(ServletConfig config) throws ServletException {
+		super.init(config);
+		this.enabled = Boolean.valueOf(config.getInitParameter(INIT_PARAM_STATIC_FILES_BYPASS_CHAIN)).booleanValue();
+		if (!this.enabled) {
+			LOGGER.info("Sprites of static SVG files are off, they are served only with the init-param "
+					+ INIT_PARAM_STATIC_FILES_BYPASS_CHAIN + " set to true");
+		}
+		this.maxIcons = getIntInitParameter(config, INIT_PARAM_MAX_ICONS, DEFAULT_MAX_ICONS);
+		this.maxIconWidth = getIntInitParameter(config, INIT_PARAM_MAX_ICON_WIDTH, DEFAULT_MAX_ICON_SIZE);
+		this.maxIconHeight = getIntInitParameter(config, INIT_PARAM_MAX_ICON_HEIGHT, DEFAULT_MAX_ICON_SIZE);
+		this.maxDpr = getFloatInitParameter(config, INIT_PARAM_MAX_DPR, DEFAULT_MAX_DPR);
+		this.maxAtlasPixels = getIntInitParameter(config, INIT_PARAM_MAX_ATLAS_MEGAPIXELS, DEFAULT_MAX_ATLAS_MEGAPIXELS) * 1000000L;
+		String prefix = config.getInitParameter(INIT_PARAM_CLASS_PREFIX);
+		if (prefix != null && prefix.length() > 0) {
+			this.classPrefix = prefix;
+		}
+
+		//	Every icon is a document of its own
+		this.limiter = SVGFilter.getSharedLimiter(config.getServletContext());
+		this.rasterizer = new SVGRasterizer(this.maxIcons, this.limiter);
+		SVGInitParameters.setMaxImageSize(this.rasterizer, this.maxIconWidth, this.maxIconHeight, this.maxDpr,
+				(long) (this.maxIconWidth * this.maxDpr) * (long) (this.maxIconHeight * this.maxDpr));
+		this.cache = SVGInitParameters.createCache(getIntInitParameter(config, INIT_PARAM_CACHE_SIZE, DEFAULT_CACHE_SIZE_MB),
+				config.getInitParameter(INIT_PARAM_CACHE_DIRECTORY), getIntInitParameter(config, INIT_PARAM_CACHE_DISK_SIZE, DEFAULT_CACHE_DISK_SIZE_MB));
+	}
+
+	private int getIntInitParameter(ServletConfig config, String name, int defaultValue) throws ServletException {
+		return SVGInitParameters.getInt(name, config.getInitParameter(name), defaultValue);
+	}
+
+	private float getFloatInitParameter(ServletConfig config, String name, float defaultValue) throws ServletException {
+		return SVGInitParameters.getFloat(name, config.getInitParameter(name), defaultValue);
+	}
+
+	@Override
+	public void destroy() {
+		this.cache = null;
+		if (this.rasterizer != null) {
+			this.rasterizer.shutdown();
+		}
+		super.destroy();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String type = getType(request.getPathInfo());
+		if (!this.enabled || type == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		List<File> sourceFiles = new ArrayList<File>();
+		List<Icon> icons = null;
+		try {
+			icons = getIcons(request, sourceFiles);
+		} catch (IllegalArgumentException e) {
+			//	The message is not sent, it may name files of the web application
+			LOGGER.fine(e.getMessage());
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid icons requested");
+			return;
+		}
+		if (icons.isEmpty()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No icons requested");
+			return;
+		}
+
+		RasterSize size = SVGFilter.getRasterSize(request, this.maxIconWidth, this.maxIconHeight, this.maxDpr);
+		StringBuffer key = new StringBuffer().append(size);
+		StringBuffer validators = new StringBuffer();
+		long lastModified = -1;
+		for (Icon icon: icons) {
+			key.append(':').append(icon.path);
+		}
+		for (File file: sourceFiles) {
+			validators.append(file.getPath()).append('=').append(RasterCache.getFileValidator(file)).append('\n');
+			lastModified = Math.max(lastModified, file.lastModified());
+		}
+		String validator = RasterCache.getContentValidator(validators.toString().getBytes("UTF-8"));
+		String eTag = RasterCache.getETag(getRequestKey(request), validator);
+
+		response.addHeader("Cache-Control", SVGFilter.CACHE_CONTROL);
+		SVGFilter.setValidators(response, eTag, lastModified);
+		if (SVGFilter.isNotModified(request, eTag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		RasterCache.Entry entry = null;
+		try {
+			entry = getEntry(type, key.toString(), validator, icons, request, size);
+		} catch (RasterizationRejectedException e) {
+			//	The caching headers are not for the error
+			response.reset();
+			SVGFilter.rejectRequest(response, this.limiter, e);
+			return;
+		}
+		if (entry == null) {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+		if (TYPE_STYLE_SHEET.equals(type)) {
+			String css = new String(entry.getImage(), "UTF-8").replace(IMAGE_URL_PLACEHOLDER, getImageUrl(request));
+			entry = new RasterCache.Entry(validator, entry.getContentType(), css.getBytes("UTF-8"));
+		}
+		SVGFilter.writeImage(response, response.getOutputStream(), entry);
+	}
+
+	/**
+	 * @return the image, style sheet or map of the atlas, made with the others if it is not cached
+	 */
+	private RasterCache.Entry getEntry(final String type, final String key, final String validator, final List<Icon> icons,
+			final HttpServletRequest request, final RasterSize size) throws RasterizationRejectedException {
+		final RasterCache cache = this.cache;
+		if (cache != null) {
+			RasterCache.Entry entry = cache.get(type.concat(":").concat(key), validator);
+			if (entry != null) {
+				return entry;
+			}
+		}
+
+		Callable<RasterCache.Entry> maker = new Callable<RasterCache.Entry>() {
+			public RasterCache.Entry call() throws Exception {
+				SpriteAtlas atlas = createAtlas(icons, request, size);
+				int pixels = SVGSpriteServlet.this.limiter.acquirePixels(atlas.getPixels() + atlas.getLargestSpritePixels());
+				RasterCache.Entry image = null;
+				try {
+					image = new RasterCache.Entry(validator, SVGRasterizer.CONTENT_TYPE_PNG, atlas.getImage(getPainter(icons, request, size)));
+				} finally {
+					SVGSpriteServlet.this.limiter.releasePixels(pixels);
+				}
+				RasterCache.Entry styleSheet = new RasterCache.Entry(validator, CONTENT_TYPE_STYLE_SHEET,
+						atlas.getStyleSheet(IMAGE_URL_PLACEHOLDER, SVGSpriteServlet.this.classPrefix).getBytes("UTF-8"));
+				RasterCache.Entry map = new RasterCache.Entry(validator, CONTENT_TYPE_MAP, atlas.getMap().getBytes("UTF-8"));
+				if (cache != null) {
+					cache.put(TYPE_IMAGE.concat(":").concat(key), image);
+					cache.put(TYPE_STYLE_SHEET.concat(":").concat(key), styleSheet);
+					cache.put(TYPE_MAP.concat(":").concat(key), map);
+				}
+				return TYPE_IMAGE.equals(type) ? image : TYPE_STYLE_SHEET.equals(type) ? styleSheet : map;
+			}
+		};
+		try {
+			return this.limiter.render(type.concat(":").concat(key).concat("\n").concat(validator), maker);
+		} catch (RasterizationRejectedException e) {
+			throw e;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to make sprite atlas of ".concat(key), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Packs the icons by their size, without painting them
+	 * @throws RasterizationRejectedException if the atlas would be larger than the limit
+	 */
+	private SpriteAtlas createAtlas(List<Icon> icons, HttpServletRequest request, RasterSize size) throws TranscoderException, IOException,
+			RasterizationRejectedException {
+		String base = getBaseUri(request);
+		List<SpriteAtlas.Sprite> sprites = new ArrayList<SpriteAtlas.Sprite>(icons.size());
+		Set<String> names = new HashSet<String>();
+		for (Icon icon: icons) {
+			Dimension imageSize = this.rasterizer.getImageSize(icon.file, base.concat(icon.path), RasterCache.getFileValidator(icon.file), size);
+			sprites.add(new SpriteAtlas.Sprite(getName(icon.path, names), icon.path, imageSize.width, imageSize.height));
+		}
+		SpriteAtlas atlas = new SpriteAtlas(sprites, (int) Math.ceil(size.getScale()), size.getScale());
+		if (atlas.getPixels() > this.maxAtlasPixels) {
+			throw new RasterizationRejectedException(new StringBuffer("Atlas of ").append(atlas.getPixels()).append(" pixels is larger than the limit of ")
+					.append(this.maxAtlasPixels).toString(), true);
+		}
+		return atlas;
+	}
+
+	/**
+	 * @return painter of the icons of the atlas, by their paths
+	 */
+	private SpriteAtlas.Painter getPainter(List<Icon> icons, HttpServletRequest request, final RasterSize size) {
+		final String base = getBaseUri(request);
+		final Map<String, File> files = new HashMap<String, File>();
+		for (Icon icon: icons) {
+			files.put(icon.path, icon.file);
+		}
+		final SVGRasterizer rasterizer = this.rasterizer;
+		return new SpriteAtlas.Painter() {
+			public BufferedImage paint(SpriteAtlas.Sprite sprite) throws TranscoderException, IOException {
+				File file = files.get(sprite.getSource());
+				return rasterizer.paint(file, base.concat(sprite.getSource()), RasterCache.getFileValidator(file), size);
+			}
+		};
+	}
+
+	private static String getBaseUri(HttpServletRequest request) {
+		return new StringBuffer().append(request.getScheme()).append("://").append(request.getServerName()).append(':')
+				.append(request.getServerPort()).append(request.getContextPath()).toString();
+	}
+
+	/**
+	 * @return the icons requested, in the order requested, each once
+	 * @param sourceFiles filled with the files the atlas is made from, the manifest included
+	 */
+	private List<Icon> getIcons(HttpServletRequest request, List<File> sourceFiles) {
+		List<String> paths = new ArrayList<String>();
+		String manifest = request.getParameter(PARAMETER_MANIFEST);
+		if (manifest != null && manifest.length() > 0) {
+			File manifestFile = manifest.endsWith(MANIFEST_SUFFIX) ? getFile(manifest) : null;
+			if (manifestFile == null) {
+				throw new IllegalArgumentException("Manifest not found: ".concat(manifest));
+			}
+			sourceFiles.add(manifestFile);
+			String directory = manifest.substring(0, manifest.lastIndexOf('/') + 1);
+			for (String line: readManifest(manifestFile)) {
+				paths.add(line.startsWith("/") ? line : directory.concat(line));
+			}
+		}
+		String iconList = request.getParameter(PARAMETER_ICONS);
+		if (iconList != null) {
+			String[] iconPaths = iconList.split(",");
+			for (int i = 0; i < iconPaths.length; i++) {
+				if (iconPaths[i].trim().length() > 0) {
+					paths.add(iconPaths[i].trim());
+				}
+			}
+		}
+
+		List<Icon> icons = new ArrayList<Icon>();
+		Set<String> added = new HashSet<String>();
+		for (String path: paths) {
+			if (!added.add(path)) {
+				continue;
+			}
+			if (icons.size() == this.maxIcons) {
+				throw new IllegalArgumentException("More than " + this.maxIcons + " icons requested");
+			}
+			File file = path.endsWith(STATIC_SVG_SUFFIX) ? getFile(path) : null;
+			if (file == null) {
+				throw new IllegalArgumentException("Icon not found: ".concat(path));
+			}
+			icons.add(new Icon(path, file));
+			sourceFiles.add(file);
+		}
+		return icons;
+	}
+
+	private List<String> readManifest(File manifest) {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					lines.add(line);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to read manifest ".concat(manifest.getName()));
+		} finally {
+			IOUtil.close(reader);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the file of the web application at the path, <code>null</code> if there is none, the path leads out of it or
+	 * into WEB-INF or META-INF
+	 */
+	private File getFile(String path) {
+		if (!path.startsWith("/") || path.indexOf("..") != -1 || path.indexOf('\\') != -1) {
+			return null;
+		}
+		String[] segments = path.split("/");
+		for (int i = 0; i < segments.length; i++) {
+			for (int j = 0; j < PROTECTED_DIRECTORIES.length; j++) {
+				if (PROTECTED_DIRECTORIES[j].equalsIgnoreCase(segments[i].trim())) {
+					return null;
+				}
+			}
+		}
+		String realPath = getServletContext().getRealPath(path);
+		if (realPath == null) {
+			return null;
+		}
+		File file = new File(realPath);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * @return name of the icon for the style sheet and map: the file name, made unique
+	 */
+	private static String getName(String path, Set<String> names) {
+		String fileName = path.substring(path.lastIndexOf('/') + 1, path.length() - STATIC_SVG_SUFFIX.length());
+		StringBuffer name = new StringBuffer(fileName.length());
+		for (int i = 0; i < fileName.length(); i++) {
+			char c = fileName.charAt(i);
+			name.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' ? c : '-');
+		}
+		String unique = name.toString();
+		for (int i = 2; !names.add(unique); i++) {
+			unique = name.toString() + '-' + i;
+		}
+		return unique;
+	}
+
+	/**
+	 * @return {@link #TYPE_IMAGE}, {@link #TYPE_STYLE_SHEET} or {@link #TYPE_MAP} by the extension of the path, <code>null</code> for others
+	 */
+	private static String getType(String pathInfo) {
+		if (pathInfo == null) {
+			return null;
+		}
+		String extension = pathInfo.substring(pathInfo.lastIndexOf('.') + 1);
+		if (TYPE_IMAGE.equals(extension) || TYPE_STYLE_SHEET.equals(extension) || TYPE_MAP.equals(extension)) {
+			return extension;
+		}
+		return null;
+	}
+
+	/**
+	 * @return address of the atlas image of the requested style sheet
+	 */
+	private static String getImageUrl(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		StringBuffer url = new StringBuffer(uri.substring(0, uri.lastIndexOf('.') + 1)).append(TYPE_IMAGE);
+		if (request.getQueryString() != null) {
+			url.append('?').append(request.getQueryString());
+		}
+		//	The address is quoted in the style sheet
+		return url.toString().replace("\"", "%22");
+	}
+
+	private static String getRequestKey(HttpServletRequest request) {
+		StringBuffer key = new StringBuffer(request.getRequestURI());
+		if (request.getQueryString() != null) {
+			key.append('?').append(request.getQueryString());
+		}
+		return key.toString();
+	}
+}
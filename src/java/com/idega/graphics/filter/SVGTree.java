@@ -0,0 +1,86 @@
+package com.idega.graphics.filter;
+
+import java.awt.geom.AffineTransform;
+import java.util.List;
+
+import org.apache.batik.bridge.BridgeContext;
+import org.apache.batik.gvt.CanvasGraphicsNode;
+import org.apache.batik.gvt.CompositeGraphicsNode;
+import org.apache.batik.gvt.GraphicsNode;
+import org.w3c.dom.svg.SVGDocument;
+
+/**
+ * Parsed static SVG document with its graphics node tree, built once by {@link SVGRasterizer} and
+ * painted into the images of every size requested. The tree is never modified after it is built, but
+ * painting fills caches of its nodes, so it is painted by one thread at a time.
+ */
+class SVGTree {
+
+	private final String validator;
+	private final SVGDocument document;
+	private final BridgeContext context;
+	private final GraphicsNode root;
+	private final float width;
+	private final float height;
+	private final AffineTransform viewingTransform;
+
+	SVGTree(String validator, SVGDocument document, BridgeContext context, GraphicsNode root, float width, float height) {
+		this.validator = validator;
+		this.document = document;
+		this.context = context;
+		this.root = root;
+		this.width = width;
+		this.height = height;
+
+		CanvasGraphicsNode canvas = getCanvasGraphicsNode(root);
+		this.viewingTransform = canvas == null ? null : canvas.getViewingTransform();
+	}
+
+	private static CanvasGraphicsNode getCanvasGraphicsNode(GraphicsNode node) {
+		if (!(node instanceof CompositeGraphicsNode)) {
+			return null;
+		}
+		List<?> children = ((CompositeGraphicsNode) node).getChildren();
+		if (children.isEmpty() || !(children.get(0) instanceof CanvasGraphicsNode)) {
+			return null;
+		}
+		return (CanvasGraphicsNode) children.get(0);
+	}
+
+	/**
+	 * @return validator of the file the document was parsed from, <code>null</code> for generated documents
+	 */
+	String getValidator() {
+		return this.validator;
+	}
+
+	SVGDocument getDocument() {
+		return this.document;
+	}
+
+	BridgeContext getContext() {
+		return this.context;
+	}
+
+	GraphicsNode getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * @return width of the document in user units
+	 */
+	float getWidth() {
+		return this.width;
+	}
+
+	float getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * @return transform the tree was built with for the size of the document, <code>null</code> if the root is no canvas
+	 */
+	AffineTransform getViewingTransform() {
+		return this.viewingTransform;
+	}
+}
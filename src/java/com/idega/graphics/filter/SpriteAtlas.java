@@ -0,0 +1,223 @@
+package com.idega.graphics.filter;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.batik.transcoder.TranscoderException;
+
+/**
+ * Icons rasterized by {@link SVGSpriteServlet} packed into one image. The icons are put on shelves,
+ * tallest first, in an image about as wide as it is high, with a gap between them so scaled icons do
+ * not bleed into each other. The icons are packed by their size before they are painted, so the size
+ * of the atlas is known before any image is allocated, and they are painted into it one by one.
+ */
+class SpriteAtlas {
+
+	/**
+	 * Icon with its place in the atlas, in image pixels
+	 */
+	static class Sprite {
+		private final String name;
+		private final String source;
+		private final int width;
+		private final int height;
+		private int x;
+		private int y;
+
+		/**
+		 * @param width width of the icon in image pixels
+		 * @param height height of the icon in image pixels
+		 */
+		Sprite(String name, String source, int width, int height) {
+			this.name = name;
+			this.source = source;
+			this.width = width;
+			this.height = height;
+		}
+
+		String getName() {
+			return this.name;
+		}
+
+		String getSource() {
+			return this.source;
+		}
+	}
+
+	/**
+	 * Paints the icons into the atlas
+	 */
+	interface Painter {
+
+		/**
+		 * @return image of the icon, of the size of the sprite
+		 */
+		BufferedImage paint(Sprite sprite) throws TranscoderException, IOException;
+	}
+
+	private final List<Sprite> sprites;
+	private final float scale;
+	private int width = 0;
+	private int height = 0;
+
+	/**
+	 * Packs the icons
+	 * @param gap pixels between the icons
+	 * @param scale device pixel ratio the icons were rasterized for
+	 */
+	SpriteAtlas(List<Sprite> sprites, int gap, float scale) {
+		this.sprites = sprites;
+		this.scale = scale;
+		pack(gap);
+	}
+
+	private void pack(int gap) {
+		List<Sprite> tallestFirst = new ArrayList<Sprite>(this.sprites);
+		Collections.sort(tallestFirst, new Comparator<Sprite>() {
+			public int compare(Sprite sprite1, Sprite sprite2) {
+				return sprite2.height - sprite1.height;
+			}
+		});
+
+		long area = 0;
+		int widest = 0;
+		for (Sprite sprite: tallestFirst) {
+			area += (long) (sprite.width + gap) * (sprite.height + gap);
+			widest = Math.max(widest, sprite.width);
+		}
+		int shelfWidth = Math.max(widest, (int) Math.ceil(Math.sqrt(area)));
+
+		int x = 0;
+		int y = 0;
+		int shelfHeight = 0;
+		for (Sprite sprite: tallestFirst) {
+			if (x > 0 && x + sprite.width > shelfWidth) {
+				y += shelfHeight + gap;
+				x = 0;
+				shelfHeight = 0;
+			}
+			sprite.x = x;
+			sprite.y = y;
+			x += sprite.width + gap;
+			shelfHeight = Math.max(shelfHeight, sprite.height);
+			this.width = Math.max(this.width, sprite.x + sprite.width);
+		}
+		this.height = y + shelfHeight;
+		this.width = Math.max(1, this.width);
+		this.height = Math.max(1, this.height);
+	}
+
+	/**
+	 * @return number of pixels of the atlas image
+	 */
+	long getPixels() {
+		return (long) this.width * this.height;
+	}
+
+	/**
+	 * @return number of pixels of the largest icon
+	 */
+	long getLargestSpritePixels() {
+		long pixels = 0;
+		for (Sprite sprite: this.sprites) {
+			pixels = Math.max(pixels, (long) sprite.width * sprite.height);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Paints the icons one by one into the atlas
+	 * @return the atlas encoded as PNG
+	 */
+	byte[] getImage(Painter painter) throws TranscoderException, IOException {
+		BufferedImage atlas = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = atlas.createGraphics();
+		try {
+			g.setComposite(AlphaComposite.Src);
+			for (Sprite sprite: this.sprites) {
+				g.drawImage(painter.paint(sprite), sprite.x, sprite.y, null);
+			}
+		} finally {
+			g.dispose();
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PNGStreamEncoder encoder = new PNGStreamEncoder(output, this.width, this.height, true);
+		try {
+			encoder.writeRows(atlas);
+			encoder.finish();
+		} finally {
+			encoder.close();
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * @param imageUrl address of the atlas image
+	 * @param prefix class of elements showing icons, every icon has the class prefix-name
+	 * @return style sheet placing the icons, in CSS pixels
+	 */
+	String getStyleSheet(String imageUrl, String prefix) {
+		StringBuffer css = new StringBuffer();
+		css.append('.').append(prefix).append(" {\n\tdisplay: inline-block;\n\tbackground-image: url(\"").append(imageUrl)
+				.append("\");\n\tbackground-repeat: no-repeat;\n\tbackground-size: ").append(toCSSPixels(this.width)).append(' ')
+				.append(toCSSPixels(this.height)).append(";\n}\n");
+		for (Sprite sprite: this.sprites) {
+			css.append('.').append(prefix).append('-').append(sprite.name).append(" {\n\twidth: ").append(toCSSPixels(sprite.width))
+					.append(";\n\theight: ").append(toCSSPixels(sprite.height)).append(";\n\tbackground-position: ")
+					.append(toCSSPixels(-sprite.x)).append(' ').append(toCSSPixels(-sprite.y)).append(";\n}\n");
+		}
+		return css.toString();
+	}
+
+	/**
+	 * @return map of the icons, in image pixels
+	 */
+	String getMap() {
+		StringBuffer json = new StringBuffer();
+		json.append("{\"width\":").append(this.width).append(",\"height\":").append(this.height).append(",\"scale\":").append(this.scale)
+				.append(",\"sprites\":{");
+		for (int i = 0; i < this.sprites.size(); i++) {
+			Sprite sprite = this.sprites.get(i);
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append('"').append(sprite.name).append("\":{\"source\":\"").append(escape(sprite.source)).append("\",\"x\":").append(sprite.x)
+					.append(",\"y\":").append(sprite.y).append(",\"width\":").append(sprite.width).append(",\"height\":")
+					.append(sprite.height).append('}');
+		}
+		return json.append("}}").toString();
+	}
+
+	private String toCSSPixels(int pixels) {
+		if (pixels == 0) {
+			return "0";
+		}
+		float cssPixels = Math.round(pixels / this.scale * 100) / 100f;
+		return cssPixels == (int) cssPixels ? Integer.toString((int) cssPixels).concat("px") : Float.toString(cssPixels).concat("px");
+	}
+
+	private static String escape(String value) {
+		StringBuffer escaped = new StringBuffer(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				escaped.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				escaped.append(' ');
+			}
+			else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+}
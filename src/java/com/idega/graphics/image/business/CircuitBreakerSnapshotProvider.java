@@ -0,0 +1,92 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Stops calling a failing {@link SnapshotProvider}: after the provided number of failures in a row
+ * the circuit opens and every call fails at once for the open time. After that one call is let
+ * through; if it succeeds the circuit closes, otherwise it stays open for another period.
+ * </p>
+ */
+public class CircuitBreakerSnapshotProvider implements SnapshotProvider {
+
+	private static final Logger LOGGER = Logger.getLogger(CircuitBreakerSnapshotProvider.class.getName());
+
+	private final SnapshotProvider provider;
+	private final int failureThreshold;
+	private final long openTime;
+
+	private int failures = 0;
+	private long openUntil = 0;
+	private boolean trialRunning = false;
+
+	/**
+	 * @param failureThreshold failures in a row which open the circuit
+	 * @param openTime milliseconds the circuit stays open
+	 */
+	public CircuitBreakerSnapshotProvider(SnapshotProvider provider, int failureThreshold, long openTime) {
+		this.provider = provider;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openTime = openTime;
+	}
+
+	public BufferedImage getSnapshot(String url, int width, int height) throws IOException {
+		boolean trial = acquire();
+		boolean success = false;
+		try {
+			BufferedImage image = this.provider.getSnapshot(url, width, height);
+			success = true;
+			return image;
+		} finally {
+			release(trial, success);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if this call tests whether an open circuit may close
+	 */
+	private synchronized boolean acquire() throws IOException {
+		if (this.failures < this.failureThreshold) {
+			return false;
+		}
+		if (this.trialRunning || System.currentTimeMillis() < this.openUntil) {
+			throw new IOException(new StringBuffer("Snapshot provider ").append(getName()).append(" is not called after ")
+					.append(this.failures).append(" failures").toString());
+		}
+		this.trialRunning = true;
+		return true;
+	}
+
+	private synchronized void release(boolean trial, boolean success) {
+		if (trial) {
+			this.trialRunning = false;
+		}
+		if (success) {
+			if (this.failures >= this.failureThreshold) {
+				LOGGER.info("Snapshot provider works again: ".concat(getName()));
+			}
+			this.failures = 0;
+			return;
+		}
+
+		this.failures++;
+		if (this.failures >= this.failureThreshold) {
+			if (trial || this.failures == this.failureThreshold) {
+				LOGGER.warning(new StringBuffer("Snapshot provider ").append(getName()).append(" failed ").append(this.failures)
+						.append(" times, not calling it for ").append(this.openTime).append(" ms").toString());
+			}
+			this.openUntil = System.currentTimeMillis() + this.openTime;
+		}
+	}
+
+	public synchronized boolean isOpen() {
+		return this.failures >= this.failureThreshold;
+	}
+
+	public String getName() {
+		return this.provider.getName();
+	}
+}
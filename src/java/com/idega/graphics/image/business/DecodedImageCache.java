@@ -0,0 +1,256 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.JAI;
+import javax.media.jai.PlanarImage;
+
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+
+/**
+ * <p>
+ * Bounded cache of decoded images, used by {@link ImageEncoderBean#getPlanarImage(String)} so that
+ * running several operations on the same source does not fetch and decode it every time.
+ * </p>
+ * <p>
+ * Entries are keyed by URL and only reused while the validator of the source is unchanged: the
+ * modification time and length of local files, the ETag or Last-Modified header of HTTP sources.
+ * Sources without a validator are never cached; HTTP sources that had none are not asked for one
+ * again for ten minutes, so they are fetched once per call instead of twice. The cache is bounded by
+ * the memory of the decoded pixels, least recently used entries are evicted first and the garbage
+ * collector may also clear entries when memory runs low.
+ * </p>
+ */
+public class DecodedImageCache {
+
+	private static final Logger LOGGER = Logger.getLogger(DecodedImageCache.class.getName());
+
+	public static final String PROPERTY_CACHE_SIZE = "graphics.decoded_image_cache_mb";
+	private static final int DEFAULT_CACHE_SIZE_MB = 64;
+
+	private static final int VALIDATION_TIMEOUT = 5000;
+	private static final long UNVALIDATABLE_TTL = 10 * 60 * 1000L;
+	private static final int MAX_UNVALIDATABLE_URLS = 1024;
+
+	private static class Holder {
+		private static final DecodedImageCache INSTANCE = new DecodedImageCache(getConfiguredSize());
+	}
+
+	private final long maxBytes;
+	private long usedBytes = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	// URLs of sources without a validator, with the time they may be validated again
+	private final Map<String, Long> unvalidatable = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_UNVALIDATABLE_URLS;
+		}
+	};
+
+	public static DecodedImageCache getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	public DecodedImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	private static long getConfiguredSize() {
+		int megaBytes = DEFAULT_CACHE_SIZE_MB;
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		if (application != null) {
+			IWMainApplicationSettings settings = application.getSettings();
+			String value = settings.getProperty(PROPERTY_CACHE_SIZE, String.valueOf(DEFAULT_CACHE_SIZE_MB));
+			try {
+				megaBytes = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Invalid value of " + PROPERTY_CACHE_SIZE + ": " + value + ", using " + DEFAULT_CACHE_SIZE_MB);
+			}
+		}
+		return megaBytes * 1024L * 1024L;
+	}
+
+	private static class Entry {
+		private final String validator;
+		private final SoftReference<BufferedImage> image;
+		private final long bytes;
+
+		private Entry(String validator, BufferedImage image, long bytes) {
+			this.validator = validator;
+			this.image = new SoftReference<BufferedImage>(image);
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Returns the decoded image from the cache if its source has not changed, otherwise fetches and decodes it
+	 */
+	public PlanarImage getImage(URL url) {
+		String key = url.toExternalForm();
+		if (isUnvalidatable(key)) {
+			return JAI.create("url", url);
+		}
+		String validator = getValidator(url);
+		if (validator == null) {
+			if (!"file".equals(url.getProtocol())) {
+				setUnvalidatable(key);
+			}
+			return JAI.create("url", url);
+		}
+
+		BufferedImage cached = getCachedImage(key, validator);
+		if (cached != null) {
+			return PlanarImage.wrapRenderedImage(cached);
+		}
+
+		PlanarImage decoded = JAI.create("url", url);
+		long bytes = getBytes(decoded);
+		if (this.maxBytes <= 0 || bytes > this.maxBytes / 4) {
+			//	Too big to be worth keeping, stays lazily decoded
+			return decoded;
+		}
+
+		BufferedImage image = decoded.getAsBufferedImage();
+		put(key, new Entry(validator, image, bytes));
+		return PlanarImage.wrapRenderedImage(image);
+	}
+
+	/**
+	 * Removes the image of the URL from the cache
+	 */
+	public synchronized void invalidate(String url) {
+		String key = url;
+		try {
+			key = new URL(url).toExternalForm();
+		} catch (MalformedURLException e) {}
+		Entry entry = this.entries.remove(key);
+		if (entry != null) {
+			this.usedBytes -= entry.bytes;
+		}
+		this.unvalidatable.remove(key);
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.usedBytes = 0;
+		this.unvalidatable.clear();
+	}
+
+	private synchronized boolean isUnvalidatable(String key) {
+		Long until = this.unvalidatable.get(key);
+		if (until == null) {
+			return false;
+		}
+		if (until.longValue() < System.currentTimeMillis()) {
+			this.unvalidatable.remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void setUnvalidatable(String key) {
+		this.unvalidatable.put(key, Long.valueOf(System.currentTimeMillis() + UNVALIDATABLE_TTL));
+	}
+
+	private synchronized BufferedImage getCachedImage(String key, String validator) {
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		BufferedImage image = entry.image.get();
+		if (image == null || !validator.equals(entry.validator)) {
+			this.entries.remove(key);
+			this.usedBytes -= entry.bytes;
+			return null;
+		}
+		return image;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		Entry previous = this.entries.put(key, entry);
+		if (previous != null) {
+			this.usedBytes -= previous.bytes;
+		}
+		this.usedBytes += entry.bytes;
+
+		for (Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator(); iterator.hasNext() && this.usedBytes > this.maxBytes;) {
+			Entry eldest = iterator.next().getValue();
+			if (eldest == entry) {
+				continue;
+			}
+			iterator.remove();
+			this.usedBytes -= eldest.bytes;
+		}
+	}
+
+	private long getBytes(PlanarImage image) {
+		int bitsPerSample = DataBuffer.getDataTypeSize(image.getSampleModel().getDataType());
+		return (long) image.getWidth() * image.getHeight() * image.getNumBands() * bitsPerSample / 8;
+	}
+
+	/**
+	 * @return a string that changes when the source changes or <code>null</code> if the source can not be validated
+	 */
+	private String getValidator(URL url) {
+		if ("file".equals(url.getProtocol())) {
+			File file = null;
+			try {
+				file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				file = new File(url.getPath());
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+			if (!file.isFile()) {
+				return null;
+			}
+			return new StringBuffer("file:").append(file.lastModified()).append(":").append(file.length()).toString();
+		}
+
+		URLConnection connection = null;
+		try {
+			connection = url.openConnection();
+			connection.setConnectTimeout(VALIDATION_TIMEOUT);
+			connection.setReadTimeout(VALIDATION_TIMEOUT);
+			if (connection instanceof HttpURLConnection) {
+				HttpURLConnection httpConnection = (HttpURLConnection) connection;
+				httpConnection.setRequestMethod("HEAD");
+				if (httpConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					return null;
+				}
+				String eTag = httpConnection.getHeaderField("ETag");
+				if (eTag != null && !eTag.startsWith("W/")) {
+					return "etag:".concat(eTag);
+				}
+			}
+			long lastModified = connection.getLastModified();
+			if (lastModified > 0) {
+				return new StringBuffer("modified:").append(lastModified).append(":").append(connection.getContentLength()).toString();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to validate ".concat(url.toExternalForm()), e);
+		} finally {
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+		}
+		return null;
+	}
+}
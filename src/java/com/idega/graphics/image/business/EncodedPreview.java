@@ -0,0 +1,88 @@
+package com.idega.graphics.image.business;
+
+import java.io.InputStream;
+
+/**
+ * Preview of a web page that is rendered and encoded but not uploaded yet, or that was found in the
+ * {@link PreviewCache} and needs no upload. If the preview has to be encoded with the image encoder,
+ * that is done while it is uploaded.
+ */
+class EncodedPreview {
+
+	private final String name;
+	private final String fileName;
+	private final String mimeType;
+	private final InputStream stream;
+	private final String cacheKey;
+	private final int encodingWidth;
+	private final int encodingHeight;
+
+	EncodedPreview(String name, String fileName, String mimeType, InputStream stream, String cacheKey) {
+		this(name, fileName, mimeType, stream, cacheKey, 0, 0);
+	}
+
+	/**
+	 * @param encodingWidth width for the image encoder, 0 if the stream is uploaded as it is
+	 */
+	EncodedPreview(String name, String fileName, String mimeType, InputStream stream, String cacheKey, int encodingWidth, int encodingHeight) {
+		this.name = name;
+		this.fileName = fileName;
+		this.mimeType = mimeType;
+		this.stream = stream;
+		this.cacheKey = cacheKey;
+		this.encodingWidth = encodingWidth;
+		this.encodingHeight = encodingHeight;
+	}
+
+	/**
+	 * @return preview which was already uploaded from the same content
+	 */
+	static EncodedPreview getCachedPreview(String name, String fileName, String cacheKey) {
+		return new EncodedPreview(name, fileName, null, null, cacheKey);
+	}
+
+	/**
+	 * @return file name without extension
+	 */
+	String getName() {
+		return this.name;
+	}
+
+	String getFileName() {
+		return this.fileName;
+	}
+
+	String getMimeType() {
+		return this.mimeType;
+	}
+
+	InputStream getStream() {
+		return this.stream;
+	}
+
+	/**
+	 * @return key of the content in the {@link PreviewCache} or <code>null</code> if unknown
+	 */
+	String getCacheKey() {
+		return this.cacheKey;
+	}
+
+	/**
+	 * @return <code>true</code> if the stream has to go through the image encoder before it is uploaded
+	 */
+	boolean isToEncode() {
+		return this.encodingWidth > 0;
+	}
+
+	int getEncodingWidth() {
+		return this.encodingWidth;
+	}
+
+	int getEncodingHeight() {
+		return this.encodingHeight;
+	}
+
+	boolean isCached() {
+		return this.stream == null;
+	}
+}
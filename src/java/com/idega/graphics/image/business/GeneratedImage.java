@@ -0,0 +1,76 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Image of a web page generated by {@link ImageGenerator}, with the format it should be written in,
+ * where it came from and how long it took. Instances are immutable and can be shared between threads.
+ */
+public class GeneratedImage {
+
+	public enum Source {
+		/**
+		 * Rendered with Flying Saucer XHTMLRenderer
+		 */
+		RENDERER,
+		/**
+		 * Downloaded from the external snapshot service because rendering failed
+		 */
+		EXTERNAL_SERVICE
+	}
+
+	private final BufferedImage image;
+	private final String fileExtension;
+	private final Source source;
+	private final long renderTime;
+	private final long processingTime;
+
+	public GeneratedImage(BufferedImage image, String fileExtension, Source source, long renderTime, long processingTime) {
+		this.image = image;
+		this.fileExtension = fileExtension.toLowerCase();
+		this.source = source;
+		this.renderTime = renderTime;
+		this.processingTime = processingTime;
+	}
+
+	/**
+	 * @return image made from this one, e.g. by scaling or setting new quality
+	 * @param processingTime milliseconds spent making the new image
+	 */
+	public GeneratedImage getDerivedImage(BufferedImage image, long processingTime) {
+		return new GeneratedImage(image, this.fileExtension, this.source, this.renderTime, this.processingTime + processingTime);
+	}
+
+	public BufferedImage getImage() {
+		return this.image;
+	}
+
+	/**
+	 * @return extension (and image format) the image should be written with, e.g. "png"
+	 */
+	public String getFileExtension() {
+		return this.fileExtension;
+	}
+
+	public Source getSource() {
+		return this.source;
+	}
+
+	public boolean isExternalService() {
+		return this.source == Source.EXTERNAL_SERVICE;
+	}
+
+	/**
+	 * @return milliseconds spent rendering or downloading the page
+	 */
+	public long getRenderTime() {
+		return this.renderTime;
+	}
+
+	/**
+	 * @return milliseconds spent scaling the rendered page or setting its quality
+	 */
+	public long getProcessingTime() {
+		return this.processingTime;
+	}
+}
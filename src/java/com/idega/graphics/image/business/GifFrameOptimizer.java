@@ -0,0 +1,210 @@
+package com.idega.graphics.image.business;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.idega.graphics.encoder.gif.Gif89Encoder;
+import com.idega.graphics.encoder.gif.Gif89Frame;
+import com.idega.graphics.encoder.gif.IndexGif89Frame;
+
+/**
+ * Title:         idegaWeb
+ * Description:   Writes an animation as delta frames: every frame after the first one is cropped
+ *                to the bounding box of the pixels that changed from the previous composited frame,
+ *                unchanged pixels inside that box are written as transparent and all frames share
+ *                one global palette.
+ *                The optimisation is only possible when all frames together use at most 255 colors
+ *                (one palette slot is reserved for transparency) and no frame turns an opaque
+ *                pixel of the previous frame transparent; otherwise {@link #encode} returns
+ *                <code>false</code> and the caller should write full frames as before.
+ * Copyright:     Copyright (c) 2003
+ * Company:       idega software
+ */
+public class GifFrameOptimizer {
+
+	private static final int TRANSPARENT_INDEX = 0;
+	private static final int MAX_COLORS = 256;
+	private static final int ALPHA_THRESHOLD = 0x80;
+	private static final int TRANSPARENT_PIXEL = 0;
+
+	private final int width;
+	private final int height;
+	private final List<int[]> frames = new ArrayList<int[]>();
+
+	/**
+	 * @param width width of the logical screen, every added frame must have this width
+	 * @param height height of the logical screen, every added frame must have this height
+	 */
+	public GifFrameOptimizer(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Adds full canvas frame
+	 * @param argbPixels pixels in the default RGB color model, row by row, width * height values
+	 */
+	public void addFrame(int[] argbPixels) {
+		if (argbPixels == null || argbPixels.length != this.width * this.height) {
+			throw new IllegalArgumentException("Frame must have " + (this.width * this.height) + " pixels");
+		}
+		int[] normalized = new int[argbPixels.length];
+		for (int i = 0; i < argbPixels.length; i++) {
+			normalized[i] = normalize(argbPixels[i]);
+		}
+		this.frames.add(normalized);
+	}
+
+	public int getFrameCount() {
+		return this.frames.size();
+	}
+
+	/**
+	 * Encodes the added frames as optimized animation
+	 * @return <code>false</code> if the frames can not be optimized, nothing is written to the output in that case
+	 */
+	public boolean encode(OutputStream output, int loops, int delay) throws IOException {
+		if (this.frames.isEmpty()) {
+			return false;
+		}
+
+		Map<Integer, Integer> palette = createPalette();
+		if (palette == null) {
+			return false;
+		}
+
+		List<Gif89Frame> deltaFrames = createDeltaFrames(palette);
+		if (deltaFrames == null) {
+			return false;
+		}
+
+		Gif89Encoder encoder = new Gif89Encoder(getColors(palette));
+		encoder.setTransparentIndex(TRANSPARENT_INDEX);
+		encoder.setLogicalDisplay(new Dimension(this.width, this.height), TRANSPARENT_INDEX);
+		for (Gif89Frame frame : deltaFrames) {
+			encoder.addFrame(frame);
+		}
+		encoder.setLoopCount(loops);
+		encoder.setUniformDelay(delay);
+		encoder.encode(output);
+		return true;
+	}
+
+	/**
+	 * Maps every opaque color used by any frame to an index of the global palette
+	 * @return the palette or <code>null</code> if there are too many colors for a global palette
+	 */
+	private Map<Integer, Integer> createPalette() {
+		Map<Integer, Integer> palette = new HashMap<Integer, Integer>();
+		int nextIndex = TRANSPARENT_INDEX + 1;
+		for (int[] frame : this.frames) {
+			for (int i = 0; i < frame.length; i++) {
+				int pixel = frame[i];
+				if (pixel == TRANSPARENT_PIXEL) {
+					continue;
+				}
+				Integer color = Integer.valueOf(pixel);
+				if (!palette.containsKey(color)) {
+					if (nextIndex >= MAX_COLORS) {
+						return null;
+					}
+					palette.put(color, Integer.valueOf(nextIndex++));
+				}
+			}
+		}
+		return palette;
+	}
+
+	private Color[] getColors(Map<Integer, Integer> palette) {
+		Color[] colors = new Color[palette.size() + 1];
+		colors[TRANSPARENT_INDEX] = Color.BLACK;
+		for (Map.Entry<Integer, Integer> entry : palette.entrySet()) {
+			colors[entry.getValue().intValue()] = new Color(entry.getKey().intValue() & 0xFFFFFF);
+		}
+		return colors;
+	}
+
+	private List<Gif89Frame> createDeltaFrames(Map<Integer, Integer> palette) {
+		List<Gif89Frame> deltaFrames = new ArrayList<Gif89Frame>(this.frames.size());
+		int[] canvas = null;
+		for (int[] frame : this.frames) {
+			int minX = 0;
+			int minY = 0;
+			int maxX = this.width - 1;
+			int maxY = this.height - 1;
+
+			if (canvas != null) {
+				minX = this.width;
+				minY = this.height;
+				maxX = -1;
+				maxY = -1;
+				for (int y = 0; y < this.height; y++) {
+					int row = y * this.width;
+					for (int x = 0; x < this.width; x++) {
+						int previous = canvas[row + x];
+						int current = frame[row + x];
+						if (previous == current) {
+							continue;
+						}
+						if (current == TRANSPARENT_PIXEL) {
+							//	Delta frames can not uncover pixels painted by a previous frame
+							return null;
+						}
+						minX = Math.min(minX, x);
+						maxX = Math.max(maxX, x);
+						minY = Math.min(minY, y);
+						maxY = Math.max(maxY, y);
+					}
+				}
+				if (maxX < 0) {
+					//	Nothing changed, a single transparent pixel keeps the timing of the animation
+					minX = 0;
+					minY = 0;
+					maxX = 0;
+					maxY = 0;
+				}
+			}
+
+			int boxWidth = maxX - minX + 1;
+			int boxHeight = maxY - minY + 1;
+			byte[] indexes = new byte[boxWidth * boxHeight];
+			for (int y = 0; y < boxHeight; y++) {
+				int row = (minY + y) * this.width + minX;
+				for (int x = 0; x < boxWidth; x++) {
+					int current = frame[row + x];
+					if (current == TRANSPARENT_PIXEL || (canvas != null && canvas[row + x] == current)) {
+						indexes[y * boxWidth + x] = (byte) TRANSPARENT_INDEX;
+					}
+					else {
+						indexes[y * boxWidth + x] = (byte) palette.get(Integer.valueOf(current)).intValue();
+					}
+				}
+			}
+
+			Gif89Frame deltaFrame = new IndexGif89Frame(boxWidth, boxHeight, indexes);
+			deltaFrame.setPosition(new Point(minX, minY));
+			deltaFrame.setDisposalMode(Gif89Frame.DM_LEAVE);
+			deltaFrames.add(deltaFrame);
+
+			canvas = frame;
+		}
+		return deltaFrames;
+	}
+
+	/**
+	 * GIF supports only fully transparent or fully opaque pixels
+	 */
+	private static int normalize(int argb) {
+		if ((argb >>> 24) < ALPHA_THRESHOLD) {
+			return TRANSPARENT_PIXEL;
+		}
+		return argb | 0xFF000000;
+	}
+}
@@ -0,0 +1,67 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.imageio.ImageIO;
+
+import com.idega.util.IOUtil;
+
+/**
+ * Downloads snapshots from a web service which takes the page, width and height as parameters, e.g.
+ * <code>http://webdesignbook.net/snapper.php?url=</code>. Connecting and reading are bounded by timeouts.
+ */
+public class HttpSnapshotProvider implements SnapshotProvider {
+
+	private static final String IMAGE_WIDTH_PARAM = "&w=";
+	private static final String IMAGE_HEIGHT_PARAM = "&h=";
+
+	private final String serviceUrl;
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	/**
+	 * @param serviceUrl URL of the service, the address of the page is appended to it
+	 * @param connectTimeout milliseconds to wait for the connection
+	 * @param readTimeout milliseconds to wait for data
+	 */
+	public HttpSnapshotProvider(String serviceUrl, int connectTimeout, int readTimeout) {
+		this.serviceUrl = serviceUrl;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	public URL getSnapshotURL(String url, int width, int height) throws IOException {
+		return new URL(new StringBuffer(this.serviceUrl).append(url).append(IMAGE_WIDTH_PARAM).append(width).append(IMAGE_HEIGHT_PARAM)
+				.append(height).toString());
+	}
+
+	public BufferedImage getSnapshot(String url, int width, int height) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) getSnapshotURL(url, width, height).openConnection();
+		connection.setConnectTimeout(this.connectTimeout);
+		connection.setReadTimeout(this.readTimeout);
+		InputStream input = null;
+		try {
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException(new StringBuffer("Snapshot service responded ").append(status).append(" for ").append(url).toString());
+			}
+			input = connection.getInputStream();
+			BufferedImage image = ImageIO.read(input);
+			if (image == null) {
+				throw new IOException("Snapshot service returned unknown image format for ".concat(url));
+			}
+			return image;
+		} finally {
+			IOUtil.close(input);
+			connection.disconnect();
+		}
+	}
+
+	public String getName() {
+		return this.serviceUrl;
+	}
+}
@@ -77,9 +77,52 @@ public interface ImageEncoder extends IBOService {
 	public InputStream encodePlanarImageToInputStream(PlanarImage image,
 			String imageType) throws RemoteException;
 
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#encodePlanarImageToPipedInputStream
+	 */
+	public InputStream encodePlanarImageToPipedInputStream(PlanarImage image,
+			String imageType) throws RemoteException;
+
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#encodeToPipedInputStream
+	 */
+	public InputStream encodeToPipedInputStream(String mimeType,
+			InputStream input, int width, int height) throws RemoteException;
+
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#encodeTiffPages
+	 */
+	public void encodeTiffPages(InputStream tiff, String mimeType, int width,
+			int height, MultiPageTiffProcessor.PageHandler handler)
+			throws IOException, RemoteException;
+
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#resizeMultiPageTiff
+	 */
+	public void resizeMultiPageTiff(InputStream tiff, OutputStream output,
+			int width, int height) throws IOException, RemoteException;
+
 	/**
 	 * @see com.idega.graphics.image.business.ImageEncoderBean#getPlanarImage
 	 */
 	public PlanarImage getPlanarImage(String URL) throws MalformedURLException,
 			RemoteException;
+
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#invalidatePlanarImage
+	 */
+	public void invalidatePlanarImage(String URL) throws RemoteException;
+
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#getPlanarImageFromRepository
+	 */
+	public PlanarImage getPlanarImageFromRepository(String path)
+			throws IOException, RemoteException;
+
+	/**
+	 * @see com.idega.graphics.image.business.ImageEncoderBean#encodeFromRepository
+	 */
+	public void encodeFromRepository(String mimeType, String path,
+			OutputStream output, int width, int height) throws IOException,
+			RemoteException;
 }
\ No newline at end of file
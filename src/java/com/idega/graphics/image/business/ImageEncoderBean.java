@@ -2,10 +2,13 @@ package com.idega.graphics.image.business;
 
 import java.awt.Canvas;
 import java.awt.Image;
+import java.awt.image.BufferedImage;
 import java.awt.image.ImageProducer;
+import java.awt.image.PixelGrabber;
 import java.awt.image.renderable.ParameterBlock;
 import java.awt.image.renderable.RenderableImage;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -13,9 +16,12 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.media.jai.InterpolationNearest;
 import javax.media.jai.JAI;
@@ -24,21 +30,29 @@ import javax.media.jai.PlanarImage;
 
 import com.idega.business.IBOServiceBean;
 import com.idega.graphics.encoder.gif.Gif89Encoder;
+import com.idega.graphics.image.format.DefaultImageFormatProvider;
+import com.idega.graphics.image.format.ImageFormat;
+import com.idega.graphics.image.format.ImageFormatRegistry;
+import com.idega.graphics.util.BufferRingPipe;
+import com.idega.graphics.util.DaemonThreadFactory;
 import com.idega.io.MemoryFileBuffer;
 import com.idega.io.MemoryInputStream;
 import com.idega.io.MemoryOutputStream;
+import com.idega.util.IOUtil;
 import com.sun.jimi.core.Jimi;
 import com.sun.jimi.core.JimiException;
 import com.sun.jimi.core.JimiReader;
 import com.sun.jimi.core.options.GIFOptions;
 import com.sun.jimi.core.raster.JimiRasterImage;
 import com.sun.media.jai.codec.BMPEncodeParam;
+import com.sun.media.jai.codec.FileSeekableStream;
 import com.sun.media.jai.codec.ImageCodec;
 import com.sun.media.jai.codec.ImageEncodeParam;
 import com.sun.media.jai.codec.JPEGEncodeParam;
 import com.sun.media.jai.codec.MemoryCacheSeekableStream;
 import com.sun.media.jai.codec.PNGEncodeParam;
 import com.sun.media.jai.codec.PNMEncodeParam;
+import com.sun.media.jai.codec.SeekableStream;
 import com.sun.media.jai.codec.TIFFEncodeParam;
 
 
@@ -72,17 +86,21 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
 	private static final long serialVersionUID = 4568985884351622530L;
 
 // for gif images we have a special encoder  
-  public final static String GIF = "gif";
-  public final static String PNM = "pnm";
-  public final static String PNG = "png";
-  public final static String TIFF = "tiff";
-  public final static String BMP = "bmp";
-  public final static String JPEG = "jpeg";
+  public final static String GIF = DefaultImageFormatProvider.GIF;
+  public final static String PNM = DefaultImageFormatProvider.PNM;
+  public final static String PNG = DefaultImageFormatProvider.PNG;
+  public final static String TIFF = DefaultImageFormatProvider.TIFF;
+  public final static String BMP = DefaultImageFormatProvider.BMP;
+  public final static String JPEG = DefaultImageFormatProvider.JPEG;
   
   public static final String UNKNOWN_MIME_TYPE = "unknown mime type";
   public static final String INVALID_FILE_EXTENSION = "invalid file extension";
  
  
+  /**
+   * @deprecated not used by the encoder, the extensions come from {@link ImageFormatRegistry#getFormatForMimeType(String)}
+   */
+  @Deprecated
   public static final String[] FILE_EXTENSIONS = {
     GIF, "gif",
     PNG, "png",
@@ -92,124 +110,34 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
     PNM, "pnm"
   };
   
+  /**
+   * @deprecated not used by the encoder, the JAI codecs come from {@link ImageFormatRegistry#getJaiCodecName(ImageFormat)}
+   */
+  @Deprecated
   public static final String[] MIME_TYPES_FOR_JAI = {
     PNG, PNM, JPEG, TIFF, BMP };
   
-  private static final String[] IMAGES_TYPES = {
-    // description, 
-    // mime type, mimetype, converted to mimetype
-    "GIF",
-    "image/gif",  GIF,  GIF,  
-//    "X-Windows bitmap (b/w)  xbm",
-//        "image/x-xbitmap",  "xbm",  "",    
-//    "X-Windows pixelmap (8-bit color)  xpm",
-//  "image/x-xpix",     "xpm",      "",     
-    "Portable Network Graphics png",
-    "image/x-png", PNG,  PNG, 
-    "Portable Network Graphics png",
-    "image/png",   PNG,  PNG, 
-//    "Image Exchange Format (RFC 1314) ief",
-//    "image/ief",        "ief",      "",     "", "",
-    "JPEG  jpeg jpg jpe pjpeg",
-    "image/jpeg",  JPEG, JPEG, 
-    "JPEG  jpeg jpg jpe pjpeg",
-    "image/pjpeg", JPEG, JPEG, 
-    "JPEG  jpeg jpg jpe pjpeg",
-    "image/jpg",   JPEG, JPEG, 
-    "JPEG  jpeg jpg jpe pjpeg",
-    "image/jpe",   JPEG, JPEG,
-    "TIFF  tiff tif",
-    "image/tiff",  TIFF, TIFF,  
-  //  "Macintosh PICT format pict",
-  //  "image/x-pict"
-  //  "Macintosh PICT format pict",
-  //  "image/pict",
-    "Microsoft Windows bitmap  bmp",
-    "image/x-ms-bmp", BMP,  JPEG,
-    "Microsoft Windows bitmap  bmp",
-    "image/bmp",      BMP,  JPEG, 
-    "Microsoft Windows bitmap  bmp",
-    "image/x-bmp",    BMP,  JPEG
-  //  "pcx image", "image/pcx",
-  //  "iff image", "image/iff",
-  //  "ras image", "image/ras",
-  //  "portable-bitmap image", "image/x-portable-bitmap",
-  //  "portable-graymap image", "image/x-portable-graymap",
-  //  "portable-pixmap image", "image/x-portable-pixmap"
-   };
   
  
+  // encodings waiting for a thread, more are rejected
+  private static final int ENCODING_QUEUE_SIZE_PER_THREAD = 16;
+  // encodes images for the piped streams of all callers, a burst of encodings waits in the queue instead of starting a thread each
+  private static final ThreadPoolExecutor ENCODING_EXECUTOR = createEncodingExecutor();
+  // an encoding whose stream is not read for this long is abandoned, so dropped streams do not hold the threads
+  private static final long PIPE_WRITE_TIMEOUT = 60 * 1000L;
+  
   //1.0 best quality 0.75 high quality 0.5  medium quality  0.25 low quality 0.10 crappy quality 
   private final static float JPEG_QUALITY = 1.00f;
 
   
    
-  private Map mimeTypes;  
-  private Map extensionTypes;
-  private Map mimeTypesForJai;
+  // mime types, extensions and JAI codecs are shared by all encoders
+  private final ImageFormatRegistry formats = ImageFormatRegistry.getInstance();
  
   
   public ImageEncoderBean() {
-    this.extensionTypes = initializeFileExtension();
-    this.mimeTypes = initializeMimeTypes();    
-    this.mimeTypesForJai = initializeJaiMimeValues();
   } 
 
-
-  private HashMap initializeJaiMimeValues() {
-    HashMap <String, String> mimeTypeForJai = new HashMap<String, String>();
-    
-    ArrayList <String> list = new ArrayList<String>();
-    Enumeration enumer = ImageCodec.getCodecs();
-    while (enumer.hasMoreElements())   {
-      ImageCodec codec = (ImageCodec) enumer.nextElement();
-      list.add(codec.getFormatName());
-    }
-    int i;
-    String mimeTypeKey;
-    String jaiMimeType;
-    for (i= 0; i < MIME_TYPES_FOR_JAI.length; i++)  {
-      mimeTypeKey = MIME_TYPES_FOR_JAI[i];
-      Iterator iterator = list.iterator();
-      while (iterator.hasNext())  {
-        jaiMimeType = (String) iterator.next();
-        if (jaiMimeType.indexOf(mimeTypeKey) > -1)  {
-          mimeTypeForJai.put(mimeTypeKey, jaiMimeType);
-          break;
-        }
-      }
-    }
-    return mimeTypeForJai;
-  }   
-        
-        
-
-  private Map initializeMimeTypes() {
-    int size = IMAGES_TYPES.length;
-    Map <String, String[]> map = new HashMap<String, String[]>(size);
-    int i = 0;
-    while (i < size)  {
-      i++; // skip description
-      int key = i++;  // get mime type as key
-      String[] shortArray = new String[2];
-      shortArray[0] = IMAGES_TYPES[i++];  // get mime type for this class
-      shortArray[1] = IMAGES_TYPES[i++];  // get converted to this mime type
-      map.put(IMAGES_TYPES[key], shortArray);
-    }
-    return map;
-  }
-    
-
-  private Map initializeFileExtension() {
-    int size = FILE_EXTENSIONS.length;
-    Map <String, String> map = new HashMap<String, String>(size);
-    int i = 0;
-    while (i < size)  {
-      map.put(FILE_EXTENSIONS[i++],FILE_EXTENSIONS[i++]);
-    }
-    return map;
-  }
-
     
 
 /**
@@ -262,24 +190,24 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
 
     
   private String getValueForMimeType(String mimeType, int index, String errorString) {
-    String[] shortArray = (String[]) this.mimeTypes.get(mimeType);
-    if (shortArray == null) {
+    ImageFormat format = index == 0 ? this.formats.getFormatForMimeType(mimeType) : this.formats.getResultFormatForMimeType(mimeType);
+    if (format == null) {
 			return errorString;
 		}
-    return shortArray[index];  
+    return format.getName();  
   }        
     
   private String getExtensionForFormatedMimeType(String formatedMimeType) {
-    String extension = (String)this.extensionTypes.get(formatedMimeType);  
-    if (extension == null) {
+    ImageFormat format = this.formats.getFormat(formatedMimeType);  
+    if (format == null) {
 			return INVALID_FILE_EXTENSION;
 		}    
-    return extension;
+    return format.getExtension();
   }
 
 
   private String getMimeTypeForJai(String formatedMimeType) {
-    String result = (String) this.mimeTypesForJai.get(formatedMimeType);
+    String result = this.formats.getJaiCodecName(this.formats.getFormat(formatedMimeType));
     if (result == null) {
 			return UNKNOWN_MIME_TYPE;
 		}
@@ -373,7 +301,6 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
     }
     
 
-    Gif89Encoder gifenc = new Gif89Encoder();
     Canvas cv = new Canvas();
     Enumeration enumer = reader.getRasterImageEnumeration();
     
@@ -385,13 +312,16 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
     int loops = 1;
     int delay = 1;
     boolean notSetYet = true;
+    List<Image> scaledImages = new ArrayList<Image>();
+    GifFrameOptimizer optimizer = new GifFrameOptimizer(width, height);
     
     while (enumer.hasMoreElements())  {
       rasterImage = (JimiRasterImage) enumer.nextElement();
       imageProducer = rasterImage.getImageProducer();
       image = cv.createImage(imageProducer);
       scaledImage = image.getScaledInstance(width,height,Image.SCALE_DEFAULT);
-      gifenc.addFrame(scaledImage);
+      scaledImages.add(scaledImage);
+      optimizer.addFrame(getPixels(scaledImage, width, height));
       
       if (notSetYet)  {
         options = (GIFOptions) rasterImage.getOptions();
@@ -400,10 +330,36 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
         notSetYet = false;
       }
     }
+    
+    // write only the changed parts of the frames if the frames allow it
+    if (optimizer.encode(output, loops, delay)) {
+      return;
+    }
+    
+    Gif89Encoder gifenc = new Gif89Encoder();
+    Iterator<Image> iterator = scaledImages.iterator();
+    while (iterator.hasNext())  {
+      gifenc.addFrame(iterator.next());
+    }
     gifenc.setLoopCount(loops);
     gifenc.setUniformDelay(delay);
     gifenc.encode(output);   
   }
+  
+  private int[] getPixels(Image image, int width, int height) throws IOException {
+    int[] pixels = new int[width * height];
+    PixelGrabber grabber = new PixelGrabber(image, 0, 0, width, height, pixels, 0, width);
+    try {
+      if (! grabber.grabPixels()) {
+        throw new IOException("Grabbing pixels of frame failed, status: " + grabber.getStatus());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while grabbing pixels of frame");
+    }
+    return pixels;
+  }
 
   
   private ImageEncodeParam getEncoderParam(String inputMimeType, String outputMimeType, PlanarImage image)  {
@@ -549,8 +505,141 @@ public class ImageEncoderBean extends IBOServiceBean implements com.idega.graphi
 		return s;
   }
   
+  /**
+   * Encodes the image on a worker thread and returns a stream the caller can read from while the image is still being encoded.
+   * The encoded data passes through a small ring of reusable buffers, so the whole encoded image is never held in memory and the
+   * encoding waits when the reader falls behind. If encoding fails the reader gets the error as an IOException.
+   * The returned stream must be read to the end or closed; an encoding not read from for a minute is abandoned, and when too
+   * many encodings are waiting the returned stream fails at once.
+   * @param imageType valid JAI image type "JPEG","BMP","PNG","TIFF"...
+   */
+  public InputStream encodePlanarImageToPipedInputStream(final PlanarImage image, final String imageType){
+    return encodeOnWorker(new PipedEncoding() {
+      public void encode(OutputStream outputStream) {
+        JAI.create("encode", image, outputStream, imageType , null);
+      }
+    }, null);
+  }
+  
+  /**
+   * Encodes the image like {@link #encode(String, InputStream, OutputStream, int, int)} on a worker thread and returns a stream the
+   * caller can read from while the image is still being encoded, see {@link #encodePlanarImageToPipedInputStream(PlanarImage, String)}.
+   * The input stream is closed when encoding ends. The returned stream must be read to the end or closed.
+   */
+  public InputStream encodeToPipedInputStream(final String mimeType, final InputStream input, final int width, final int height){
+    return encodeOnWorker(new PipedEncoding() {
+      public void encode(OutputStream outputStream) throws IOException {
+        ImageEncoderBean.this.encode(mimeType, input, outputStream, width, height);
+      }
+    }, input);
+  }
+  
+  private interface PipedEncoding {
+    public void encode(OutputStream outputStream) throws IOException;
+  }
+  
+  /**
+   * @param input closed when the encoding ends, may be <code>null</code>
+   */
+  private InputStream encodeOnWorker(final PipedEncoding encoding, final InputStream input){
+    final BufferRingPipe pipe = new BufferRingPipe(BufferRingPipe.DEFAULT_BUFFER_COUNT, BufferRingPipe.DEFAULT_BUFFER_SIZE, PIPE_WRITE_TIMEOUT);
+    try {
+      ENCODING_EXECUTOR.execute(new Runnable() {
+        public void run() {
+          OutputStream outputStream = pipe.getOutputStream();
+          try {
+            encoding.encode(outputStream);
+            outputStream.close();
+          }
+          catch (Throwable t) {
+            pipe.fail(t);
+          }
+          finally {
+            IOUtil.close(input);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      pipe.fail(new IOException("Too many images are being encoded"));
+      IOUtil.close(input);
+    }
+    return pipe.getInputStream();
+  }
+  
+  private static ThreadPoolExecutor createEncodingExecutor(){
+    int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(threads * ENCODING_QUEUE_SIZE_PER_THREAD),
+        new DaemonThreadFactory("ImageEncoder"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+  
+  /**
+   * Scales every page of a multi-page TIFF document to fit into the provided size and passes the pages, encoded with the
+   * provided mime type, to the handler in page order. Pages are decoded lazily and processed in parallel, one page per worker.
+   * @see MultiPageTiffProcessor
+   */
+  public void encodeTiffPages(InputStream tiff, String mimeType, int width, int height, MultiPageTiffProcessor.PageHandler handler) throws IOException {
+    new MultiPageTiffProcessor().createPageImages(tiff, width, height, mimeType, handler);
+  }
+  
+  /**
+   * Writes a multi-page TIFF document with every page of the input document scaled to fit into the provided size
+   * @see MultiPageTiffProcessor
+   */
+  public void resizeMultiPageTiff(InputStream tiff, OutputStream output, int width, int height) throws IOException {
+    new MultiPageTiffProcessor().resize(tiff, output, width, height);
+  }
+  
+  /**
+   * Returns the decoded image of the URL, reusing the previously decoded image if the source has not changed since
+   * @see DecodedImageCache
+   */
   public PlanarImage getPlanarImage(String URL) throws MalformedURLException{
-	  return JAI.create("url", new URL(URL));
+	  return DecodedImageCache.getInstance().getImage(new URL(URL));
+  }
+  
+  /**
+   * Removes the decoded image of the URL from the cache used by getPlanarImage
+   */
+  public void invalidatePlanarImage(String URL) {
+	  DecodedImageCache.getInstance().invalidate(URL);
+  }
+  
+  /**
+   * Returns the image of a file stored in the repository (Slide), read from a local mirror of the file which is only downloaded
+   * again when the file changes. The image is decoded with random access to the local file, which is closed before returning.
+   * @see RepositoryMirror
+   */
+  public PlanarImage getPlanarImageFromRepository(String path) throws IOException {
+	  BufferedImage image = RepositoryMirror.getInstance().read(path, new RepositoryMirror.FileHandler<BufferedImage>() {
+		  public BufferedImage handle(File file) throws IOException {
+			  SeekableStream stream = new FileSeekableStream(file);
+			  try {
+				  return JAI.create("stream", stream).getAsBufferedImage();
+			  }
+			  finally {
+				  IOUtil.close(stream);
+			  }
+		  }
+	  });
+	  return PlanarImage.wrapRenderedImage(image);
+  }
+  
+  /**
+   * Encodes the image of a file stored in the repository (Slide) like {@link #encode(String, InputStream, OutputStream, int, int)},
+   * reading it from the local mirror of the file
+   * @see RepositoryMirror
+   */
+  public void encodeFromRepository(String mimeType, String path, OutputStream output, int width, int height) throws IOException {
+	  InputStream input = RepositoryMirror.getInstance().getInputStream(path);
+	  try {
+		  encode(mimeType, input, output, width, height);
+	  }
+	  finally {
+		  IOUtil.close(input);
+	  }
   }
   
   
@@ -19,6 +19,11 @@ public interface ImageGenerator {
 	 */
 	public boolean generatePreview(List <String> urls, List <String> names, String uploadDirectory, int width, int height, boolean encode, boolean makeJpg, float quality);
 	
+	/**
+	 * @see ImageGeneratorImpl#generatePreviewBatch(List, List, String, int, int, boolean, boolean, float)
+	 */
+	public PreviewBatch generatePreviewBatch(List <String> urls, List <String> names, String uploadDirectory, int width, int height, boolean encode, boolean makeJpg, float quality);
+	
 	/**
 	 * @see ImageGeneratorImpl#generateImage(String, int, int)
 	 */
@@ -29,14 +34,23 @@ public interface ImageGenerator {
 	 */
 	public BufferedImage generateImage(String urlToFile, int width, int height, boolean isJpg);
 	
+	/**
+	 * @see ImageGeneratorImpl#renderImage(String, int, int, boolean)
+	 */
+	public GeneratedImage renderImage(String urlToFile, int width, int height, boolean isJpg);
+	
 	/**
 	 * @see ImageGeneratorImpl#generateImageURLWithExternalService(String, int, int)
+	 * @deprecated use {@link HttpSnapshotProvider#getSnapshotURL(String, int, int)}
 	 */
+	@Deprecated
 	public URL generateImageURLWithExternalService(String urlToFile, int width, int height);
 	
 	/**
 	 * @see ImageGeneratorImpl#getFileExtension()
+	 * @deprecated use {@link GeneratedImage#getFileExtension()}
 	 */
+	@Deprecated
 	public String getFileExtension();
 	
 	/**
@@ -44,6 +58,11 @@ public interface ImageGenerator {
 	 */
 	public boolean encodeAndUploadImage(String uploadDirectory, String fileName, String mimeType, InputStream stream, int width, int height);
 	
+	/**
+	 * @see ImageGeneratorImpl#encodeAndUploadRepositoryImage(String, String, String, String, int, int)
+	 */
+	public boolean encodeAndUploadRepositoryImage(String uploadDirectory, String fileName, String mimeType, String path, int width, int height);
+	
 	/**
 	 * @see ImageGeneratorImpl#getConvertedImageFromPNGToJPG(BufferedImage)
 	 */
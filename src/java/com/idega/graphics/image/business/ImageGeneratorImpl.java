@@ -6,27 +6,21 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
 
-import org.xhtmlrenderer.simple.Graphics2DRenderer;
 import org.xhtmlrenderer.swing.Java2DRenderer;
 import org.xhtmlrenderer.util.DownscaleQuality;
 import org.xhtmlrenderer.util.FSImageWriter;
@@ -36,13 +30,13 @@ import org.xhtmlrenderer.util.XRLog;
 
 import com.idega.business.IBOLookup;
 import com.idega.business.IBOLookupException;
+import com.idega.graphics.image.format.ImageFormat;
+import com.idega.graphics.image.format.ImageFormatRegistry;
 import com.idega.graphics.util.GraphicsConstants;
+import com.idega.graphics.util.ReusableByteArrayOutputStream;
 import com.idega.idegaweb.IWApplicationContext;
 import com.idega.idegaweb.IWMainApplication;
 import com.idega.idegaweb.IWMainApplicationSettings;
-import com.idega.io.MemoryFileBuffer;
-import com.idega.io.MemoryInputStream;
-import com.idega.io.MemoryOutputStream;
 import com.idega.presentation.IWContext;
 import com.idega.slide.business.IWSlideService;
 import com.idega.util.CoreConstants;
@@ -53,25 +47,50 @@ public class ImageGeneratorImpl implements ImageGenerator {
 	
 	private static final Logger LOGGER = Logger.getLogger(ImageGeneratorImpl.class.getName());
 	
-	private static final String EXTERNAL_SERVICE = "http://webdesignbook.net/snapper.php?url=";
-	private static final String IMAGE_WIDTH_PARAM = "&w=";
-	private static final String IMAGE_HEIGHT_PARAM = "&h=";
 	private static final String MIME_TYPE = "image/";
 	
-	private String fileExtension = null;
+	/**
+	 * Setting to render previews straight at their size instead of scaling down a full size rendering
+	 */
+	public static final String PROPERTY_SCALED_RENDERING = "graphics.preview_scaled_rendering";
 	
-	private boolean isExternalService = false;
-
-	private IWSlideService service = null;
-	private ImageEncoder encoder = null;
-	private Random generator = null;
+	/**
+	 * Setting to turn off {@link PreviewCache}, so every preview is rendered and uploaded again
+	 */
+	public static final String PROPERTY_PREVIEW_CACHE = "graphics.preview_cache";
 	
+	private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+	
+	//	Buffers for encoding images with new quality, reused by every thread
+	private static final ThreadLocal<ReusableByteArrayOutputStream> QUALITY_BUFFERS = new ThreadLocal<ReusableByteArrayOutputStream>() {
+		@Override
+		protected ReusableByteArrayOutputStream initialValue() {
+			return new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		}
+	};
+	
+	private static class Holder {
+		private static final ImageGeneratorImpl INSTANCE = new ImageGeneratorImpl();
+	}
+
+	//	Only for getFileExtension(), every render returns its own format
+	private volatile String lastFileExtension = GraphicsConstants.JPG_FILE_NAME_EXTENSION;
+
+	//	Looked up once, a race only repeats the lookup of the same service
+	private volatile IWSlideService service = null;
+	private volatile ImageEncoder encoder = null;
+
+	/**
+	 * @return generator shared by all threads, it keeps no state of single renders
+	 */
+	public static ImageGeneratorImpl getInstance() {
+		return Holder.INSTANCE;
+	}
+
 	public ImageGeneratorImpl() {
-		generator = new Random();
-		
-		fileExtension = GraphicsConstants.JPG_FILE_NAME_EXTENSION;
 	}
-	
+
 	public ImageGeneratorImpl(IWContext iwc) {
 		this();
 		initializeSlideService(iwc);
@@ -97,103 +116,107 @@ public class ImageGeneratorImpl implements ImageGenerator {
 	}
 	
 	/**
-	 * Sets new quality to image
+	 * Sets new quality to image: encodes it with the quality and decodes it again, all in memory
 	 */
 	public BufferedImage getImageWithNewQuality(BufferedImage originalImage, float quality, boolean isJpgImage) {
 		if (originalImage == null) {
 			return null;
 		}
-		String tempFile = "temp_quality.";
-		if (isJpgImage) {
-			tempFile = new StringBuffer(tempFile).append(GraphicsConstants.JPG_FILE_NAME_EXTENSION).toString();
-		}
-		else {
-			tempFile = new StringBuffer(tempFile).append(GraphicsConstants.PNG_FILE_NAME_EXTENSION).toString();
-		}
-		File file = new File(tempFile);
-		if (file.exists()) {
-			file.delete();
-		} else {
-			try {
-				file.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
-			}
-		}
-
-		OutputStream fos = null;
-		try {
-			fos = new BufferedOutputStream(new FileOutputStream(file));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return null;
-		}
-		
-		FSImageWriter imageWriter = null;
-		if (isJpgImage) {
-			imageWriter = FSImageWriter.newJpegWriter(quality);
-		}
-		else {
-			imageWriter = new FSImageWriter();
-			imageWriter.setWriteCompressionQuality(quality);
-		}
 		
-        try {
-			imageWriter.write(originalImage, fos);
-			return ImageIO.read(file);
+		ReusableByteArrayOutputStream buffer = getQualityBuffer();
+		try {
+			getImageWriter(isJpgImage, quality).write(originalImage, buffer);
+			return ImageIO.read(buffer.toInputStream());
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		} finally {
-			file.delete();
-			IOUtil.close(fos);
+			releaseQualityBuffer(buffer);
 		}
 	}
 	
 	/**
-	 * Encodes image (from InputStream) and uploads to Slide
+	 * Encodes image (from InputStream) and uploads to Slide, the encoded image is streamed into Slide while it is encoded
 	 */
 	public boolean encodeAndUploadImage(String uploadDirectory, String fileName, String mimeType, InputStream stream, int width, int height) {
-		//TODO use new JAI methods
-		MemoryFileBuffer buff = new MemoryFileBuffer();
-		OutputStream output = new MemoryOutputStream(buff);
-		InputStream is = null;
-		boolean result = true;
+		return uploadImage(uploadDirectory, fileName, mimeType, getEncodingStream(mimeType, stream, width, height), true);
+	}
+	
+	/**
+	 * Encodes image stored in the repository and uploads to Slide, the original is read from the local mirror of the repository
+	 * @param path path of the original in the repository
+	 * @see RepositoryMirror
+	 */
+	public boolean encodeAndUploadRepositoryImage(String uploadDirectory, String fileName, String mimeType, String path, int width, int height) {
+		InputStream stream = null;
 		try {
-			getImageEncoder().encode(mimeType, stream, output, width, height);
-			is = new MemoryInputStream(buff);
-			result = uploadImage(uploadDirectory, fileName, is);
-		} catch (RemoteException e) {
-			e.printStackTrace();
-			return false;
+			stream = RepositoryMirror.getInstance().getInputStream(path);
 		} catch (IOException e) {
-			e.printStackTrace();
+			LOGGER.log(Level.WARNING, "Unable to read from repository: ".concat(path), e);
 			return false;
-		} finally {
+		}
+		return encodeAndUploadImage(uploadDirectory, fileName, mimeType, stream, width, height);
+	}
+	
+	/**
+	 * Encodes image (from InputStream) on the shared encoding workers while the returned stream is read
+	 * @see ImageEncoder#encodeToPipedInputStream(String, InputStream, int, int)
+	 */
+	private InputStream getEncodingStream(String mimeType, InputStream stream, int width, int height) {
+		//TODO use new JAI methods
+		try {
+			return getImageEncoder().encodeToPipedInputStream(mimeType, stream, width, height);
+		} catch (RemoteException e) {
 			IOUtil.close(stream);
-			IOUtil.close(output);
+			throw new IllegalStateException(e);
 		}
-		return result;
 	}
 	
 	/**
 	 * Generates preview of provided image (url), sets new quality and scales it to multiple images
 	 */
 	public List<BufferedImage> generatePreviews(String url, List<Dimension> dimensions, boolean isJpg, float quality) {
+		List<GeneratedImage> previews = generatePreviews(url, null, dimensions, isJpg, quality, true, null);
+		if (previews == null) {
+			return null;
+		}
+
+		List<BufferedImage> images = new ArrayList<BufferedImage>(previews.size());
+		for (GeneratedImage preview: previews) {
+			images.add(preview.getImage());
+		}
+		return images;
+	}
+
+	/**
+	 * @param page the XHTML of the page if it was already fetched, <code>null</code> to fetch it
+	 * @param applyQuality if <code>false</code> the quality is left to the final encoding of the previews
+	 * @param error gets the first error of rendering, may be <code>null</code>
+	 */
+	private List<GeneratedImage> generatePreviews(String url, byte[] page, List<Dimension> dimensions, boolean isJpg, float quality,
+			boolean applyQuality, AtomicReference<Throwable> error) {
 		if (StringUtil.isEmpty(url) || dimensions == null) {
 			return null;
 		}
-		
-		BufferedImage image = getImage(url, GraphicsConstants.GENERATED_IMAGE_HEIGHT, GraphicsConstants.GENERATED_IMAGE_WIDTH, isJpg);	//	"View" to image
-		if (image == null) {
+
+		if (isScaledRenderingEnabled()) {
+			List<GeneratedImage> images = generateScaledPreviews(url, page, dimensions, isJpg, quality, applyQuality, error);
+			if (images != null) {
+				return images;
+			}
+		}
+
+		GeneratedImage generated = getImage(url, page, GraphicsConstants.GENERATED_IMAGE_HEIGHT, GraphicsConstants.GENERATED_IMAGE_WIDTH, isJpg,
+				error);	//	"View" to image
+		if (generated == null) {
 			return null;
 		}
-		
+		BufferedImage image = generated.getImage();
+
 		long start = System.currentTimeMillis();
 
         //	Setting new quality
-		if (quality < 1) {
+		if (applyQuality && quality < 1) {
 			image = getImageWithNewQuality(image, quality, isJpg);
 	        if (image == null) {
 	        	return null;
@@ -208,23 +231,68 @@ public class ImageGeneratorImpl implements ImageGenerator {
         	return null;
         }
         
-        List<BufferedImage> allImages = new ArrayList<BufferedImage>(images.size());
+		long end = System.currentTimeMillis();
+        List<GeneratedImage> allImages = new ArrayList<GeneratedImage>(images.size());
         Object o = null;
         for (int i = 0; i < images.size(); i++) {
         	o = images.get(i);
         	if (o instanceof BufferedImage) {
-        		allImages.add((BufferedImage) o);
+        		allImages.add(generated.getDerivedImage((BufferedImage) o, end - start));
         	}
         }
 
-		isExternalService = false;
-
-		long end = System.currentTimeMillis();
 		LOGGER.info(new StringBuffer("Got images in ").append((end - start)).append(" ms: ").append(url).toString());
 
 		return allImages;
 	}
 	
+	/**
+	 * Renders the page layout straight into images of provided dimensions, without the full size intermediate image
+	 * @return the previews or <code>null</code> if rendering failed
+	 */
+	private List<GeneratedImage> generateScaledPreviews(String url, byte[] page, List<Dimension> dimensions, boolean isJpg, float quality,
+			boolean applyQuality, AtomicReference<Throwable> error) {
+		long start = System.currentTimeMillis();
+		
+		XRLog.setLoggingEnabled(true);
+		XRLog.setLevel(XRLog.EXCEPTION, Level.WARNING);
+		List<BufferedImage> images = null;
+		try {
+			images = PreviewRenderingContext.getInstance().renderScaledImages(url, page, GraphicsConstants.GENERATED_IMAGE_HEIGHT,
+					GraphicsConstants.GENERATED_IMAGE_WIDTH, dimensions, isJpg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to render scaled previews: ".concat(url), e);
+			if (error != null) {
+				error.compareAndSet(null, e);
+			}
+			return null;
+		}
+		
+		long rendered = System.currentTimeMillis();
+
+		if (applyQuality && quality < 1) {
+			for (int i = 0; i < images.size(); i++) {
+				BufferedImage image = getImageWithNewQuality(images.get(i), quality, isJpg);
+				if (image == null) {
+					return null;
+				}
+				images.set(i, image);
+			}
+		}
+
+		String fileExtension = isJpg ? GraphicsConstants.JPG_FILE_NAME_EXTENSION : GraphicsConstants.PNG_FILE_NAME_EXTENSION;
+		this.lastFileExtension = fileExtension;
+
+		long end = System.currentTimeMillis();
+		LOGGER.info(new StringBuffer("Rendered scaled images in ").append((end - start)).append(" ms: ").append(url).toString());
+
+		List<GeneratedImage> previews = new ArrayList<GeneratedImage>(images.size());
+		for (BufferedImage image: images) {
+			previews.add(new GeneratedImage(image, fileExtension, GeneratedImage.Source.RENDERER, rendered - start, end - rendered));
+		}
+		return previews;
+	}
+	
 	/**
 	 * Generates preview of provided web page
 	 */
@@ -234,44 +302,177 @@ public class ImageGeneratorImpl implements ImageGenerator {
 			return false;
 		}
 		
-		boolean result = true;
-		InputStream stream = getImageInputStream(url, width, height, makeJpg, quality);
-		String fullName = new StringBuffer(fileName).append(".").append(getFileExtension()).toString();
-		if (stream == null) {
-			LOGGER.warning("Error getting InputStream");
+		EncodedPreview preview = null;
+		try {
+			preview = renderPreview(url, fileName, uploadDirectory, width, height, encode, makeJpg, quality);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e.getMessage(), e.getCause());
 			return false;
 		}
-		
-		if (isExternalService) {
-			return uploadImage(uploadDirectory, fullName, stream);
+		return uploadPreview(uploadDirectory, preview);
+	}
+	
+	/**
+	 * Renders and encodes preview of provided web page without uploading it, unless the same content was already uploaded
+	 * @return the preview
+	 * @throws IOException if the preview could not be made, with the error of the render as the cause when there was one
+	 */
+	EncodedPreview renderPreview(String url, String fileName, String uploadDirectory, int width, int height, boolean encode, boolean makeJpg,
+			float quality) throws IOException {
+		boolean scaled = isScaledRenderingEnabled();
+		boolean useOldGenerator = isOldGeneratorEnabled();
+		String cacheKey = null;
+		//	The page fetched for the content key is rendered as it is, not fetched again
+		byte[] page = null;
+		if (isPreviewCacheEnabled()) {
+			PreviewCache cache = PreviewCache.getInstance();
+			page = cache.getPage(url);
+			cacheKey = page == null ? null : cache.getKey(url, page, width, height, encode, makeJpg, quality, scaled, useOldGenerator);
+			String cachedFileName = cacheKey == null ? null : cache.getFileName(uploadDirectory, fileName, cacheKey);
+			if (cachedFileName != null && existsInRepository(uploadDirectory, cachedFileName)) {
+				LOGGER.info(new StringBuffer("Page is not changed, using existing preview ").append(cachedFileName).append(": ").append(url).toString());
+				return EncodedPreview.getCachedPreview(fileName, cachedFileName, cacheKey);
+			}
 		}
 		
-		if (encode) {
-			result = encodeAndUploadImage(uploadDirectory, fullName, new StringBuffer(MIME_TYPE).append(getFileExtension()).toString(),
-					stream, width, height);
+		GeneratedImage image = null;
+		//	The first error of the render, the snapshot fallback may still make the preview
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		RenderingWorkerPool workers = RenderingWorkerPool.getInstance();
+		if (workers.isEnabled()) {
+			try {
+				byte[] preview = workers.render(url, width, height, makeJpg, quality, scaled, useOldGenerator);
+				String fileExtension = getFileExtension(makeJpg, scaled, useOldGenerator);
+				this.lastFileExtension = fileExtension;
+				return createPreview(fileName, fileExtension, new ByteArrayInputStream(preview), cacheKey, encode, width, height);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to render preview in worker process: ".concat(url), e);
+				error.compareAndSet(null, e);
+			}
+			//	Not rendering in this JVM, keeping it out of here is what the workers are for
+			image = getSnapshotPreview(url, width, height, makeJpg);
 		}
 		else {
-			return uploadImage(uploadDirectory, fullName, stream);
+			image = generatePreview(url, page, width, height, makeJpg, quality, error);
+		}
+		if (image == null) {
+			throw new IOException("Unable to render preview of ".concat(url), error.get());
 		}
 
-		return result;
+		ReusableByteArrayOutputStream output = new ReusableByteArrayOutputStream(getEstimatedEncodedSize(image.getImage()));
+		if (!writeImage(image.getImage(), image.getFileExtension(), quality, output)) {
+			throw new IOException("No image writer for: ".concat(image.getFileExtension()));
+		}
+		InputStream stream = output.toInputStream();
+
+		if (image.isExternalService()) {
+			//	Previews of the fallback service are not encoded and are replaced as soon as the page can be rendered
+			return createPreview(fileName, image.getFileExtension(), stream, null, false, width, height);
+		}
+		return createPreview(fileName, image.getFileExtension(), stream, cacheKey, encode, width, height);
+	}
+	
+	private EncodedPreview createPreview(String fileName, String fileExtension, InputStream stream, String cacheKey, boolean encode, int width,
+			int height) {
+		String fullName = new StringBuffer(fileName).append(".").append(fileExtension).toString();
+		String mimeType = getMimeType(fileExtension);
+		if (encode) {
+			return new EncodedPreview(fileName, fullName, mimeType, stream, cacheKey, width, height);
+		}
+		return new EncodedPreview(fileName, fullName, mimeType, stream, cacheKey);
+	}
+	
+	/**
+	 * Gets preview of provided size from the snapshot provider only
+	 * @return the preview or <code>null</code> if the provider failed
+	 */
+	private GeneratedImage getSnapshotPreview(String url, int width, int height, boolean isJpg) {
+		GeneratedImage snapshot = SnapshotFallback.getInstance().getSnapshot(url, GraphicsConstants.GENERATED_IMAGE_HEIGHT,
+				GraphicsConstants.GENERATED_IMAGE_WIDTH);
+		if (snapshot == null) {
+			return null;
+		}
+		this.lastFileExtension = snapshot.getFileExtension();
+
+		long start = System.currentTimeMillis();
+		List<Dimension> dimensions = new ArrayList<Dimension>(1);
+		dimensions.add(new Dimension(width, height));
+		@SuppressWarnings("unchecked")
+		List<Object> images = ImageUtil.scaleMultiple(getScalingOptions(isJpg), snapshot.getImage(), dimensions);
+		if (images == null || images.isEmpty() || !(images.get(0) instanceof BufferedImage)) {
+			return null;
+		}
+		return snapshot.getDerivedImage((BufferedImage) images.get(0), System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Uploads rendered preview to Slide and remembers the content it was rendered from
+	 */
+	boolean uploadPreview(String uploadDirectory, EncodedPreview preview) {
+		return uploadPreview(uploadDirectory, preview, true);
+	}
+	
+	/**
+	 * Uploads rendered preview to Slide, encoding it on the way if needed, and remembers the content it was rendered from
+	 * @param createFolders <code>false</code> if the directory is known to exist
+	 */
+	boolean uploadPreview(String uploadDirectory, EncodedPreview preview, boolean createFolders) {
+		if (preview.isCached()) {
+			return true;
+		}
+		
+		InputStream stream = preview.getStream();
+		if (preview.isToEncode()) {
+			stream = getEncodingStream(preview.getMimeType(), stream, preview.getEncodingWidth(), preview.getEncodingHeight());
+		}
+		boolean uploaded = uploadImage(uploadDirectory, preview.getFileName(), preview.getMimeType(), stream, createFolders);
+		if (isPreviewCacheEnabled()) {
+			if (uploaded && preview.getCacheKey() != null) {
+				PreviewCache.getInstance().put(uploadDirectory, preview.getName(), preview.getFileName(), preview.getCacheKey());
+			}
+			else {
+				PreviewCache.getInstance().remove(uploadDirectory, preview.getName());
+			}
+		}
+		return uploaded;
 	}
 
 	/**
 	 * Generates preview of provided web pages
+	 * @return <code>true</code> if previews of all pages were generated
 	 */
 	public boolean generatePreview(List<String> urls, List<String> names, String uploadDirectory, int width, int height,
 			boolean encode, boolean makeJpg, float quality) {
-		if (!areValidParameters(urls, names, uploadDirectory, width, height)) {
+		PreviewBatch batch = generatePreviewBatch(urls, names, uploadDirectory, width, height, encode, makeJpg, quality);
+		if (batch == null) {
 			return false;
 		}
 		
-		boolean result = true;
-		
-		for (int i = 0; i < urls.size(); i++) {
-			result = generatePreview(urls.get(i), names.get(i), uploadDirectory, width, height, encode, makeJpg, quality);
+		try {
+			for (PreviewResult result: batch.getResults()) {
+				if (!result.isSuccessful()) {
+					return false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			batch.cancel();
+			return false;
 		}
-		return result;
+		return true;
+	}
+	
+	/**
+	 * Generates previews of provided web pages concurrently
+	 * @return the batch which can be waited for or cancelled, <code>null</code> if parameters are invalid
+	 */
+	public PreviewBatch generatePreviewBatch(List<String> urls, List<String> names, String uploadDirectory, int width, int height,
+			boolean encode, boolean makeJpg, float quality) {
+		if (!areValidParameters(urls, names, uploadDirectory, width, height)) {
+			return null;
+		}
+		
+		return PreviewBatchGenerator.getInstance().generatePreviews(urls, names, uploadDirectory, width, height, encode, makeJpg, quality);
 	}
 	
 	/**
@@ -313,34 +514,29 @@ public class ImageGeneratorImpl implements ImageGenerator {
 			return null;
 		}
 		
-		//	Building InputStream
-		String fileName = new StringBuffer("temp_").append(generator.nextInt(Integer.MAX_VALUE)).append(CoreConstants.DOT).append(extension).toString();
-		File imageFile = new File(fileName);
-		if (imageFile.exists()) {
-			imageFile.delete();
-		} else {
-			try {
-				imageFile.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
+		ReusableByteArrayOutputStream output = new ReusableByteArrayOutputStream(getEstimatedEncodedSize(image));
+		try {
+			if (!ImageIO.write(image, extension, output)) {
+				LOGGER.warning("No image writer for: ".concat(extension));
 				return null;
 			}
-		}
-		try {
-			ImageIO.write(image, extension, imageFile);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
-		InputStream stream = null;
-		try {
-			stream = new BufferedInputStream(new FileInputStream(imageFile));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return null;
+		return output.toInputStream();
+	}
+	
+	/**
+	 * Encodes image with provided quality, quality 1 or more writes it as it is
+	 * @return <code>false</code> if there is no writer for the format
+	 */
+	static boolean writeImage(BufferedImage image, String extension, float quality, OutputStream output) throws IOException {
+		if (quality >= 1) {
+			return ImageIO.write(image, extension, output);
 		}
-		imageFile.delete();
-		return stream;
+		getImageWriter(GraphicsConstants.JPG_FILE_NAME_EXTENSION.equals(extension), quality).write(image, output);
+		return true;
 	}
 	
 	/**
@@ -368,115 +564,116 @@ public class ImageGeneratorImpl implements ImageGenerator {
 	 * Generates image with Flying Saucer XHTMLRenderer
 	 */
 	public BufferedImage generateImage(String urlToFile, int width, int height, boolean isJpg) {
+		GeneratedImage image = renderImage(urlToFile, width, height, isJpg);
+		return image == null ? null : image.getImage();
+	}
+
+	/**
+	 * Generates image with Flying Saucer XHTMLRenderer
+	 * @return the image with its format or <code>null</code> if rendering failed
+	 */
+	public GeneratedImage renderImage(String urlToFile, int width, int height, boolean isJpg) {
 		if (urlToFile == null) {
 			return null;
 		}
-		
+		try {
+			return render(urlToFile, null, width, height, isJpg);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to generate image with XHTMLRenderer: ".concat(urlToFile), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Generates image with Flying Saucer XHTMLRenderer
+	 * @param page the XHTML of the page if it was already fetched, <code>null</code> to fetch it
+	 */
+	private GeneratedImage render(String urlToFile, byte[] page, int width, int height, boolean isJpg) throws Exception {
 		long start = System.currentTimeMillis();
 		LOGGER.info(new StringBuffer("Trying with XHTMLRenderer: ").append(urlToFile).toString());
-		String errorMessage = "Unable to generate image with XHTMLRenderer: ";
-		
-		IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
-		boolean useOldGenerator = settings.getBoolean(CoreConstants.APPLICATION_PROPERTY_TO_USE_OLD_THEME_PREVIEW_GENERATOR, Boolean.FALSE);
-		
+
+		boolean useOldGenerator = isOldGeneratorEnabled();
+
 		XRLog.setLoggingEnabled(true);
 		XRLog.setLevel(XRLog.EXCEPTION, Level.WARNING);
 		BufferedImage image = null;
 		if (useOldGenerator) {
-			try {
-				image = Graphics2DRenderer.renderToImage(urlToFile, width, height);
-			} catch (Exception e) {
-				LOGGER.log(Level.WARNING, errorMessage.concat(urlToFile), e);
-				return null;
-			}
+			image = PreviewRenderingContext.getInstance().renderToImage(urlToFile, page, width, height);
 		} else {
-			Java2DRenderer renderer = new Java2DRenderer(urlToFile, width, height);
+			Java2DRenderer renderer = PreviewRenderingContext.getInstance().createRenderer(urlToFile, page, width, height);
 			renderer.setBufferedImageType(isJpg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
-			try {
-				image = renderer.getImage();
-			} catch (Exception e) {
-				LOGGER.log(Level.WARNING, errorMessage.concat(urlToFile), e);
-				return null;
-			}
+			image = renderer.getImage();
 		}
-		
-		setFileExtension(useOldGenerator ? GraphicsConstants.PNG_FILE_NAME_EXTENSION :
-								   isJpg ? GraphicsConstants.JPG_FILE_NAME_EXTENSION : GraphicsConstants.PNG_FILE_NAME_EXTENSION);
-		
+
+		String fileExtension = getFileExtension(isJpg, false, useOldGenerator);
+		this.lastFileExtension = fileExtension;
+
 		long end = System.currentTimeMillis();
 		LOGGER.info(new StringBuffer("XHTMLRenderer: success in ").append((end - start)).append(" ms: ").append(urlToFile).toString());
-		
-		return image;
+
+		return new GeneratedImage(image, fileExtension, GeneratedImage.Source.RENDERER, end - start, 0);
 	}
-	
+
 	/**
 	 * Returns URL: a link to service to read generated image
+	 * @deprecated the service is called by {@link SnapshotFallback} when rendering fails, use
+	 *             {@link HttpSnapshotProvider#getSnapshotURL(String, int, int)}
 	 */
+	@Deprecated
 	public URL generateImageURLWithExternalService(String urlToFile, int width, int height) {
-		LOGGER.info("Trying with external service: ".concat(urlToFile));
-		URL url = null;
+		IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
+		String serviceUrl = settings.getProperty(SnapshotFallback.PROPERTY_SERVICE_URL, SnapshotFallback.DEFAULT_SERVICE_URL);
 		try {
-			url = new URL(new StringBuffer(EXTERNAL_SERVICE).append(urlToFile).append(IMAGE_WIDTH_PARAM).append(width)
-					.append(IMAGE_HEIGHT_PARAM).append(height).toString());
-		} catch (MalformedURLException e) {
+			return new HttpSnapshotProvider(serviceUrl, 0, 0).getSnapshotURL(urlToFile, width, height);
+		} catch (IOException e) {
 			LOGGER.log(Level.WARNING, "Unable to generate image with external service: ".concat(urlToFile), e);
 			return null;
 		}
-		LOGGER.info("External service: success: ".concat(urlToFile));
-		return url;
 	}
 
+	/**
+	 * @deprecated the extension of the image generated last by any thread, use {@link GeneratedImage#getFileExtension()}
+	 */
+	@Deprecated
 	public String getFileExtension() {
-		return fileExtension;
+		return this.lastFileExtension;
 	}
-	
+
 	/**
-	 * Gets InputStream of generated image
+	 * Generates preview of provided size, the quality is left to encoding the preview
 	 * @param urlToFile - where tu find a web file
 	 * @param width - image width
 	 * @param height - image height
-	 * @return InputStream or null if error
+	 * @return the preview or null if error
 	 */
-	private InputStream getImageInputStream(String urlToFile, int width, int height, boolean makeJpg, float quality) {
-		long start = System.currentTimeMillis();
-		
+	private GeneratedImage generatePreview(String urlToFile, byte[] page, int width, int height, boolean makeJpg, float quality,
+			AtomicReference<Throwable> error) {
 		List<Dimension> dimensions = new ArrayList<Dimension>(1);
 		dimensions.add(new Dimension(width, height));
-		List<BufferedImage> images = generatePreviews(urlToFile, dimensions, makeJpg, quality);
+		List<GeneratedImage> images = generatePreviews(urlToFile, page, dimensions, makeJpg, quality, false, error);
 		if (images == null) {
 			return null;
 		}
 		if (images.size() == 0) {
 			return null;
 		}
-		
-		BufferedImage image = images.get(0);
-		if (image == null) {
-			return null;
-		}
-		
-		InputStream stream = null;
-		stream = getImageInputStream(image, getFileExtension());
-		if (stream == null) {
+
+		GeneratedImage image = images.get(0);
+		if (image.getImage() == null) {
 			return null;
 		}
-			
-		long end = System.currentTimeMillis();
-		LOGGER.info(new StringBuffer("Got image InputStream in ").append((end - start)).append(" ms: ").append(urlToFile).toString());
-			
-		return stream;
+		return image;
 	}
 
-	private void setFileExtension(String fileExtension) {
-		this.fileExtension = fileExtension.toLowerCase();
-	}
-	
 	private IWSlideService getSlideService() {
-		initializeSlideService(IWMainApplication.getDefaultIWApplicationContext());
+		IWSlideService service = this.service;
+		if (service == null) {
+			service = initializeSlideService(IWMainApplication.getDefaultIWApplicationContext());
+		}
 		return service;
 	}
-	
-	private synchronized void initializeSlideService(IWApplicationContext iwac) {
+
+	private IWSlideService initializeSlideService(IWApplicationContext iwac) {
 		if (service == null) {
 			try {
 				service = IBOLookup.getServiceInstance(iwac, IWSlideService.class);
@@ -484,9 +681,10 @@ public class ImageGeneratorImpl implements ImageGenerator {
 				e.printStackTrace();
 			}
 		}
+		return service;
 	}
-	
-	private synchronized void initializeImageEncoder(IWApplicationContext iwac) {
+
+	private ImageEncoder initializeImageEncoder(IWApplicationContext iwac) {
 		if (encoder == null) {
 			try {
 				encoder = IBOLookup.getServiceInstance(iwac, ImageEncoder.class);
@@ -494,14 +692,55 @@ public class ImageGeneratorImpl implements ImageGenerator {
 				e.printStackTrace();
 			}
 		}
+		return encoder;
 	}
-	
+
 	private ImageEncoder getImageEncoder() {
-		initializeImageEncoder(IWMainApplication.getDefaultIWApplicationContext());
+		ImageEncoder encoder = this.encoder;
+		if (encoder == null) {
+			encoder = initializeImageEncoder(IWMainApplication.getDefaultIWApplicationContext());
+		}
 		return encoder;
 	}
 	
-	private ScalingOptions getScalingOptions(boolean isJpg) {
+	private boolean isPreviewCacheEnabled() {
+		IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
+		return settings.getBoolean(PROPERTY_PREVIEW_CACHE, Boolean.TRUE);
+	}
+	
+	private boolean existsInRepository(String directory, String fileName) {
+		String path = directory.endsWith("/") ? directory.concat(fileName) : new StringBuffer(directory).append("/").append(fileName).toString();
+		try {
+			return getSlideService().getExistence(path);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to check if file exists: ".concat(path), e);
+			return false;
+		}
+	}
+	
+	private boolean isScaledRenderingEnabled() {
+		IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
+		return settings.getBoolean(PROPERTY_SCALED_RENDERING, Boolean.FALSE);
+	}
+	
+	private boolean isOldGeneratorEnabled() {
+		IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
+		return settings.getBoolean(CoreConstants.APPLICATION_PROPERTY_TO_USE_OLD_THEME_PREVIEW_GENERATOR, Boolean.FALSE);
+	}
+	
+	/**
+	 * @param scaled <code>true</code> if the page was rendered straight at the size of the preview
+	 * @param oldGenerator <code>true</code> if the page was rendered with the old generator, which only makes PNG images
+	 * @return extension of the rendered preview
+	 */
+	static String getFileExtension(boolean isJpg, boolean scaled, boolean oldGenerator) {
+		if (oldGenerator && !scaled) {
+			return GraphicsConstants.PNG_FILE_NAME_EXTENSION;
+		}
+		return isJpg ? GraphicsConstants.JPG_FILE_NAME_EXTENSION : GraphicsConstants.PNG_FILE_NAME_EXTENSION;
+	}
+	
+	static ScalingOptions getScalingOptions(boolean isJpg) {
 		DownscaleQuality quality = DownscaleQuality.LOW_QUALITY;
 		if (isJpg) {
 			quality = DownscaleQuality.HIGH_QUALITY;
@@ -509,29 +748,50 @@ public class ImageGeneratorImpl implements ImageGenerator {
 		return new ScalingOptions(quality, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
 	}
 
-	private BufferedImage getImage(String urlToFile, int width, int height, boolean isJpg) {
-		BufferedImage generatedImage = generateImage(urlToFile, width, height, isJpg);
-		if (generatedImage == null) {
-			//	Failed to generate image, trying with external service
-			URL url = generateImageURLWithExternalService(urlToFile, width, height);
-			try {
-				generatedImage = ImageIO.read(url);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
+	/**
+	 * Renders the page, falling back to the snapshot provider
+	 * @param page the XHTML of the page if it was already fetched, <code>null</code> to fetch it
+	 * @param error gets the error of rendering, may be <code>null</code>
+	 */
+	private GeneratedImage getImage(final String urlToFile, final byte[] page, final int width, final int height, final boolean isJpg,
+			final AtomicReference<Throwable> error) {
+		GeneratedImage generatedImage = SnapshotFallback.getInstance().getImage(new Callable<GeneratedImage>() {
+			public GeneratedImage call() throws Exception {
+				try {
+					return render(urlToFile, page, width, height, isJpg);
+				} catch (Exception e) {
+					if (error != null) {
+						error.compareAndSet(null, e);
+					}
+					throw e;
+				}
 			}
-			setFileExtension(GraphicsConstants.JPG_FILE_NAME_EXTENSION);
-			isExternalService = true;
+		}, urlToFile, width, height);
+		if (generatedImage != null && generatedImage.isExternalService()) {
+			this.lastFileExtension = generatedImage.getFileExtension();
 		}
-		
 		return generatedImage;
 	}
 	
-	private boolean uploadImage(String uploadDirectory, String fullName, InputStream stream) {
+	/**
+	 * Creates the directory and its parents in Slide
+	 */
+	boolean createFolders(String directory) {
+		try {
+			return getSlideService().createAllFoldersInPathAsRoot(directory);
+		} catch (RemoteException e) {
+			LOGGER.log(Level.WARNING, "Unable to create folders: ".concat(directory), e);
+			return false;
+		}
+	}
+	
+	private boolean uploadImage(String uploadDirectory, String fullName, String mimeType, InputStream stream, boolean createFolders) {
 		boolean result = true;
 		try {
-			if (!getSlideService().uploadFileAndCreateFoldersFromStringAsRoot(uploadDirectory, fullName, stream,
-					new StringBuffer(MIME_TYPE).append(getFileExtension()).toString(), true)) {
+			boolean uploaded = createFolders ?
+					getSlideService().uploadFileAndCreateFoldersFromStringAsRoot(uploadDirectory, fullName, stream, mimeType, true) :
+					getSlideService().uploadFile(uploadDirectory, fullName, mimeType, stream);
+			if (!uploaded) {
 				LOGGER.warning("Error uploading file: ".concat(fullName));
 				result = false;
 			}
@@ -544,6 +804,41 @@ public class ImageGeneratorImpl implements ImageGenerator {
 		return result;
 	}
 	
+	private static FSImageWriter getImageWriter(boolean isJpg, float quality) {
+		if (isJpg) {
+			return FSImageWriter.newJpegWriter(quality);
+		}
+		FSImageWriter imageWriter = new FSImageWriter();
+		imageWriter.setWriteCompressionQuality(quality);
+		return imageWriter;
+	}
+	
+	private ReusableByteArrayOutputStream getQualityBuffer() {
+		ReusableByteArrayOutputStream buffer = QUALITY_BUFFERS.get();
+		buffer.reset();
+		return buffer;
+	}
+	
+	private void releaseQualityBuffer(ReusableByteArrayOutputStream buffer) {
+		buffer.reset();
+		if (buffer.getCapacity() > MAX_RETAINED_BUFFER_SIZE) {
+			//	Do not keep buffers of huge images for the lifetime of the thread
+			QUALITY_BUFFERS.remove();
+		}
+	}
+	
+	private int getEstimatedEncodedSize(BufferedImage image) {
+		return Math.max(INITIAL_BUFFER_SIZE, image.getWidth() * image.getHeight() / 2);
+	}
+	
+	private String getMimeType(String extension) {
+		ImageFormat format = ImageFormatRegistry.getInstance().getFormatForExtension(extension);
+		if (format == null || format.getMimeType() == null) {
+			return new StringBuffer(MIME_TYPE).append(extension).toString();
+		}
+		return format.getMimeType();
+	}
+	
 	private boolean areValidParameters(List<String> urls, List<String> names, String directory, int width, int height) {
 		if (urls == null || names == null) {
 			return false;
@@ -16,4 +16,10 @@ public interface ImageResizer {
 
 	public InputStream getScaledImageIfBigger(int newSize, InputStream streamToImage, String imageType) throws IOException;
 
+	/**
+	 * Scales image stored in the repository, the original is read from the local mirror of the repository
+	 * @param path path of the original in the repository
+	 */
+	public InputStream getScaledRepositoryImage(int newWidth, int newHeight, String path, String imageType) throws IOException;
+
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+package com.idega.graphics.image.business;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.media.jai.PlanarImage;
+
+import com.idega.graphics.image.format.ImageFormat;
+import com.idega.graphics.image.format.ImageFormatRegistry;
+import com.idega.graphics.util.DaemonThreadFactory;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.util.IOUtil;
+import com.sun.media.jai.codec.FileCacheSeekableStream;
+import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.ImageDecoder;
+import com.sun.media.jai.codec.ImageEncoder;
+import com.sun.media.jai.codec.SeekableStream;
+import com.sun.media.jai.codec.TIFFEncodeParam;
+
+/**
+ * Title:         idegaWeb
+ * Description:   Processes multi-page TIFF documents page by page. Pages are decoded lazily through
+ *                the JAI TIFF decoder and scaled on a pool of workers shared by all documents, every
+ *                worker holds one page at a time and only a few scaled pages wait to be written, so
+ *                documents with hundreds of pages never have to fit into memory.
+ *                The input is cached in a temporary file while it is processed.
+ * Copyright:     Copyright (c) 2003
+ * Company:       idega software
+ */
+public class MultiPageTiffProcessor {
+
+	public static final String PROPERTY_PARALLELISM = "graphics.tiff_page_parallelism";
+
+	private static final Logger LOGGER = Logger.getLogger(MultiPageTiffProcessor.class.getName());
+
+	private static final String TIFF_CODEC = "tiff";
+
+	//	pages waiting for a worker, when the queue is full the reading thread decodes the page itself
+	private static final int PAGE_QUEUE_SIZE_PER_THREAD = 4;
+
+	/**
+	 * Workers shared by all documents, created on first use
+	 */
+	private static class Holder {
+		private static final ExecutorService PAGE_EXECUTOR = createPageExecutor();
+	}
+
+	/**
+	 * Receives the pages in page order, always on the thread that started the processing
+	 */
+	public interface PageHandler {
+		public void handlePage(int pageIndex, int pageCount, byte[] encodedPage) throws IOException;
+	}
+
+	private final int parallelism;
+
+	public MultiPageTiffProcessor() {
+		this(getConfiguredParallelism());
+	}
+
+	/**
+	 * @param parallelism how many pages of a document are decoded and scaled ahead, the workers are shared by all
+	 *            documents and their number is set by {@link #PROPERTY_PARALLELISM}
+	 */
+	public MultiPageTiffProcessor(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	private static int getConfiguredParallelism() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		if (application == null) {
+			return processors;
+		}
+		String value = application.getSettings().getProperty(PROPERTY_PARALLELISM, String.valueOf(processors));
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid value of " + PROPERTY_PARALLELISM + ": " + value + ", using " + processors);
+			return processors;
+		}
+	}
+
+	private static ExecutorService createPageExecutor() {
+		int threads = Math.max(1, getConfiguredParallelism());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(threads * PAGE_QUEUE_SIZE_PER_THREAD), new DaemonThreadFactory("TiffPages"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Scales every page of the TIFF document to fit into the provided size, encodes it with the provided mime type and
+	 * passes it to the handler
+	 */
+	public void createPageImages(InputStream tiff, int width, int height, String mimeType, PageHandler handler) throws IOException {
+		ImageFormatRegistry formats = ImageFormatRegistry.getInstance();
+		ImageFormat format = formats.getFormatForMimeType(mimeType);
+		String codecName = formats.getJaiCodecName(format);
+		if (codecName == null) {
+			throw new IOException("Mime type " + mimeType + " not recognized by JAI");
+		}
+
+		PageReader pages = new PageReader(tiff, width, height);
+		try {
+			int pageCount = pages.getPageCount();
+			for (int i = 0; i < pageCount; i++) {
+				BufferedImage page = pages.nextPage();
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				ImageEncoder encoder = ImageCodec.createImageEncoder(codecName, output, null);
+				if (encoder == null) {
+					throw new IOException("JAI can not encode mime type " + mimeType);
+				}
+				encoder.encode(page);
+				handler.handlePage(i, pageCount, output.toByteArray());
+			}
+		} finally {
+			pages.close();
+		}
+	}
+
+	/**
+	 * Writes a multi-page TIFF document with every page scaled to fit into the provided size
+	 */
+	public void resize(InputStream tiff, OutputStream output, int width, int height) throws IOException {
+		final PageReader pages = new PageReader(tiff, width, height);
+		try {
+			if (pages.getPageCount() == 0) {
+				throw new IOException("TIFF document has no pages");
+			}
+			BufferedImage firstPage = pages.nextPage();
+
+			TIFFEncodeParam param = new TIFFEncodeParam();
+			param.setCompression(TIFFEncodeParam.COMPRESSION_DEFLATE);
+			param.setExtraImages(new Iterator<RenderedImage>() {
+				public boolean hasNext() {
+					return pages.hasNext();
+				}
+				public RenderedImage next() {
+					try {
+						return pages.nextPage();
+					} catch (IOException e) {
+						throw new PageException(e);
+					}
+				}
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			});
+
+			try {
+				ImageCodec.createImageEncoder(TIFF_CODEC, output, param).encode(firstPage);
+			} catch (PageException e) {
+				throw e.getCause();
+			}
+		} finally {
+			pages.close();
+		}
+		output.flush();
+	}
+
+	private static class PageException extends RuntimeException {
+		private static final long serialVersionUID = -1867440853398237254L;
+
+		private PageException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	/**
+	 * Reads the pages in order, decoding and scaling the next pages on the workers ahead of time
+	 */
+	private class PageReader {
+
+		private final SeekableStream stream;
+		private final ImageDecoder decoder;
+		private final int pageCount;
+		private final int width;
+		private final int height;
+
+		private final ExecutorService executor;
+		private final LinkedList<Future<BufferedImage>> window = new LinkedList<Future<BufferedImage>>();
+		private int nextToSubmit = 0;
+		private int nextToRead = 0;
+
+		private PageReader(InputStream tiff, int width, int height) throws IOException {
+			this.stream = new FileCacheSeekableStream(tiff);
+			this.decoder = ImageCodec.createImageDecoder(TIFF_CODEC, this.stream, null);
+			this.pageCount = this.decoder.getNumPages();
+			this.width = width;
+			this.height = height;
+			this.executor = Holder.PAGE_EXECUTOR;
+		}
+
+		private int getPageCount() {
+			return this.pageCount;
+		}
+
+		private boolean hasNext() {
+			return this.nextToRead < this.pageCount;
+		}
+
+		private BufferedImage nextPage() throws IOException {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			fillWindow();
+			Future<BufferedImage> page = this.window.removeFirst();
+			this.nextToRead++;
+			fillWindow();
+			try {
+				return page.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while processing TIFF pages");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				IOException exception = new IOException("Error processing page " + (this.nextToRead - 1));
+				exception.initCause(cause);
+				throw exception;
+			}
+		}
+
+		private void fillWindow() {
+			while (this.nextToSubmit < this.pageCount && this.window.size() < MultiPageTiffProcessor.this.parallelism) {
+				final int pageIndex = this.nextToSubmit++;
+				this.window.add(this.executor.submit(new Callable<BufferedImage>() {
+					public BufferedImage call() throws IOException {
+						return scale(decodePage(pageIndex), PageReader.this.width, PageReader.this.height);
+					}
+				}));
+			}
+		}
+
+		private BufferedImage decodePage(int pageIndex) throws IOException {
+			//	The decoder reads from one stream, so pages are read one at a time and scaled in parallel
+			synchronized (this.decoder) {
+				RenderedImage page = this.decoder.decodeAsRenderedImage(pageIndex);
+				return PlanarImage.wrapRenderedImage(page).getAsBufferedImage();
+			}
+		}
+
+		private void close() {
+			for (Future<BufferedImage> page : this.window) {
+				page.cancel(true);
+			}
+			this.window.clear();
+			IOUtil.close(this.stream);
+		}
+	}
+
+	/**
+	 * Scales the page to fit into the size keeping its proportions, halving it step by step to keep the quality of
+	 * large reductions
+	 */
+	private static BufferedImage scale(BufferedImage page, int width, int height) {
+		double ratio = Math.min((double) width / page.getWidth(), (double) height / page.getHeight());
+		int targetWidth = Math.max(1, (int) Math.round(page.getWidth() * ratio));
+		int targetHeight = Math.max(1, (int) Math.round(page.getHeight() * ratio));
+
+		BufferedImage current = page;
+		int currentWidth = page.getWidth();
+		int currentHeight = page.getHeight();
+		do {
+			currentWidth = Math.max(targetWidth, currentWidth / 2);
+			currentHeight = Math.max(targetHeight, currentHeight / 2);
+			if (ratio >= 1) {
+				currentWidth = targetWidth;
+				currentHeight = targetHeight;
+			}
+
+			BufferedImage scaled = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = scaled.createGraphics();
+			try {
+				g.setColor(Color.WHITE);
+				g.fillRect(0, 0, currentWidth, currentHeight);
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				g.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+			} finally {
+				g.dispose();
+			}
+			current = scaled;
+		} while (currentWidth != targetWidth || currentHeight != targetHeight);
+		return current;
+	}
+}
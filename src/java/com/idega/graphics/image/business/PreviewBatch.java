@@ -0,0 +1,126 @@
+package com.idega.graphics.image.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Previews of several web pages being generated by the {@link PreviewBatchGenerator}. Pages are
+ * rendered concurrently and every preview is uploaded as soon as it is rendered, while the other
+ * pages are still rendering.
+ * </p>
+ */
+public class PreviewBatch {
+
+	private final List<Item> items;
+	private final CountDownLatch remaining;
+	private volatile boolean cancelled = false;
+
+	PreviewBatch(List<String> urls, List<String> names) {
+		List<Item> items = new ArrayList<Item>(urls.size());
+		for (int i = 0; i < urls.size(); i++) {
+			items.add(new Item(urls.get(i), names.get(i)));
+		}
+		this.items = Collections.unmodifiableList(items);
+		this.remaining = new CountDownLatch(items.size());
+	}
+
+	List<Item> getItems() {
+		return this.items;
+	}
+
+	/**
+	 * Waits until all previews are generated, failed or cancelled
+	 * @return result of every page in the order the pages were provided
+	 */
+	public List<PreviewResult> getResults() throws InterruptedException {
+		this.remaining.await();
+		List<PreviewResult> results = new ArrayList<PreviewResult>(this.items.size());
+		for (Item item: this.items) {
+			results.add(item.result);
+		}
+		return results;
+	}
+
+	public boolean isDone() {
+		return this.remaining.getCount() == 0;
+	}
+
+	/**
+	 * Stops generating the previews, previews that are rendered or uploaded at the moment are interrupted and the rest are
+	 * not started
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		for (Item item: this.items) {
+			item.cancel();
+		}
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * One page of the batch
+	 */
+	class Item {
+
+		private final String url;
+		private final String name;
+
+		private Future<?> task = null;
+		private PreviewResult result = null;
+		private long renderTime = 0;
+
+		private Item(String url, String name) {
+			this.url = url;
+			this.name = name;
+		}
+
+		String getUrl() {
+			return this.url;
+		}
+
+		String getName() {
+			return this.name;
+		}
+
+		synchronized void setTask(Future<?> task) {
+			this.task = task;
+			if (PreviewBatch.this.cancelled) {
+				cancel();
+			}
+		}
+
+		synchronized void setRenderTime(long renderTime) {
+			this.renderTime = renderTime;
+		}
+
+		synchronized void complete(boolean successful, long uploadTime, Throwable error) {
+			if (this.result != null) {
+				return;
+			}
+			boolean cancelled = !successful && PreviewBatch.this.cancelled;
+			this.result = new PreviewResult(this.url, this.name, successful, cancelled, this.renderTime, uploadTime, error);
+			PreviewBatch.this.remaining.countDown();
+		}
+
+		private synchronized void cancel() {
+			if (this.task != null) {
+				this.task.cancel(true);
+			}
+			if (this.task == null || this.task.isCancelled()) {
+				//	Cancelled tasks are never run, so they can not complete the item themselves
+				complete(false, 0, null);
+			}
+		}
+
+		boolean isCancelled() {
+			return PreviewBatch.this.cancelled;
+		}
+	}
+}
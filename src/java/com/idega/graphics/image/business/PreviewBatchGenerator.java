@@ -0,0 +1,187 @@
+package com.idega.graphics.image.business;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.idega.graphics.util.DaemonThreadFactory;
+import com.idega.graphics.util.GraphicsConstants;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Generates previews of many web pages concurrently. Pages are rendered on a bounded pool sized to
+ * the number of processors and to the memory a full size render needs, finished previews are
+ * uploaded on a separate pool so uploading overlaps with rendering the next pages. Only a few finished
+ * previews wait for upload, when they are that many the render thread uploads its preview itself.
+ * </p>
+ * <p>
+ * The pool sizes can be set with the application properties {@link #PROPERTY_RENDER_THREADS} and
+ * {@link #PROPERTY_UPLOAD_THREADS}.
+ * </p>
+ */
+public class PreviewBatchGenerator {
+
+	private static final Logger LOGGER = Logger.getLogger(PreviewBatchGenerator.class.getName());
+
+	public static final String PROPERTY_RENDER_THREADS = "graphics.preview_render_threads";
+	public static final String PROPERTY_UPLOAD_THREADS = "graphics.preview_upload_threads";
+
+	private static final int DEFAULT_UPLOAD_THREADS = 4;
+
+	//	Full size ARGB render plus the intermediate images of scaling and encoding
+	private static final long BYTES_PER_RENDER = 4L * 4 * GraphicsConstants.GENERATED_IMAGE_HEIGHT * GraphicsConstants.GENERATED_IMAGE_WIDTH;
+
+	private static class Holder {
+		private static final PreviewBatchGenerator INSTANCE = new PreviewBatchGenerator();
+	}
+
+	private final ExecutorService renderExecutor;
+	private final ExecutorService uploadExecutor;
+
+	public static PreviewBatchGenerator getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	private PreviewBatchGenerator() {
+		int renderThreads = getDefaultRenderThreads();
+		int uploadThreads = DEFAULT_UPLOAD_THREADS;
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		if (application != null) {
+			IWMainApplicationSettings settings = application.getSettings();
+			renderThreads = getIntProperty(settings, PROPERTY_RENDER_THREADS, renderThreads);
+			uploadThreads = getIntProperty(settings, PROPERTY_UPLOAD_THREADS, uploadThreads);
+		}
+
+		this.renderExecutor = createExecutor(renderThreads, "PreviewRenderer", Thread.NORM_PRIORITY - 1, new LinkedBlockingQueue<Runnable>());
+		this.uploadExecutor = createExecutor(uploadThreads, "PreviewUploader", Thread.NORM_PRIORITY,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, uploadThreads)));
+		LOGGER.info("Generating previews with " + renderThreads + " render and " + uploadThreads + " upload threads");
+	}
+
+	private static int getIntProperty(IWMainApplicationSettings settings, String name, int defaultValue) {
+		String value = settings.getProperty(name, String.valueOf(defaultValue));
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid value of " + name + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return number of processors, but not more renders than fit into a quarter of the maximum heap
+	 */
+	private static int getDefaultRenderThreads() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		long memoryBound = Runtime.getRuntime().maxMemory() / 4 / BYTES_PER_RENDER;
+		return (int) Math.max(1, Math.min(processors, memoryBound));
+	}
+
+	/**
+	 * @param queue tasks waiting for a thread, when a bounded queue is full the submitting thread runs the task
+	 */
+	private static ExecutorService createExecutor(int threads, String name, int priority, BlockingQueue<Runnable> queue) {
+		threads = Math.max(1, threads);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new DaemonThreadFactory(name, priority),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Starts generating previews of the pages, the names are the file names (without extension) of the previews
+	 */
+	public PreviewBatch generatePreviews(List<String> urls, List<String> names, final String uploadDirectory, final int width, final int height,
+			final boolean encode, final boolean makeJpg, final float quality) {
+		PreviewBatch batch = new PreviewBatch(urls, names);
+		final UploadFolder folder = new UploadFolder(uploadDirectory);
+		for (final PreviewBatch.Item item: batch.getItems()) {
+			item.setTask(this.renderExecutor.submit(new Runnable() {
+				public void run() {
+					render(item, folder, width, height, encode, makeJpg, quality);
+				}
+			}));
+		}
+		return batch;
+	}
+
+	private void render(final PreviewBatch.Item item, final UploadFolder folder, int width, int height, boolean encode,
+			boolean makeJpg, float quality) {
+		if (item.isCancelled()) {
+			item.complete(false, 0, null);
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		final ImageGeneratorImpl generator = ImageGeneratorImpl.getInstance();
+		final EncodedPreview preview;
+		try {
+			preview = generator.renderPreview(item.getUrl(), item.getName(), folder.getDirectory(), width, height, encode, makeJpg, quality);
+		} catch (Throwable t) {
+			LOGGER.log(Level.WARNING, "Error rendering preview of ".concat(item.getUrl()), t);
+			item.setRenderTime(System.currentTimeMillis() - start);
+			item.complete(false, 0, t);
+			return;
+		}
+		item.setRenderTime(System.currentTimeMillis() - start);
+
+		if (preview.isCached()) {
+			item.complete(true, 0, null);
+			return;
+		}
+		if (item.isCancelled()) {
+			IOUtil.close(preview.getStream());
+			item.complete(false, 0, null);
+			return;
+		}
+
+		item.setTask(this.uploadExecutor.submit(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					boolean uploaded = generator.uploadPreview(folder.getDirectory(), preview, !folder.create(generator));
+					item.complete(uploaded, System.currentTimeMillis() - start, null);
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Error uploading preview of ".concat(item.getUrl()), t);
+					item.complete(false, System.currentTimeMillis() - start, t);
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Upload directory of a batch, created in Slide once by the first upload
+	 */
+	private static class UploadFolder {
+
+		private final String directory;
+		private Boolean created = null;
+
+		private UploadFolder(String directory) {
+			this.directory = directory;
+		}
+
+		private String getDirectory() {
+			return this.directory;
+		}
+
+		/**
+		 * @return <code>true</code> if the directory exists, otherwise every upload should try to create it
+		 */
+		private synchronized boolean create(ImageGeneratorImpl generator) {
+			if (this.created == null) {
+				this.created = Boolean.valueOf(generator.createFolders(this.directory));
+			}
+			return this.created.booleanValue();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package com.idega.graphics.image.business;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Remembers which previews were generated from which content, so a preview of a page that has not
+ * changed is not rendered and uploaded again. The content key is a hash of the XHTML of the page, the
+ * stylesheets it links and imports and the requested size, quality and format.
+ * </p>
+ * <p>
+ * The index maps the location of every uploaded preview to its content key and is kept in a
+ * properties file in the directory set by {@link #PROPERTY_CACHE_DIRECTORY} (the temporary directory
+ * by default), so it survives restarts. Changes are appended to the file, a later line replaces an
+ * earlier one of the same location; the file is compacted when it is loaded.
+ * </p>
+ */
+public class PreviewCache {
+
+	private static final Logger LOGGER = Logger.getLogger(PreviewCache.class.getName());
+
+	public static final String PROPERTY_CACHE_DIRECTORY = "graphics.preview_cache_directory";
+
+	private static final String DEFAULT_DIRECTORY_NAME = "idega-preview-cache";
+	private static final String INDEX_FILE_NAME = "previews.properties";
+	private static final String SEPARATOR = " ";
+	private static final String REMOVED = "";
+	private static final int MIN_COMPACTED_SIZE = 64 * 1024;
+
+	private static final int TIMEOUT = 10000;
+	private static final int MAX_IMPORT_DEPTH = 3;
+	private static final String CONTENT_ENCODING = "ISO-8859-1";
+
+	private static final Pattern LINK = Pattern.compile("<link\\s[^>]*>", Pattern.CASE_INSENSITIVE);
+	private static final Pattern STYLESHEET_REL = Pattern.compile("rel\\s*=\\s*[\"']?[^\"'>]*stylesheet", Pattern.CASE_INSENSITIVE);
+	private static final Pattern HREF = Pattern.compile("href\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+	private static final Pattern IMPORT = Pattern.compile("@import\\s+(?:url\\(\\s*)?[\"']?([^\"')\\s;]+)", Pattern.CASE_INSENSITIVE);
+
+	private static class Holder {
+		private static final PreviewCache INSTANCE = new PreviewCache(getConfiguredDirectory());
+	}
+
+	private final File indexFile;
+	private final Properties index = new Properties();
+
+	public static PreviewCache getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * @param directory where the index is kept
+	 */
+	public PreviewCache(File directory) {
+		this.indexFile = new File(directory, INDEX_FILE_NAME);
+		load();
+	}
+
+	private static File getConfiguredDirectory() {
+		String directory = null;
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		if (application != null) {
+			directory = application.getSettings().getProperty(PROPERTY_CACHE_DIRECTORY);
+		}
+		if (directory == null || directory.length() == 0) {
+			return new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME);
+		}
+		return new File(directory);
+	}
+
+	/**
+	 * Fetches the page and its stylesheets and hashes them together with the parameters of the preview
+	 * @return the content key or <code>null</code> if the page can not be fetched
+	 */
+	public String getKey(String url, int width, int height, boolean encode, boolean makeJpg, float quality, boolean scaled,
+			boolean oldGenerator) {
+		byte[] content = getPage(url);
+		return content == null ? null : getKey(url, content, width, height, encode, makeJpg, quality, scaled, oldGenerator);
+	}
+
+	/**
+	 * Fetches the page, so it can be both hashed and rendered
+	 * @return the XHTML of the page or <code>null</code> if it can not be fetched
+	 */
+	public byte[] getPage(String url) {
+		try {
+			return fetch(new URL(url));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to fetch ".concat(url), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Fetches the stylesheets of the page and hashes them and the page together with the parameters of the preview
+	 * @param content the XHTML of the page
+	 * @param scaled <code>true</code> if the page is rendered straight at the size of the preview
+	 * @param oldGenerator <code>true</code> if the page is rendered with the old generator
+	 * @return the content key or <code>null</code> if the stylesheets can not be fetched
+	 */
+	public String getKey(String url, byte[] content, int width, int height, boolean encode, boolean makeJpg, float quality, boolean scaled,
+			boolean oldGenerator) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(new StringBuffer().append(width).append('x').append(height).append(encode ? ":encoded" : ":raw")
+					.append(makeJpg ? ":jpg:" : ":png:").append(quality).append(scaled ? ":scaled" : ":full")
+					.append(oldGenerator ? ":old" : ":new").toString().getBytes(CONTENT_ENCODING));
+
+			URL page = new URL(url);
+			digest.update(content);
+
+			Set<String> visited = new HashSet<String>();
+			String text = new String(content, CONTENT_ENCODING);
+			Matcher links = LINK.matcher(text);
+			while (links.find()) {
+				String link = links.group();
+				Matcher href = HREF.matcher(link);
+				if (STYLESHEET_REL.matcher(link).find() && href.find()) {
+					addStylesheet(digest, page, href.group(1) == null ? href.group(2) : href.group(1), visited, 0);
+				}
+			}
+			addImports(digest, page, text, visited, 0);
+
+			return toHex(digest.digest());
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to compute content key of ".concat(url), e);
+		} catch (NoSuchAlgorithmException e) {
+			LOGGER.log(Level.WARNING, "SHA-1 is not available", e);
+		}
+		return null;
+	}
+
+	private void addImports(MessageDigest digest, URL base, String content, Set<String> visited, int depth) throws IOException {
+		Matcher imports = IMPORT.matcher(content);
+		while (imports.find()) {
+			addStylesheet(digest, base, imports.group(1), visited, depth);
+		}
+	}
+
+	private void addStylesheet(MessageDigest digest, URL base, String href, Set<String> visited, int depth) throws IOException {
+		URL stylesheet = new URL(base, href.trim());
+		if (depth > MAX_IMPORT_DEPTH || !visited.add(stylesheet.toExternalForm())) {
+			return;
+		}
+		byte[] content = PreviewRenderingContext.getInstance().getStylesheet(stylesheet.toExternalForm());
+		digest.update(stylesheet.toExternalForm().getBytes(CONTENT_ENCODING));
+		digest.update(content);
+		addImports(digest, stylesheet, new String(content, CONTENT_ENCODING), visited, depth + 1);
+	}
+
+	/**
+	 * @param name file name of the preview without extension
+	 * @return file name (with extension) of the preview generated from the content or <code>null</code> if it was not generated
+	 */
+	public synchronized String getFileName(String directory, String name, String key) {
+		String entry = this.index.getProperty(getLocation(directory, name));
+		if (entry == null || !entry.startsWith(key.concat(SEPARATOR))) {
+			return null;
+		}
+		return entry.substring(key.length() + SEPARATOR.length());
+	}
+
+	/**
+	 * Records the preview as generated from the content
+	 * @param name file name of the preview without extension
+	 * @param fileName file name with extension
+	 */
+	public synchronized void put(String directory, String name, String fileName, String key) {
+		String location = getLocation(directory, name);
+		String entry = new StringBuffer(key).append(SEPARATOR).append(fileName).toString();
+		if (!entry.equals(this.index.setProperty(location, entry))) {
+			append(location, entry);
+		}
+	}
+
+	public synchronized void remove(String directory, String name) {
+		String location = getLocation(directory, name);
+		if (this.index.remove(location) != null) {
+			append(location, REMOVED);
+		}
+	}
+
+	private String getLocation(String directory, String name) {
+		return directory.endsWith("/") ? directory.concat(name) : new StringBuffer(directory).append('/').append(name).toString();
+	}
+
+	private void load() {
+		if (!this.indexFile.isFile()) {
+			return;
+		}
+		InputStream input = null;
+		try {
+			input = new FileInputStream(this.indexFile);
+			this.index.load(input);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to read preview index ".concat(this.indexFile.getAbsolutePath()), e);
+			return;
+		} finally {
+			IOUtil.close(input);
+		}
+		for (Iterator<Object> locations = this.index.values().iterator(); locations.hasNext();) {
+			if (REMOVED.equals(locations.next())) {
+				locations.remove();
+			}
+		}
+		compact();
+	}
+
+	/**
+	 * Writes one change at the end of the index
+	 * @param entry the new entry of the location, {@link #REMOVED} if it was removed
+	 */
+	private void append(String location, String entry) {
+		File directory = this.indexFile.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOGGER.warning("Unable to create directory ".concat(directory.getAbsolutePath()));
+			return;
+		}
+		Properties change = new Properties();
+		change.setProperty(location, entry);
+		OutputStream output = null;
+		try {
+			byte[] line = toBytes(change);
+			output = new FileOutputStream(this.indexFile, true);
+			output.write(line);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to write preview index ".concat(this.indexFile.getAbsolutePath()), e);
+		} finally {
+			IOUtil.close(output);
+		}
+	}
+
+	/**
+	 * Replaces the index with one line per location when most of its lines are replaced or removed ones. The new
+	 * index is written into a temporary file first and the old one is kept if it can not be renamed over it.
+	 */
+	private void compact() {
+		File temporary = new File(this.indexFile.getParentFile(), INDEX_FILE_NAME.concat(".tmp"));
+		OutputStream output = null;
+		try {
+			byte[] compacted = toBytes(this.index);
+			if (this.indexFile.length() <= Math.max(compacted.length * 2L, MIN_COMPACTED_SIZE)) {
+				return;
+			}
+			output = new FileOutputStream(temporary);
+			output.write(compacted);
+			output.close();
+			output = null;
+			if (!temporary.renameTo(this.indexFile)) {
+				temporary.delete();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to compact preview index ".concat(this.indexFile.getAbsolutePath()), e);
+		} finally {
+			IOUtil.close(output);
+		}
+	}
+
+	/**
+	 * @return the entries in the format of properties files, without comments
+	 */
+	private static byte[] toBytes(Properties entries) throws IOException {
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		entries.store(stored, null);
+		String[] lines = stored.toString(CONTENT_ENCODING).split("\n");
+		StringBuffer content = new StringBuffer(stored.size());
+		for (int i = 0; i < lines.length; i++) {
+			if (!lines[i].startsWith("#")) {
+				content.append(lines[i]).append('\n');
+			}
+		}
+		return content.toString().getBytes(CONTENT_ENCODING);
+	}
+
+	private byte[] fetch(URL url) throws IOException {
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		InputStream input = null;
+		try {
+			input = connection.getInputStream();
+			ByteArrayOutputStream content = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 4096));
+			byte[] buffer = new byte[4096];
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			IOUtil.close(input);
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuffer hex = new StringBuffer(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
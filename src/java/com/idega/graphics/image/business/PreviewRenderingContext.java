@@ -0,0 +1,266 @@
+package com.idega.graphics.image.business;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xhtmlrenderer.context.AWTFontResolver;
+import org.xhtmlrenderer.layout.SharedContext;
+import org.xhtmlrenderer.resource.CSSResource;
+import org.xhtmlrenderer.resource.ImageResource;
+import org.xhtmlrenderer.resource.XMLResource;
+import org.xhtmlrenderer.simple.Graphics2DRenderer;
+import org.xhtmlrenderer.swing.Java2DRenderer;
+import org.xhtmlrenderer.swing.NaiveUserAgent;
+
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+
+/**
+ * <p>
+ * Long-lived context for rendering web pages with Flying Saucer. The stylesheets and images the pages
+ * link to are fetched once and shared by all renders through a bounded {@link RenderingResourceCache},
+ * the font resolver of every rendering thread is created once and kept warm.
+ * </p>
+ * <p>
+ * Flying Saucer layouts and parsed stylesheets belong to one document, so every render still gets its
+ * own renderer and user agent; only the fetched resources and fonts are shared. The context is safe to
+ * use from several threads at once.
+ * </p>
+ */
+public class PreviewRenderingContext {
+
+	private static final Logger LOGGER = Logger.getLogger(PreviewRenderingContext.class.getName());
+
+	public static final String PROPERTY_CACHE_SIZE = "graphics.preview_resource_cache_mb";
+	public static final String PROPERTY_FRESHNESS = "graphics.preview_resource_freshness_seconds";
+	private static final int DEFAULT_CACHE_SIZE_MB = 32;
+	private static final int DEFAULT_FRESHNESS_SECONDS = 10;
+
+	private static class Holder {
+		private static final PreviewRenderingContext INSTANCE = new PreviewRenderingContext();
+	}
+
+	//	Font resolvers cache derived fonts without locking, so every thread keeps its own
+	private static final ThreadLocal<AWTFontResolver> FONT_RESOLVERS = new ThreadLocal<AWTFontResolver>() {
+		@Override
+		protected AWTFontResolver initialValue() {
+			return new AWTFontResolver();
+		}
+	};
+
+	private final RenderingResourceCache resources;
+
+	public static PreviewRenderingContext getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	private PreviewRenderingContext() {
+		int megaBytes = DEFAULT_CACHE_SIZE_MB;
+		int freshness = DEFAULT_FRESHNESS_SECONDS;
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		if (application != null) {
+			IWMainApplicationSettings settings = application.getSettings();
+			megaBytes = getIntProperty(settings, PROPERTY_CACHE_SIZE, DEFAULT_CACHE_SIZE_MB);
+			freshness = getIntProperty(settings, PROPERTY_FRESHNESS, DEFAULT_FRESHNESS_SECONDS);
+		}
+		this.resources = new RenderingResourceCache(megaBytes * 1024L * 1024L, freshness * 1000L);
+
+		//	Loading the font list of the system is the slowest part of the first render
+		GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+	}
+
+	private static int getIntProperty(IWMainApplicationSettings settings, String name, int defaultValue) {
+		String value = settings.getProperty(name, String.valueOf(defaultValue));
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid value of " + name + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return renderer of the page using the shared resources and fonts
+	 */
+	public Java2DRenderer createRenderer(String url, int width, int height) {
+		return createRenderer(url, null, width, height);
+	}
+
+	/**
+	 * @param page the XHTML of the page if it was already fetched, <code>null</code> to fetch it
+	 * @return renderer of the page using the shared resources and fonts
+	 */
+	public Java2DRenderer createRenderer(String url, byte[] page, int width, int height) {
+		Java2DRenderer renderer = new Java2DRenderer(url, width, height);
+		configure(renderer.getSharedContext(), url, page);
+		return renderer;
+	}
+
+	/**
+	 * Renders the page into an image of the provided size, like {@link Graphics2DRenderer#renderToImage(String, int, int)}
+	 */
+	public BufferedImage renderToImage(String url, int width, int height) {
+		return renderToImage(url, null, width, height);
+	}
+
+	/**
+	 * Renders the page into an image of the provided size, like {@link Graphics2DRenderer#renderToImage(String, int, int)}
+	 * @param page the XHTML of the page if it was already fetched, <code>null</code> to fetch it
+	 */
+	public BufferedImage renderToImage(String url, byte[] page, int width, int height) {
+		Graphics2DRenderer renderer = new Graphics2DRenderer();
+		configure(renderer.getSharedContext(), url, page);
+		renderer.setDocument(url);
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			renderer.layout(g, new Dimension(width, height));
+			renderer.render(g);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Lays the page out once at the provided size and paints the layout straight into an image of every target size
+	 * through a scaling transform, so no full size image is rasterized
+	 * @param imageType type of the created images, images without alpha get white background
+	 */
+	public List<BufferedImage> renderScaledImages(String url, int width, int height, List<Dimension> targets, int imageType) {
+		return renderScaledImages(url, null, width, height, targets, imageType);
+	}
+
+	/**
+	 * Lays the page out once at the provided size and paints the layout straight into an image of every target size
+	 * through a scaling transform, so no full size image is rasterized
+	 * @param page the XHTML of the page if it was already fetched, <code>null</code> to fetch it
+	 * @param imageType type of the created images, images without alpha get white background
+	 */
+	public List<BufferedImage> renderScaledImages(String url, byte[] page, int width, int height, List<Dimension> targets, int imageType) {
+		Graphics2DRenderer renderer = new Graphics2DRenderer();
+		configure(renderer.getSharedContext(), url, page);
+		renderer.setDocument(url);
+
+		//	Layout only needs the font metrics of the graphics
+		Graphics2D layoutGraphics = new BufferedImage(1, 1, imageType).createGraphics();
+		try {
+			setQualityHints(layoutGraphics);
+			renderer.layout(layoutGraphics, new Dimension(width, height));
+		} finally {
+			layoutGraphics.dispose();
+		}
+
+		List<BufferedImage> images = new ArrayList<BufferedImage>(targets.size());
+		for (Dimension target: targets) {
+			BufferedImage image = new BufferedImage(target.width, target.height, imageType);
+			Graphics2D g = image.createGraphics();
+			try {
+				if (!image.getColorModel().hasAlpha()) {
+					g.setColor(Color.WHITE);
+					g.fillRect(0, 0, target.width, target.height);
+				}
+				setQualityHints(g);
+				g.scale((double) target.width / width, (double) target.height / height);
+				renderer.render(g);
+			} finally {
+				g.dispose();
+			}
+			images.add(image);
+		}
+		return images;
+	}
+
+	/**
+	 * @return content of the stylesheet from the shared cache
+	 */
+	byte[] getStylesheet(String uri) throws IOException {
+		return this.resources.getStylesheet(uri);
+	}
+
+	/**
+	 * Drops all cached resources, e.g. after a theme was changed
+	 */
+	public void clear() {
+		this.resources.clear();
+	}
+
+	private void configure(SharedContext context, String url, byte[] page) {
+		context.setUserAgentCallback(new CachingUserAgent(url, page));
+		context.setFontResolver(FONT_RESOLVERS.get());
+	}
+
+	/**
+	 * Fractional metrics keep the text of the scaled rendering where the layout placed it
+	 */
+	private void setQualityHints(Graphics2D g) {
+		g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+		g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+	}
+
+	/**
+	 * User agent of one render, takes stylesheets and images from the shared cache and the page from memory if it was fetched before
+	 */
+	private class CachingUserAgent extends NaiveUserAgent {
+
+		private final String url;
+		private final byte[] page;
+
+		private CachingUserAgent(String url, byte[] page) {
+			this.url = url;
+			this.page = page;
+		}
+
+		@Override
+		public XMLResource getXMLResource(String uri) {
+			if (this.page != null && this.url.equals(uri)) {
+				return XMLResource.load(new ByteArrayInputStream(this.page));
+			}
+			return super.getXMLResource(uri);
+		}
+
+		@Override
+		public CSSResource getCSSResource(String uri) {
+			String resolved = resolveURI(uri);
+			if (resolved != null) {
+				try {
+					byte[] stylesheet = PreviewRenderingContext.this.resources.getStylesheet(resolved);
+					return new CSSResource(new ByteArrayInputStream(stylesheet));
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Unable to load stylesheet: ".concat(resolved), e);
+				}
+			}
+			return super.getCSSResource(uri);
+		}
+
+		@Override
+		public ImageResource getImageResource(String uri) {
+			String resolved = resolveURI(uri);
+			if (resolved != null) {
+				try {
+					//	Every render gets its own resource, scaling it does not touch the shared image
+					return createImageResource(resolved, PreviewRenderingContext.this.resources.getImage(resolved));
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Unable to load image: ".concat(resolved), e);
+				}
+			}
+			return super.getImageResource(uri);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.idega.graphics.image.business;
+
+/**
+ * Immutable outcome of generating the preview of one web page in a {@link PreviewBatch}
+ */
+public class PreviewResult {
+
+	private final String url;
+	private final String name;
+	private final boolean successful;
+	private final boolean cancelled;
+	private final long renderTime;
+	private final long uploadTime;
+	private final Throwable error;
+
+	PreviewResult(String url, String name, boolean successful, boolean cancelled, long renderTime, long uploadTime, Throwable error) {
+		this.url = url;
+		this.name = name;
+		this.successful = successful;
+		this.cancelled = cancelled;
+		this.renderTime = renderTime;
+		this.uploadTime = uploadTime;
+		this.error = error;
+	}
+
+	public String getUrl() {
+		return this.url;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean isSuccessful() {
+		return this.successful;
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * @return time in milliseconds spent rendering and encoding the preview
+	 */
+	public long getRenderTime() {
+		return this.renderTime;
+	}
+
+	/**
+	 * @return time in milliseconds spent uploading the preview
+	 */
+	public long getUploadTime() {
+		return this.uploadTime;
+	}
+
+	/**
+	 * @return the error that made generating the preview fail, <code>null</code> if there was none or the failure was reported
+	 * without an exception
+	 */
+	public Throwable getError() {
+		return this.error;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuffer(this.url).append(this.successful ? ": success" : this.cancelled ? ": cancelled" : ": failed").append(", rendered in ")
+				.append(this.renderTime).append(" ms, uploaded in ").append(this.uploadTime).append(" ms").toString();
+	}
+}
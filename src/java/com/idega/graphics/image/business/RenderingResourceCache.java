@@ -0,0 +1,190 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Bounded cache of the stylesheets and images fetched while rendering previews, shared by all renders
+ * of the {@link PreviewRenderingContext}. Stylesheets are kept as fetched bytes, images decoded.
+ * </p>
+ * <p>
+ * An entry is reused without any request for the freshness period, after that it is revalidated with
+ * a conditional request (or the modification time of local files) and fetched again only if the source
+ * changed, so edited theme stylesheets show up in the next previews. The cache is bounded by the memory
+ * of the entries, least recently used entries are evicted first.
+ * </p>
+ */
+class RenderingResourceCache {
+
+	private static final int TIMEOUT = 10000;
+
+	private final long maxBytes;
+	private final long freshness;
+	private long usedBytes = 0;
+	private final LinkedHashMap<String, Resource> resources = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+
+	private static class Resource {
+		private final byte[] data;
+		private final BufferedImage image;
+		private final String eTag;
+		private final long lastModified;
+		private final long bytes;
+		private volatile long validated;
+
+		private Resource(byte[] data, BufferedImage image, String eTag, long lastModified) {
+			this.data = data;
+			this.image = image;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.bytes = data == null ? (long) image.getWidth() * image.getHeight() * 4 : data.length;
+			this.validated = System.currentTimeMillis();
+		}
+
+		private boolean isValidatable() {
+			return this.eTag != null || this.lastModified > 0;
+		}
+	}
+
+	/**
+	 * @param maxBytes memory the entries may use
+	 * @param freshness milliseconds an entry is reused without revalidating it
+	 */
+	RenderingResourceCache(long maxBytes, long freshness) {
+		this.maxBytes = maxBytes;
+		this.freshness = freshness;
+	}
+
+	/**
+	 * @return the content of the stylesheet, never <code>null</code>
+	 */
+	byte[] getStylesheet(String uri) throws IOException {
+		return getResource(uri, false).data;
+	}
+
+	/**
+	 * @return the decoded image, shared by every caller so it must not be modified
+	 */
+	BufferedImage getImage(String uri) throws IOException {
+		return getResource(uri, true).image;
+	}
+
+	synchronized void clear() {
+		this.resources.clear();
+		this.usedBytes = 0;
+	}
+
+	private Resource getResource(String uri, boolean image) throws IOException {
+		Resource cached = get(uri);
+		if (cached != null && (cached.image != null) != image) {
+			cached = null;
+		}
+		if (cached != null && System.currentTimeMillis() - cached.validated < this.freshness) {
+			return cached;
+		}
+
+		Resource resource = fetch(uri, cached, image);
+		if (resource != cached && resource.isValidatable()) {
+			put(uri, resource);
+		}
+		return resource;
+	}
+
+	/**
+	 * Fetches the resource unless the cached one is still valid
+	 */
+	private Resource fetch(String uri, Resource cached, boolean image) throws IOException {
+		URLConnection connection = new URL(uri).openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		if (cached != null) {
+			if (cached.eTag != null) {
+				connection.setRequestProperty("If-None-Match", cached.eTag);
+			}
+			if (cached.lastModified > 0) {
+				connection.setIfModifiedSince(cached.lastModified);
+			}
+		}
+
+		InputStream input = null;
+		try {
+			if (connection instanceof HttpURLConnection) {
+				int status = ((HttpURLConnection) connection).getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+					cached.validated = System.currentTimeMillis();
+					return cached;
+				}
+				if (status != HttpURLConnection.HTTP_OK) {
+					throw new IOException(new StringBuffer("Status ").append(status).append(" fetching ").append(uri).toString());
+				}
+			}
+			else if (cached != null && cached.lastModified > 0 && cached.lastModified == connection.getLastModified()) {
+				cached.validated = System.currentTimeMillis();
+				return cached;
+			}
+
+			String eTag = connection.getHeaderField("ETag");
+			if (eTag != null && eTag.startsWith("W/")) {
+				eTag = null;
+			}
+			long lastModified = connection.getLastModified();
+
+			input = connection.getInputStream();
+			if (image) {
+				BufferedImage decoded = ImageIO.read(input);
+				if (decoded == null) {
+					throw new IOException("Unknown image format: ".concat(uri));
+				}
+				return new Resource(null, decoded, eTag, lastModified);
+			}
+
+			ByteArrayOutputStream data = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 1024));
+			byte[] buffer = new byte[4096];
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				data.write(buffer, 0, read);
+			}
+			return new Resource(data.toByteArray(), null, eTag, lastModified);
+		} finally {
+			IOUtil.close(input);
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+		}
+	}
+
+	private synchronized Resource get(String uri) {
+		return this.resources.get(uri);
+	}
+
+	private synchronized void put(String uri, Resource resource) {
+		if (resource.bytes > this.maxBytes / 4) {
+			return;
+		}
+		Resource previous = this.resources.put(uri, resource);
+		if (previous != null) {
+			this.usedBytes -= previous.bytes;
+		}
+		this.usedBytes += resource.bytes;
+
+		for (Iterator<Map.Entry<String, Resource>> iterator = this.resources.entrySet().iterator(); iterator.hasNext() && this.usedBytes > this.maxBytes;) {
+			Resource eldest = iterator.next().getValue();
+			if (eldest == resource) {
+				continue;
+			}
+			iterator.remove();
+			this.usedBytes -= eldest.bytes;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.idega.graphics.image.business;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.xhtmlrenderer.swing.Java2DRenderer;
+import org.xhtmlrenderer.util.ImageUtil;
+import org.xhtmlrenderer.util.XRLog;
+
+import com.idega.graphics.util.GraphicsConstants;
+import com.idega.graphics.util.ReusableByteArrayOutputStream;
+
+/**
+ * <p>
+ * Main class of the worker processes started by {@link RenderingWorkerPool}. A worker reads render
+ * requests from its standard input and writes the encoded previews to its standard output, one
+ * request at a time, until the input is closed. Anything else the renderer prints goes to the
+ * standard error.
+ * </p>
+ * <p>
+ * A request is the URL (UTF), width, height (int), JPEG or PNG (boolean), quality (float), whether
+ * to render straight at the size (boolean) and whether to use the old generator (boolean). The response is <code>true</code>, the length (int) and the
+ * bytes of the encoded preview, or <code>false</code> and an error message (UTF).
+ * </p>
+ */
+public class RenderingWorker {
+
+	private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+	public static void main(String[] args) {
+		//	The standard output is reserved for the responses
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		System.setOut(System.err);
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+
+		XRLog.setLoggingEnabled(true);
+		XRLog.setLevel(XRLog.EXCEPTION, Level.WARNING);
+
+		ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		try {
+			while (true) {
+				String url = null;
+				try {
+					url = input.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				int width = input.readInt();
+				int height = input.readInt();
+				boolean isJpg = input.readBoolean();
+				float quality = input.readFloat();
+				boolean scaled = input.readBoolean();
+				boolean oldGenerator = input.readBoolean();
+
+				buffer.reset();
+				String error = null;
+				try {
+					render(url, width, height, isJpg, quality, scaled, oldGenerator, buffer);
+				} catch (OutOfMemoryError e) {
+					//	Quitting without an answer, the pool starts a fresh worker
+					System.err.println("Out of memory rendering ".concat(url));
+					System.exit(1);
+				} catch (Exception e) {
+					e.printStackTrace();
+					error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+				}
+
+				if (error == null) {
+					output.writeBoolean(true);
+					output.writeInt(buffer.size());
+					buffer.writeTo(output);
+					output.flush();
+				}
+				else {
+					writeError(output, error);
+				}
+			}
+		} catch (IOException e) {
+			//	The application closed the pipes
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	private static void writeError(DataOutputStream output, String error) throws IOException {
+		output.writeBoolean(false);
+		output.writeUTF(error);
+		output.flush();
+	}
+
+	/**
+	 * Renders the preview like {@link ImageGeneratorImpl} does in the application and encodes it with the quality
+	 */
+	private static void render(String url, int width, int height, boolean isJpg, float quality, boolean scaled, boolean oldGenerator,
+			ReusableByteArrayOutputStream output) throws IOException {
+		List<Dimension> dimensions = new ArrayList<Dimension>(1);
+		dimensions.add(new Dimension(width, height));
+		int imageType = isJpg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+
+		BufferedImage image = null;
+		if (scaled) {
+			image = PreviewRenderingContext.getInstance().renderScaledImages(url, GraphicsConstants.GENERATED_IMAGE_HEIGHT,
+					GraphicsConstants.GENERATED_IMAGE_WIDTH, dimensions, imageType).get(0);
+		}
+		else {
+			BufferedImage rendered = null;
+			if (oldGenerator) {
+				rendered = PreviewRenderingContext.getInstance().renderToImage(url, GraphicsConstants.GENERATED_IMAGE_HEIGHT,
+						GraphicsConstants.GENERATED_IMAGE_WIDTH);
+			}
+			else {
+				Java2DRenderer renderer = PreviewRenderingContext.getInstance().createRenderer(url, GraphicsConstants.GENERATED_IMAGE_HEIGHT,
+						GraphicsConstants.GENERATED_IMAGE_WIDTH);
+				renderer.setBufferedImageType(imageType);
+				rendered = renderer.getImage();
+			}
+			@SuppressWarnings("unchecked")
+			List<Object> images = ImageUtil.scaleMultiple(ImageGeneratorImpl.getScalingOptions(isJpg), rendered, dimensions);
+			if (images == null || images.isEmpty() || !(images.get(0) instanceof BufferedImage)) {
+				throw new IOException("Unable to scale rendered page");
+			}
+			image = (BufferedImage) images.get(0);
+		}
+
+		String extension = ImageGeneratorImpl.getFileExtension(isJpg, scaled, oldGenerator);
+		if (!ImageGeneratorImpl.writeImage(image, extension, quality, output)) {
+			throw new IOException("No image writer for: ".concat(extension));
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package com.idega.graphics.image.business;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.idega.graphics.util.DaemonThreadFactory;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Pool of local worker JVMs which render previews of web pages, so the heap of a render and the
+ * garbage collection after it never burden the application JVM. The workers run {@link RenderingWorker},
+ * are started in advance with their own heap limit and are replaced after a number of renders or when
+ * they fail. The application only gets the encoded previews back.
+ * </p>
+ * <p>
+ * The pool is off unless {@link #PROPERTY_PROCESSES} is set. Renders wait for a free worker; at most
+ * {@link #PROPERTY_QUEUE} renders wait at once, further callers are held back until a place in the
+ * queue is free or the timeout ends. A render which takes longer than the timeout kills its worker.
+ * </p>
+ * <p>
+ * The workers are stopped when the web application stops, see {@link RenderingWorkerPoolListener}, or
+ * else when the JVM exits.
+ * </p>
+ */
+public class RenderingWorkerPool {
+
+	private static final Logger LOGGER = Logger.getLogger(RenderingWorkerPool.class.getName());
+
+	public static final String PROPERTY_PROCESSES = "graphics.preview_worker_processes";
+	public static final String PROPERTY_HEAP = "graphics.preview_worker_heap_mb";
+	public static final String PROPERTY_RENDERS = "graphics.preview_worker_renders";
+	public static final String PROPERTY_QUEUE = "graphics.preview_worker_queue";
+	public static final String PROPERTY_TIMEOUT = "graphics.preview_worker_timeout_ms";
+	public static final String PROPERTY_CLASSPATH = "graphics.preview_worker_classpath";
+
+	private static final int DEFAULT_HEAP_MB = 256;
+	private static final int DEFAULT_RENDERS = 50;
+	private static final int DEFAULT_QUEUE = 16;
+	private static final int DEFAULT_TIMEOUT = 60000;
+
+	private static class Holder {
+		private static final RenderingWorkerPool INSTANCE = createConfiguredInstance();
+	}
+
+	private static volatile boolean instanceCreated = false;
+
+	private final List<String> command;
+	private final int maxRenders;
+	private final long timeout;
+
+	private final List<WorkerProcess> workers;
+	private final BlockingQueue<WorkerProcess> idleWorkers;
+	private final Semaphore places;
+	private final ScheduledExecutorService watchdog;
+	private final Thread shutdownHook;
+
+	private volatile boolean shutdown = false;
+
+	public static RenderingWorkerPool getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Stops the worker processes of the shared pool if it was started
+	 */
+	public static void shutdownInstance() {
+		if (instanceCreated) {
+			getInstance().shutdown();
+		}
+	}
+
+	/**
+	 * @param processes number of worker JVMs, 0 turns the pool off
+	 * @param heapMegaBytes maximum heap of every worker
+	 * @param maxRenders renders after which a worker is replaced
+	 * @param queueSize renders which may wait for a worker
+	 * @param timeout milliseconds a render may take and a caller may wait for a place in the queue
+	 * @param classPath class path of the workers
+	 */
+	public RenderingWorkerPool(int processes, int heapMegaBytes, int maxRenders, int queueSize, long timeout, String classPath) {
+		this.maxRenders = Math.max(1, maxRenders);
+		this.timeout = timeout;
+
+		this.command = new ArrayList<String>();
+		this.command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+		this.command.add(new StringBuffer("-Xmx").append(heapMegaBytes).append('m').toString());
+		this.command.add("-Djava.awt.headless=true");
+		this.command.add("-cp");
+		this.command.add(classPath);
+		this.command.add(RenderingWorker.class.getName());
+
+		processes = Math.max(0, processes);
+		this.workers = new ArrayList<WorkerProcess>(processes);
+		this.idleWorkers = new ArrayBlockingQueue<WorkerProcess>(Math.max(1, processes));
+		this.places = new Semaphore(processes + Math.max(0, queueSize), true);
+		if (processes == 0) {
+			this.watchdog = null;
+			this.shutdownHook = null;
+			return;
+		}
+
+		this.watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("PreviewWorkerWatchdog"));
+		for (int i = 0; i < processes; i++) {
+			WorkerProcess worker = new WorkerProcess(i + 1);
+			worker.start();
+			this.workers.add(worker);
+			this.idleWorkers.add(worker);
+		}
+		this.shutdownHook = new Thread(new Runnable() {
+			public void run() {
+				shutdown();
+			}
+		}, "PreviewWorkerShutdown");
+		Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+	}
+
+	private static RenderingWorkerPool createConfiguredInstance() {
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		IWMainApplicationSettings settings = application == null ? null : application.getSettings();
+
+		String classPath = getProperty(settings, PROPERTY_CLASSPATH, null);
+		if (classPath == null || classPath.length() == 0) {
+			classPath = getClassPath();
+		}
+		RenderingWorkerPool pool = new RenderingWorkerPool(getIntProperty(settings, PROPERTY_PROCESSES, 0),
+				getIntProperty(settings, PROPERTY_HEAP, DEFAULT_HEAP_MB), getIntProperty(settings, PROPERTY_RENDERS, DEFAULT_RENDERS),
+				getIntProperty(settings, PROPERTY_QUEUE, DEFAULT_QUEUE), getIntProperty(settings, PROPERTY_TIMEOUT, DEFAULT_TIMEOUT), classPath);
+		instanceCreated = true;
+		return pool;
+	}
+
+	private static String getProperty(IWMainApplicationSettings settings, String name, String defaultValue) {
+		return settings == null ? defaultValue : settings.getProperty(name, defaultValue);
+	}
+
+	private static int getIntProperty(IWMainApplicationSettings settings, String name, int defaultValue) {
+		String value = getProperty(settings, name, String.valueOf(defaultValue));
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid value of " + name + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return class path of the web application (the class path of the server does not have the bundles)
+	 */
+	private static String getClassPath() {
+		Set<String> entries = new LinkedHashSet<String>();
+		for (ClassLoader loader = RenderingWorkerPool.class.getClassLoader(); loader != null; loader = loader.getParent()) {
+			if (!(loader instanceof URLClassLoader)) {
+				continue;
+			}
+			URL[] urls = ((URLClassLoader) loader).getURLs();
+			for (int i = 0; i < urls.length; i++) {
+				if ("file".equals(urls[i].getProtocol())) {
+					try {
+						entries.add(new File(urls[i].toURI()).getAbsolutePath());
+					} catch (URISyntaxException e) {
+						entries.add(urls[i].getPath());
+					}
+				}
+			}
+		}
+		String[] systemEntries = System.getProperty("java.class.path", "").split(File.pathSeparator);
+		for (int i = 0; i < systemEntries.length; i++) {
+			if (systemEntries[i].length() > 0) {
+				entries.add(systemEntries[i]);
+			}
+		}
+
+		StringBuffer classPath = new StringBuffer();
+		for (String entry: entries) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparator);
+			}
+			classPath.append(entry);
+		}
+		return classPath.toString();
+	}
+
+	/**
+	 * @return <code>true</code> if previews should be rendered by the workers
+	 */
+	public boolean isEnabled() {
+		return !this.workers.isEmpty() && !this.shutdown;
+	}
+
+	/**
+	 * Renders preview of the web page in a worker JVM
+	 * @param scaled <code>true</code> to render straight at the size instead of scaling down a full size rendering
+	 * @param oldGenerator <code>true</code> to render with the old generator, like {@link ImageGeneratorImpl} does when it is set
+	 * @return the encoded preview, in the format of {@link ImageGeneratorImpl#getFileExtension(boolean, boolean, boolean)}
+	 * @throws IOException if the render failed, took too long or no worker was free in time
+	 */
+	public byte[] render(String url, int width, int height, boolean isJpg, float quality, boolean scaled, boolean oldGenerator) throws IOException {
+		if (!isEnabled()) {
+			throw new IOException("Rendering worker processes are not running");
+		}
+
+		long waitUntil = System.currentTimeMillis() + this.timeout;
+		WorkerProcess worker = null;
+		try {
+			if (!this.places.tryAcquire(this.timeout, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Too many previews are waiting for rendering worker processes");
+			}
+			try {
+				worker = this.idleWorkers.poll(Math.max(0, waitUntil - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} finally {
+				if (worker == null) {
+					this.places.release();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a rendering worker process");
+		}
+		if (worker == null) {
+			throw new IOException("No rendering worker process was free in time");
+		}
+
+		try {
+			return worker.render(url, width, height, isJpg, quality, scaled, oldGenerator);
+		} finally {
+			if (this.shutdown) {
+				worker.stop();
+			}
+			else if (worker.isToReplace()) {
+				worker.stop();
+				worker.start();
+			}
+			this.idleWorkers.add(worker);
+			this.places.release();
+		}
+	}
+
+	/**
+	 * Stops the worker processes, renders fail afterwards
+	 */
+	public void shutdown() {
+		this.shutdown = true;
+		if (this.shutdownHook != null && Thread.currentThread() != this.shutdownHook) {
+			try {
+				//	The hook holds the class loader of the web application
+				Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+			} catch (IllegalStateException e) {
+				//	The JVM is exiting
+			}
+		}
+		if (this.watchdog != null) {
+			this.watchdog.shutdownNow();
+		}
+		for (WorkerProcess worker: this.workers) {
+			worker.stop();
+		}
+	}
+
+	/**
+	 * One worker JVM, used by one render at a time
+	 */
+	private class WorkerProcess {
+
+		private final int number;
+
+		private Process process = null;
+		private DataOutputStream input = null;
+		private DataInputStream output = null;
+		private int renders = 0;
+		private boolean broken = false;
+
+		private WorkerProcess(int number) {
+			this.number = number;
+		}
+
+		/**
+		 * Starts the JVM, if it can not be started the next render tries again
+		 */
+		private synchronized void start() {
+			this.renders = 0;
+			this.broken = false;
+			try {
+				this.process = new ProcessBuilder(command).start();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to start rendering worker process", e);
+				this.process = null;
+				return;
+			}
+			this.input = new DataOutputStream(new BufferedOutputStream(this.process.getOutputStream()));
+			this.output = new DataInputStream(new BufferedInputStream(this.process.getInputStream()));
+			logErrors(this.process.getErrorStream());
+		}
+
+		private synchronized void stop() {
+			if (this.process == null) {
+				return;
+			}
+			//	Closing the input lets an idle worker quit by itself
+			IOUtil.close(this.input);
+			IOUtil.close(this.output);
+			this.process.destroy();
+			this.process = null;
+		}
+
+		private synchronized boolean isToReplace() {
+			return this.process == null || this.broken || this.renders >= maxRenders;
+		}
+
+		private byte[] render(String url, int width, int height, boolean isJpg, float quality, boolean scaled, boolean oldGenerator)
+				throws IOException {
+			Process process = null;
+			synchronized (this) {
+				if (this.process == null) {
+					start();
+				}
+				if (this.process == null) {
+					throw new IOException("Rendering worker process is not running");
+				}
+				process = this.process;
+				this.renders++;
+			}
+
+			final Process running = process;
+			ScheduledFuture<?> timer = watchdog.schedule(new Runnable() {
+				public void run() {
+					LOGGER.warning("Stopping rendering worker process ".concat(String.valueOf(number)).concat(" after timeout"));
+					running.destroy();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+
+			boolean success = false;
+			try {
+				this.input.writeUTF(url);
+				this.input.writeInt(width);
+				this.input.writeInt(height);
+				this.input.writeBoolean(isJpg);
+				this.input.writeFloat(quality);
+				this.input.writeBoolean(scaled);
+				this.input.writeBoolean(oldGenerator);
+				this.input.flush();
+
+				boolean rendered = this.output.readBoolean();
+				if (!rendered) {
+					String error = this.output.readUTF();
+					success = true;
+					throw new IOException(new StringBuffer("Rendering worker process failed: ").append(error).toString());
+				}
+				byte[] preview = new byte[this.output.readInt()];
+				this.output.readFully(preview);
+				success = true;
+				return preview;
+			} finally {
+				timer.cancel(false);
+				if (!success) {
+					synchronized (this) {
+						this.broken = true;
+					}
+				}
+			}
+		}
+
+		private void logErrors(final InputStream errors) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(errors));
+					try {
+						for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+							LOGGER.fine(line);
+						}
+					} catch (IOException e) {
+						//	The worker has quit
+					} finally {
+						IOUtil.close(reader);
+					}
+				}
+			}, "PreviewWorkerErrors-".concat(String.valueOf(this.number)));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.idega.graphics.image.business;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Stops the worker processes of {@link RenderingWorkerPool} when the web application stops, so a redeployed
+ * application leaves no workers and no shutdown hook behind
+ */
+public class RenderingWorkerPoolListener implements ServletContextListener {
+
+	public void contextInitialized(ServletContextEvent event) {
+		//	The pool is started by the first preview
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		RenderingWorkerPool.shutdownInstance();
+	}
+}
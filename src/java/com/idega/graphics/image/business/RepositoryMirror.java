@@ -0,0 +1,357 @@
+package com.idega.graphics.image.business;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+import com.idega.util.IOUtil;
+
+/**
+ * <p>
+ * Read-through mirror of repository files on the local disk, so originals that images are derived
+ * from again and again are not transferred from the repository every time. Every access asks the
+ * {@link RepositorySource} for the version (ETag or modification time) of the file and downloads it
+ * again only if it changed.
+ * </p>
+ * <p>
+ * The mirror is kept in the directory set by {@link #PROPERTY_DIRECTORY} (the temporary directory by
+ * default) and bounded by {@link #PROPERTY_SIZE}, least recently used files are deleted first. The
+ * mirror is emptied on start, because the versions of the files are only known while running. A file
+ * is not deleted while it is read through {@link #getInputStream(String)} or {@link #read(String, FileHandler)},
+ * an evicted file is deleted when its last reader is done.
+ * </p>
+ */
+public class RepositoryMirror {
+
+	private static final Logger LOGGER = Logger.getLogger(RepositoryMirror.class.getName());
+
+	public static final String PROPERTY_DIRECTORY = "graphics.repository_mirror_directory";
+	public static final String PROPERTY_SIZE = "graphics.repository_mirror_mb";
+
+	private static final String DEFAULT_DIRECTORY_NAME = "idega-repository-mirror";
+	private static final int DEFAULT_SIZE_MB = 512;
+	private static final String FILE_SUFFIX = ".mirror";
+	private static final String TEMPORARY_SUFFIX = ".download";
+
+	private static class Holder {
+		private static final RepositoryMirror INSTANCE = createConfiguredInstance();
+	}
+
+	/**
+	 * Reads a mirrored file, the file is not deleted until the handler returns
+	 */
+	public interface FileHandler<T> {
+		public T handle(File file) throws IOException;
+	}
+
+	private static class Entry {
+		private final String version;
+		private final File file;
+		private final long bytes;
+		//	Guarded by the mirror
+		private int readers = 0;
+		private boolean removed = false;
+
+		private Entry(String version, File file) {
+			this.version = version;
+			this.file = file;
+			this.bytes = file.length();
+		}
+	}
+
+	private final RepositorySource source;
+	private final File directory;
+	private final long maxBytes;
+
+	private long usedBytes = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final ConcurrentMap<String, Object> downloads = new ConcurrentHashMap<String, Object>();
+	private final AtomicLong downloadCount = new AtomicLong(0);
+
+	public static RepositoryMirror getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * @param directory where the mirrored files are kept, files left in it are deleted
+	 * @param maxBytes size of the mirrored files
+	 */
+	public RepositoryMirror(RepositorySource source, File directory, long maxBytes) {
+		this.source = source;
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		clearDirectory();
+	}
+
+	private static RepositoryMirror createConfiguredInstance() {
+		String directory = null;
+		int megaBytes = DEFAULT_SIZE_MB;
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		if (application != null) {
+			IWMainApplicationSettings settings = application.getSettings();
+			directory = settings.getProperty(PROPERTY_DIRECTORY);
+			String value = settings.getProperty(PROPERTY_SIZE, String.valueOf(DEFAULT_SIZE_MB));
+			try {
+				megaBytes = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Invalid value of " + PROPERTY_SIZE + ": " + value + ", using " + DEFAULT_SIZE_MB);
+			}
+		}
+		File mirrorDirectory = directory == null || directory.length() == 0 ?
+				new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME) :
+				new File(directory);
+		return new RepositoryMirror(new SlideRepositorySource(), mirrorDirectory, megaBytes * 1024L * 1024L);
+	}
+
+	/**
+	 * Passes the local copy of the current version of the repository file to the handler
+	 * @return result of the handler
+	 * @throws FileNotFoundException if the file does not exist in the repository
+	 */
+	public <T> T read(String path, FileHandler<T> handler) throws IOException {
+		Entry entry = acquire(path);
+		try {
+			return handler.handle(entry.file);
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * @return stream reading the local copy of the current version of the repository file, the file is kept until the stream is closed
+	 * @throws FileNotFoundException if the file does not exist in the repository
+	 */
+	public InputStream getInputStream(String path) throws IOException {
+		final Entry entry = acquire(path);
+		InputStream input = null;
+		try {
+			input = new FileInputStream(entry.file);
+		} finally {
+			if (input == null) {
+				release(entry);
+			}
+		}
+		return new FilterInputStream(input) {
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!this.closed) {
+						this.closed = true;
+						release(entry);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Removes the local copy of the file
+	 */
+	public void invalidate(String path) {
+		Entry entry = null;
+		synchronized (this) {
+			entry = this.entries.remove(path);
+			if (entry != null) {
+				this.usedBytes -= entry.bytes;
+				if (!remove(entry)) {
+					entry = null;
+				}
+			}
+		}
+		if (entry != null) {
+			entry.file.delete();
+		}
+	}
+
+	/**
+	 * @return entry of the current version of the file, kept until it is released
+	 */
+	private Entry acquire(String path) throws IOException {
+		String version = this.source.getVersion(path);
+		if (version == null) {
+			throw new FileNotFoundException(path);
+		}
+
+		Entry entry = acquireMirrored(path, version);
+		if (entry != null) {
+			return entry;
+		}
+
+		//	Only one download of a file at a time, the others wait for it
+		Object lock = new Object();
+		Object running = this.downloads.putIfAbsent(path, lock);
+		if (running != null) {
+			lock = running;
+		}
+		synchronized (lock) {
+			try {
+				entry = acquireMirrored(path, version);
+				if (entry == null) {
+					entry = download(path, version);
+				}
+				return entry;
+			} finally {
+				this.downloads.remove(path, lock);
+			}
+		}
+	}
+
+	private void release(Entry entry) {
+		synchronized (this) {
+			entry.readers--;
+			if (!entry.removed || entry.readers > 0) {
+				return;
+			}
+		}
+		entry.file.delete();
+	}
+
+	/**
+	 * Marks the entry removed from the mirror, must be called while holding the lock of the mirror
+	 * @return <code>true</code> if the file of the entry may be deleted now, otherwise its last reader deletes it
+	 */
+	private boolean remove(Entry entry) {
+		entry.removed = true;
+		return entry.readers == 0;
+	}
+
+	private Entry acquireMirrored(String path, String version) {
+		Entry entry = null;
+		synchronized (this) {
+			entry = this.entries.get(path);
+			if (entry == null) {
+				return null;
+			}
+			if (version.equals(entry.version) && entry.file.isFile()) {
+				entry.readers++;
+				return entry;
+			}
+			this.entries.remove(path);
+			this.usedBytes -= entry.bytes;
+			if (!remove(entry)) {
+				return null;
+			}
+		}
+		entry.file.delete();
+		return null;
+	}
+
+	private Entry download(String path, String version) throws IOException {
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Unable to create directory ".concat(this.directory.getAbsolutePath()));
+		}
+
+		//	Every download gets its own file, so a reader of a previous download is not disturbed
+		String name = getFileName(path.concat(version)).concat("-").concat(String.valueOf(this.downloadCount.incrementAndGet()));
+		File temporary = new File(this.directory, name.concat(TEMPORARY_SUFFIX));
+		File file = new File(this.directory, name.concat(FILE_SUFFIX));
+
+		InputStream input = null;
+		OutputStream output = null;
+		try {
+			input = this.source.getInputStream(path);
+			output = new FileOutputStream(temporary);
+			byte[] buffer = new byte[8192];
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				output.write(buffer, 0, read);
+			}
+			output.close();
+			output = null;
+			if (!temporary.renameTo(file)) {
+				file.delete();
+				if (!temporary.renameTo(file)) {
+					throw new IOException("Unable to store ".concat(file.getAbsolutePath()));
+				}
+			}
+		} finally {
+			IOUtil.close(input);
+			IOUtil.close(output);
+			temporary.delete();
+		}
+
+		Entry entry = new Entry(version, file);
+		entry.readers = 1;
+		put(path, entry);
+		return entry;
+	}
+
+	private void put(String path, Entry entry) {
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized (this) {
+			Entry previous = this.entries.put(path, entry);
+			if (previous != null) {
+				this.usedBytes -= previous.bytes;
+				if (remove(previous)) {
+					evicted.add(previous);
+				}
+			}
+			this.usedBytes += entry.bytes;
+
+			for (Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator(); iterator.hasNext() && this.usedBytes > this.maxBytes;) {
+				Map.Entry<String, Entry> eldest = iterator.next();
+				if (eldest.getValue() == entry) {
+					continue;
+				}
+				iterator.remove();
+				this.usedBytes -= eldest.getValue().bytes;
+				if (remove(eldest.getValue())) {
+					evicted.add(eldest.getValue());
+				}
+			}
+		}
+		for (Entry evictedEntry: evicted) {
+			evictedEntry.file.delete();
+		}
+	}
+
+	private void clearDirectory() {
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.endsWith(FILE_SUFFIX) || name.endsWith(TEMPORARY_SUFFIX)) {
+				files[i].delete();
+			}
+		}
+	}
+
+	private static String getFileName(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuffer name = new StringBuffer(digest.length * 2);
+			for (int i = 0; i < digest.length; i++) {
+				name.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.idega.graphics.image.business;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Repository the originals mirrored by {@link RepositoryMirror} are read from
+ */
+public interface RepositorySource {
+
+	/**
+	 * @return a string that changes whenever the file changes, e.g. its ETag, or <code>null</code> if the file does not exist
+	 */
+	public String getVersion(String path) throws IOException;
+
+	/**
+	 * @return content of the file, the caller closes the stream
+	 */
+	public InputStream getInputStream(String path) throws IOException;
+}
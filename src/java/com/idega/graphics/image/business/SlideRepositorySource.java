@@ -0,0 +1,75 @@
+package com.idega.graphics.image.business;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.webdav.lib.WebdavResource;
+
+import com.idega.business.IBOLookup;
+import com.idega.business.IBOLookupException;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.slide.business.IWSlideService;
+
+/**
+ * Reads files from Slide as root, the version of a file is its ETag or, if Slide has none, its
+ * modification time and length
+ */
+public class SlideRepositorySource implements RepositorySource {
+
+	private volatile IWSlideService service = null;
+
+	public String getVersion(String path) throws IOException {
+		WebdavResource resource = getSlideService().getWebdavResourceAuthenticatedAsRoot(path);
+		try {
+			if (!resource.exists()) {
+				return null;
+			}
+			String eTag = resource.getGetEtag();
+			if (eTag != null && eTag.length() > 0 && !eTag.startsWith("W/")) {
+				return "etag:".concat(eTag);
+			}
+			return new StringBuffer("modified:").append(resource.getGetLastModified()).append(":").append(resource.getGetContentLength())
+					.toString();
+		} finally {
+			resource.close();
+		}
+	}
+
+	public InputStream getInputStream(String path) throws IOException {
+		final WebdavResource resource = getSlideService().getWebdavResourceAuthenticatedAsRoot(path);
+		InputStream input = null;
+		try {
+			input = resource.getMethodData();
+		} finally {
+			if (input == null) {
+				resource.close();
+			}
+		}
+		return new FilterInputStream(input) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					resource.close();
+				}
+			}
+		};
+	}
+
+	private IWSlideService getSlideService() throws IOException {
+		IWSlideService service = this.service;
+		if (service == null) {
+			try {
+				service = IBOLookup.getServiceInstance(IWMainApplication.getDefaultIWApplicationContext(), IWSlideService.class);
+			} catch (IBOLookupException e) {
+				IOException exception = new IOException("Slide service is not available");
+				exception.initCause(e);
+				throw exception;
+			}
+			this.service = service;
+		}
+		return service;
+	}
+}
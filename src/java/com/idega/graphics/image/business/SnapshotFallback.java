@@ -0,0 +1,226 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.idega.graphics.util.DaemonThreadFactory;
+import com.idega.graphics.util.GraphicsConstants;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+
+/**
+ * <p>
+ * Renders web pages with a fallback to a {@link SnapshotProvider} when rendering fails. By default the
+ * provider is the external snapshot service, called with strict timeouts and behind a
+ * {@link CircuitBreakerSnapshotProvider}, so an outage of the service does not hold up renders.
+ * </p>
+ * <p>
+ * In hedged mode ({@link #PROPERTY_HEDGE_DELAY} greater than zero) the page is rendered on a worker and
+ * the provider is also called when the render takes longer than the delay; the first image that
+ * arrives is used. A render that loses keeps running on its worker until it finishes.
+ * </p>
+ */
+public class SnapshotFallback {
+
+	private static final Logger LOGGER = Logger.getLogger(SnapshotFallback.class.getName());
+
+	public static final String PROPERTY_PROVIDER = "graphics.snapshot_provider";
+	public static final String PROPERTY_SERVICE_URL = "graphics.snapshot_service_url";
+	public static final String PROPERTY_CONNECT_TIMEOUT = "graphics.snapshot_connect_timeout_ms";
+	public static final String PROPERTY_READ_TIMEOUT = "graphics.snapshot_read_timeout_ms";
+	public static final String PROPERTY_FAILURE_THRESHOLD = "graphics.snapshot_failure_threshold";
+	public static final String PROPERTY_OPEN_TIME = "graphics.snapshot_circuit_open_ms";
+	public static final String PROPERTY_HEDGE_DELAY = "graphics.snapshot_hedge_delay_ms";
+
+	public static final String DEFAULT_SERVICE_URL = "http://webdesignbook.net/snapper.php?url=";
+	private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+	private static final int DEFAULT_READ_TIMEOUT = 10000;
+	private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	private static final int DEFAULT_OPEN_TIME = 60000;
+
+	private static class Holder {
+		private static final SnapshotFallback INSTANCE = createConfiguredInstance();
+	}
+
+	private final SnapshotProvider provider;
+	private final long hedgeDelay;
+	private final ExecutorService executor;
+
+	public static SnapshotFallback getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * @param provider where snapshots come from when rendering fails
+	 * @param hedgeDelay milliseconds after which the provider is called while the render is still running, 0 to wait for the render
+	 */
+	public SnapshotFallback(SnapshotProvider provider, long hedgeDelay) {
+		this.provider = provider;
+		this.hedgeDelay = hedgeDelay;
+		if (hedgeDelay > 0) {
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+			this.executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new DaemonThreadFactory("SnapshotHedge"));
+		}
+		else {
+			this.executor = null;
+		}
+	}
+
+	private static SnapshotFallback createConfiguredInstance() {
+		IWMainApplication application = IWMainApplication.getDefaultIWMainApplication();
+		IWMainApplicationSettings settings = application == null ? null : application.getSettings();
+
+		SnapshotProvider provider = null;
+		String providerClass = getProperty(settings, PROPERTY_PROVIDER, null);
+		if (providerClass != null && providerClass.length() > 0) {
+			try {
+				provider = (SnapshotProvider) Class.forName(providerClass).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Unable to create snapshot provider ".concat(providerClass), e);
+			}
+		}
+		if (provider == null) {
+			provider = new HttpSnapshotProvider(getProperty(settings, PROPERTY_SERVICE_URL, DEFAULT_SERVICE_URL),
+					getIntProperty(settings, PROPERTY_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT),
+					getIntProperty(settings, PROPERTY_READ_TIMEOUT, DEFAULT_READ_TIMEOUT));
+		}
+		provider = new CircuitBreakerSnapshotProvider(provider, getIntProperty(settings, PROPERTY_FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD),
+				getIntProperty(settings, PROPERTY_OPEN_TIME, DEFAULT_OPEN_TIME));
+
+		return new SnapshotFallback(provider, getIntProperty(settings, PROPERTY_HEDGE_DELAY, 0));
+	}
+
+	private static String getProperty(IWMainApplicationSettings settings, String name, String defaultValue) {
+		return settings == null ? defaultValue : settings.getProperty(name, defaultValue);
+	}
+
+	private static int getIntProperty(IWMainApplicationSettings settings, String name, int defaultValue) {
+		String value = getProperty(settings, name, String.valueOf(defaultValue));
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid value of " + name + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Renders the page, getting it from the snapshot provider if the renderer returns <code>null</code> (or, in hedged
+	 * mode, is too slow)
+	 * @return the image or <code>null</code> if neither the renderer nor the provider could make it
+	 */
+	public GeneratedImage getImage(Callable<GeneratedImage> renderer, String url, int width, int height) {
+		if (this.executor == null) {
+			GeneratedImage image = render(renderer, url);
+			return image == null ? getSnapshot(url, width, height) : image;
+		}
+		return getHedgedImage(renderer, url, width, height);
+	}
+
+	private GeneratedImage getHedgedImage(Callable<GeneratedImage> renderer, final String url, final int width, final int height) {
+		CompletionService<GeneratedImage> completion = new ExecutorCompletionService<GeneratedImage>(this.executor);
+		List<Future<GeneratedImage>> tasks = new ArrayList<Future<GeneratedImage>>(2);
+		try {
+			tasks.add(completion.submit(renderer));
+		} catch (RejectedExecutionException e) {
+			//	All workers are busy, rendering here without hedging
+			GeneratedImage image = render(renderer, url);
+			return image == null ? getSnapshot(url, width, height) : image;
+		}
+
+		int running = 1;
+		boolean snapshotStarted = false;
+		try {
+			Future<GeneratedImage> done = completion.poll(this.hedgeDelay, TimeUnit.MILLISECONDS);
+			while (true) {
+				if (done != null) {
+					running--;
+					GeneratedImage image = getResult(done, url);
+					if (image != null) {
+						return image;
+					}
+				}
+				if (!snapshotStarted) {
+					snapshotStarted = true;
+					try {
+						tasks.add(completion.submit(new Callable<GeneratedImage>() {
+							public GeneratedImage call() {
+								return getSnapshot(url, width, height);
+							}
+						}));
+						running++;
+					} catch (RejectedExecutionException e) {
+						GeneratedImage image = getSnapshot(url, width, height);
+						if (image != null) {
+							return image;
+						}
+					}
+				}
+				if (running == 0) {
+					return null;
+				}
+				done = completion.take();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			//	Only the snapshot is stopped, a render may not be interrupted in the middle
+			for (int i = 1; i < tasks.size(); i++) {
+				tasks.get(i).cancel(true);
+			}
+		}
+	}
+
+	private GeneratedImage getResult(Future<GeneratedImage> task, String url) throws InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			LOGGER.log(Level.WARNING, "Error rendering ".concat(url), e.getCause());
+			return null;
+		}
+	}
+
+	private GeneratedImage render(Callable<GeneratedImage> renderer, String url) {
+		try {
+			return renderer.call();
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error rendering ".concat(url), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the page from the snapshot provider only, without rendering it
+	 * @return image from the snapshot provider or <code>null</code> if it failed
+	 */
+	public GeneratedImage getSnapshot(String url, int width, int height) {
+		LOGGER.info(new StringBuffer("Trying with snapshot provider ").append(this.provider.getName()).append(": ").append(url).toString());
+		long start = System.currentTimeMillis();
+		BufferedImage image = null;
+		try {
+			image = this.provider.getSnapshot(url, width, height);
+		} catch (IOException e) {
+			LOGGER.warning(new StringBuffer("Unable to get snapshot of ").append(url).append(": ").append(e.getMessage()).toString());
+			return null;
+		}
+		long end = System.currentTimeMillis();
+		LOGGER.info(new StringBuffer("Snapshot provider: success in ").append(end - start).append(" ms: ").append(url).toString());
+		return new GeneratedImage(image, GraphicsConstants.JPG_FILE_NAME_EXTENSION, GeneratedImage.Source.EXTERNAL_SERVICE, end - start, 0);
+	}
+}
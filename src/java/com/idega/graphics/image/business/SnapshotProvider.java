@@ -0,0 +1,21 @@
+package com.idega.graphics.image.business;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Makes snapshots of web pages when they can not be rendered locally, used by {@link SnapshotFallback}
+ */
+public interface SnapshotProvider {
+
+	/**
+	 * @return snapshot of the page, never <code>null</code>
+	 * @throws IOException if the snapshot can not be made, implementations should not block for long
+	 */
+	public BufferedImage getSnapshot(String url, int width, int height) throws IOException;
+
+	/**
+	 * @return name of the provider for logging
+	 */
+	public String getName();
+}
@@ -1,5 +1,7 @@
 package com.idega.graphics.image.business.impl;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
 import java.io.ByteArrayInputStream;
@@ -17,6 +19,9 @@ import org.imgscalr.Scalr.Mode;
 
 import com.idega.core.business.DefaultSpringBean;
 import com.idega.graphics.image.business.ImageResizer;
+import com.idega.graphics.image.business.RepositoryMirror;
+import com.idega.graphics.image.format.ImageFormat;
+import com.idega.graphics.image.format.ImageFormatRegistry;
 import com.idega.idegaweb.IWMainApplication;
 import com.idega.idegaweb.IWMainApplicationSettings;
 import com.idega.util.ArrayUtil;
@@ -67,6 +72,17 @@ public class ImageResizerImpl extends DefaultSpringBean implements ImageResizer
 		return getStream(getScaledImage(-1, -1, newSize, streamToImage, imageType, newSize));
 	}
 
+	@Override
+	public InputStream getScaledRepositoryImage(int newWidth, int newHeight, String path, String imageType) throws IOException {
+		if (newWidth < 0 || newHeight < 0 || StringUtil.isEmpty(path) || StringUtil.isEmpty(imageType)) {
+			getLogger().warning("Invalid parameters!");
+			return null;
+		}
+
+		//	The stream is closed when scaled
+		return getStream(getScaledImage(newWidth, newHeight, -1, RepositoryMirror.getInstance().getInputStream(path), imageType, null));
+	}
+
 	private InputStream getStream(byte[] bytes) {
 		if (bytes == null || bytes.length <= 0) {
 			return null;
@@ -75,6 +91,28 @@ public class ImageResizerImpl extends DefaultSpringBean implements ImageResizer
 		return new ByteArrayInputStream(bytes);
 	}
 
+	/**
+	 * @param imageType file extension, format name or mime type
+	 */
+	private ImageFormat getFormat(String imageType) {
+		ImageFormatRegistry formats = ImageFormatRegistry.getInstance();
+		ImageFormat format = formats.getFormatForExtension(imageType);
+		return format == null ? formats.getFormatForMimeType(imageType) : format;
+	}
+
+	private BufferedImage getImageWithoutAlpha(BufferedImage image) {
+		BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = converted.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, image.getWidth(), image.getHeight());
+			g.drawImage(image, 0, 0, null);
+		} finally {
+			g.dispose();
+		}
+		return converted;
+	}
+
 	private byte[] getScaledImage(
 			int newWidth,
 			int newHeight,
@@ -135,8 +173,13 @@ public class ImageResizerImpl extends DefaultSpringBean implements ImageResizer
 				scaled = image;
 			}
 
+			ImageFormat format = getFormat(imageType);
+			if (format != null && !format.supportsAlpha() && scaled.getColorModel().hasAlpha()) {
+				scaled = getImageWithoutAlpha(scaled);
+			}
+
 			output = new ByteArrayOutputStream();
-			ImageIO.write(scaled, imageType, output);
+			ImageIO.write(scaled, format == null ? imageType : format.getName(), output);
 			return output.toByteArray();
 		} finally {
 			IOUtil.close(streamToImage);
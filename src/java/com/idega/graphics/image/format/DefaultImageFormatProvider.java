@@ -0,0 +1,33 @@
+package com.idega.graphics.image.format;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.idega.graphics.image.format.ImageFormat.Capability;
+
+/**
+ * <p>
+ * The formats the graphics bundle has always supported. Bitmaps are converted to JPEG when encoded,
+ * all other formats are kept.
+ * </p>
+ */
+public class DefaultImageFormatProvider implements ImageFormatProvider {
+
+	public static final String GIF = "gif";
+	public static final String PNM = "pnm";
+	public static final String PNG = "png";
+	public static final String TIFF = "tiff";
+	public static final String BMP = "bmp";
+	public static final String JPEG = "jpeg";
+
+	public List<ImageFormat> getImageFormats() {
+		List<ImageFormat> formats = new ArrayList<ImageFormat>();
+		formats.add(new ImageFormat(GIF, "gif", GIF, new String[] {"image/gif"}, Capability.ALPHA, Capability.ANIMATION));
+		formats.add(new ImageFormat(PNG, "png", PNG, new String[] {"image/png", "image/x-png"}, Capability.ALPHA));
+		formats.add(new ImageFormat(JPEG, "jpg", JPEG, new String[] {"image/jpeg", "image/pjpeg", "image/jpg", "image/jpe"}, Capability.LOSSY));
+		formats.add(new ImageFormat(TIFF, "tif", TIFF, new String[] {"image/tiff"}, Capability.ALPHA, Capability.MULTI_PAGE));
+		formats.add(new ImageFormat(BMP, "bmp", JPEG, new String[] {"image/bmp", "image/x-ms-bmp", "image/x-bmp"}));
+		formats.add(new ImageFormat(PNM, "pnm", PNM, null));
+		return formats;
+	}
+}
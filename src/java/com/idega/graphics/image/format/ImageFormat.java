@@ -0,0 +1,103 @@
+package com.idega.graphics.image.format;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * Immutable description of an image format known to the graphics bundle: the mime types that are
+ * mapped to it, the format it is converted to when images are encoded, its file extension and
+ * what the format is capable of.
+ * </p>
+ * 
+ * @see ImageFormatRegistry
+ */
+public final class ImageFormat {
+
+	public enum Capability {
+		ALPHA, ANIMATION, MULTI_PAGE, LOSSY
+	}
+
+	private final String name;
+	private final String extension;
+	private final String resultFormatName;
+	private final List<String> mimeTypes;
+	private final Set<Capability> capabilities;
+
+	/**
+	 * @param name internal format name, e.g. "jpeg"
+	 * @param extension file extension without dot, e.g. "jpg"
+	 * @param resultFormatName name of the format images of this format are converted to when encoded
+	 * @param mimeTypes mime types of this format, the first one is the preferred one
+	 * @param capabilities what the format supports
+	 */
+	public ImageFormat(String name, String extension, String resultFormatName, String[] mimeTypes, Capability... capabilities) {
+		if (name == null || extension == null || resultFormatName == null) {
+			throw new IllegalArgumentException("Name, extension and result format must be provided");
+		}
+		this.name = name;
+		this.extension = extension;
+		this.resultFormatName = resultFormatName;
+		this.mimeTypes = mimeTypes == null ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(mimeTypes.clone()));
+		Set<Capability> set = EnumSet.noneOf(Capability.class);
+		if (capabilities != null) {
+			set.addAll(Arrays.asList(capabilities));
+		}
+		this.capabilities = Collections.unmodifiableSet(set);
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getExtension() {
+		return this.extension;
+	}
+
+	public String getResultFormatName() {
+		return this.resultFormatName;
+	}
+
+	public boolean isConvertedWhenEncoded() {
+		return !this.name.equals(this.resultFormatName);
+	}
+
+	/**
+	 * @return the preferred mime type or <code>null</code> if the format has none
+	 */
+	public String getMimeType() {
+		return this.mimeTypes.isEmpty() ? null : this.mimeTypes.get(0);
+	}
+
+	public List<String> getMimeTypes() {
+		return this.mimeTypes;
+	}
+
+	public Set<Capability> getCapabilities() {
+		return this.capabilities;
+	}
+
+	public boolean supportsAlpha() {
+		return this.capabilities.contains(Capability.ALPHA);
+	}
+
+	public boolean supportsAnimation() {
+		return this.capabilities.contains(Capability.ANIMATION);
+	}
+
+	public boolean supportsMultiplePages() {
+		return this.capabilities.contains(Capability.MULTI_PAGE);
+	}
+
+	public boolean isLossy() {
+		return this.capabilities.contains(Capability.LOSSY);
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+}
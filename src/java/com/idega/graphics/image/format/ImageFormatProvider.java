@@ -0,0 +1,18 @@
+package com.idega.graphics.image.format;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Service provider interface for adding image formats to the {@link ImageFormatRegistry}.
+ * Implementations are found with {@link java.util.ServiceLoader}, so a bundle adds formats by
+ * listing its provider class in
+ * <code>META-INF/services/com.idega.graphics.image.format.ImageFormatProvider</code>.
+ * A format provided this way replaces a default format with the same name.
+ * </p>
+ */
+public interface ImageFormatProvider {
+
+	public List<ImageFormat> getImageFormats();
+
+}
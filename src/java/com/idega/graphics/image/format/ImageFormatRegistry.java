@@ -0,0 +1,168 @@
+package com.idega.graphics.image.format;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.media.jai.codec.ImageCodec;
+
+/**
+ * <p>
+ * Registry of the image formats used by the image encoder, resizer and generator. It is built once
+ * per JVM from the {@link DefaultImageFormatProvider} and every {@link ImageFormatProvider} found on
+ * the class path and can not be changed after that, so lookups need no locking.
+ * </p>
+ */
+public final class ImageFormatRegistry {
+
+	private static final Logger LOGGER = Logger.getLogger(ImageFormatRegistry.class.getName());
+
+	private static class Holder {
+		private static final ImageFormatRegistry INSTANCE = new ImageFormatRegistry();
+	}
+
+	private final Map<String, ImageFormat> formatsByName;
+	private final Map<String, ImageFormat> formatsByMimeType;
+	private final Map<String, ImageFormat> formatsByExtension;
+	private final Map<String, String> jaiCodecNames;
+
+	public static ImageFormatRegistry getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	private ImageFormatRegistry() {
+		Map<String, ImageFormat> byName = new LinkedHashMap<String, ImageFormat>();
+		addFormats(byName, new DefaultImageFormatProvider());
+		try {
+			Iterator<ImageFormatProvider> providers = ServiceLoader.load(ImageFormatProvider.class).iterator();
+			while (providers.hasNext()) {
+				addFormats(byName, providers.next());
+			}
+		} catch (ServiceConfigurationError e) {
+			LOGGER.log(Level.WARNING, "Error loading image format providers", e);
+		}
+
+		Map<String, ImageFormat> byMimeType = new HashMap<String, ImageFormat>();
+		Map<String, ImageFormat> byExtension = new HashMap<String, ImageFormat>();
+		for (ImageFormat format : byName.values()) {
+			for (String mimeType : format.getMimeTypes()) {
+				byMimeType.put(getKey(mimeType), format);
+			}
+			byExtension.put(getKey(format.getExtension()), format);
+			if (!byExtension.containsKey(getKey(format.getName()))) {
+				byExtension.put(getKey(format.getName()), format);
+			}
+		}
+
+		this.formatsByName = Collections.unmodifiableMap(byName);
+		this.formatsByMimeType = Collections.unmodifiableMap(byMimeType);
+		this.formatsByExtension = Collections.unmodifiableMap(byExtension);
+		this.jaiCodecNames = Collections.unmodifiableMap(getJaiCodecNames(byName.keySet()));
+	}
+
+	private void addFormats(Map<String, ImageFormat> formats, ImageFormatProvider provider) {
+		List<ImageFormat> provided = provider.getImageFormats();
+		if (provided == null) {
+			return;
+		}
+		for (ImageFormat format : provided) {
+			formats.put(getKey(format.getName()), format);
+		}
+	}
+
+	/**
+	 * Finds the name of the JAI codec for every format: the first codec which name contains the format name.
+	 * Codecs JAI can only decode with, e.g. GIF, are left out, images are encoded with the codec found here.
+	 */
+	private Map<String, String> getJaiCodecNames(Collection<String> formatNames) {
+		Map<String, String> codecNames = new HashMap<String, String>();
+		try {
+			Enumeration<?> codecs = ImageCodec.getCodecs();
+			while (codecs.hasMoreElements()) {
+				String codecName = ((ImageCodec) codecs.nextElement()).getFormatName();
+				if (!canEncode(codecName)) {
+					continue;
+				}
+				for (String formatName : formatNames) {
+					if (!codecNames.containsKey(formatName) && codecName.indexOf(formatName) > -1) {
+						codecNames.put(formatName, codecName);
+					}
+				}
+			}
+		} catch (LinkageError e) {
+			LOGGER.log(Level.WARNING, "JAI codecs are not available", e);
+		}
+		return codecNames;
+	}
+
+	private boolean canEncode(String codecName) {
+		try {
+			return ImageCodec.createImageEncoder(codecName, new ByteArrayOutputStream(), null) != null;
+		} catch (RuntimeException e) {
+			return false;
+		} catch (LinkageError e) {
+			LOGGER.log(Level.FINE, "JAI codec " + codecName + " can not encode", e);
+			return false;
+		}
+	}
+
+	private static String getKey(String value) {
+		return value == null ? null : value.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * @return all known formats in the order they were registered
+	 */
+	public Collection<ImageFormat> getFormats() {
+		return this.formatsByName.values();
+	}
+
+	/**
+	 * @param name internal format name, e.g. "jpeg"
+	 * @return the format or <code>null</code> if unknown
+	 */
+	public ImageFormat getFormat(String name) {
+		return name == null ? null : this.formatsByName.get(getKey(name));
+	}
+
+	/**
+	 * @return the format or <code>null</code> if the mime type is unknown
+	 */
+	public ImageFormat getFormatForMimeType(String mimeType) {
+		return mimeType == null ? null : this.formatsByMimeType.get(getKey(mimeType));
+	}
+
+	/**
+	 * @param extension file extension or format name, e.g. "jpg" or "jpeg"
+	 * @return the format or <code>null</code> if the extension is unknown
+	 */
+	public ImageFormat getFormatForExtension(String extension) {
+		return extension == null ? null : this.formatsByExtension.get(getKey(extension));
+	}
+
+	/**
+	 * @return the format images of the provided mime type are converted to or <code>null</code> if the mime type is unknown
+	 */
+	public ImageFormat getResultFormatForMimeType(String mimeType) {
+		ImageFormat format = getFormatForMimeType(mimeType);
+		return format == null ? null : getFormat(format.getResultFormatName());
+	}
+
+	/**
+	 * @return the name of the JAI codec for the format or <code>null</code> if JAI has no codec for it
+	 */
+	public String getJaiCodecName(ImageFormat format) {
+		return format == null ? null : this.jaiCodecNames.get(getKey(format.getName()));
+	}
+}
@@ -0,0 +1,264 @@
+package com.idega.graphics.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Pipe between one producing and one consuming thread which passes data through a bounded ring of
+ * reusable buffers. The writer blocks when all buffers are filled and not read yet, so a slow reader
+ * slows the writer down instead of letting the data pile up in memory.
+ * </p>
+ * <p>
+ * If the writer fails it calls {@link #fail(Throwable)} and the reader gets the error as an
+ * {@link IOException} once it has read the data written before the failure. If the reader closes
+ * its stream before the end, the writer gets an {@link IOException} on its next write. With a write
+ * timeout the writer also gets an {@link IOException} when the reader has not freed a buffer for that
+ * long, so a reader that drops its stream without closing it does not hold the writing thread forever.
+ * </p>
+ */
+public class BufferRingPipe {
+
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final long POLL_INTERVAL = 100;
+
+	private static final Chunk END = new Chunk(null, 0);
+
+	private final BlockingQueue<byte[]> freeBuffers;
+	private final BlockingQueue<Chunk> filledBuffers;
+
+	private final OutputStream outputStream = new PipeOutputStream();
+	private final InputStream inputStream = new PipeInputStream();
+
+	private final long writeTimeout;
+
+	private volatile Throwable error = null;
+	private volatile boolean readerClosed = false;
+
+	public BufferRingPipe() {
+		this(DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+	}
+
+	public BufferRingPipe(int bufferCount, int bufferSize) {
+		this(bufferCount, bufferSize, 0);
+	}
+
+	/**
+	 * @param writeTimeout milliseconds the writer waits for a free buffer before it fails, 0 to wait as long as the reader is open
+	 */
+	public BufferRingPipe(int bufferCount, int bufferSize, long writeTimeout) {
+		if (bufferCount < 1 || bufferSize < 1) {
+			throw new IllegalArgumentException("At least one buffer of at least one byte is needed");
+		}
+		this.freeBuffers = new ArrayBlockingQueue<byte[]>(bufferCount);
+		for (int i = 0; i < bufferCount; i++) {
+			this.freeBuffers.add(new byte[bufferSize]);
+		}
+		this.filledBuffers = new LinkedBlockingQueue<Chunk>();
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * @return the stream the producing thread writes to, must be closed (or the pipe failed) when done
+	 */
+	public OutputStream getOutputStream() {
+		return this.outputStream;
+	}
+
+	/**
+	 * @return the stream the consuming thread reads from
+	 */
+	public InputStream getInputStream() {
+		return this.inputStream;
+	}
+
+	/**
+	 * Ends the pipe with an error, the reader gets it after reading the data written so far
+	 */
+	public void fail(Throwable cause) {
+		this.error = cause == null ? new IOException("Unknown error") : cause;
+		this.filledBuffers.add(END);
+	}
+
+	private static class Chunk {
+		private final byte[] buffer;
+		private final int length;
+
+		private Chunk(byte[] buffer, int length) {
+			this.buffer = buffer;
+			this.length = length;
+		}
+	}
+
+	private class PipeOutputStream extends OutputStream {
+
+		private byte[] current = null;
+		private int position = 0;
+		private boolean closed = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureBuffer();
+			this.current[this.position++] = (byte) b;
+			if (this.position == this.current.length) {
+				publish();
+			}
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				ensureBuffer();
+				int count = Math.min(length, this.current.length - this.position);
+				System.arraycopy(bytes, offset, this.current, this.position, count);
+				this.position += count;
+				offset += count;
+				length -= count;
+				if (this.position == this.current.length) {
+					publish();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (this.current != null && this.position > 0) {
+				publish();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			flush();
+			this.closed = true;
+			BufferRingPipe.this.filledBuffers.add(END);
+		}
+
+		private void ensureBuffer() throws IOException {
+			if (this.closed) {
+				throw new IOException("Pipe is closed for writing");
+			}
+			long waitStart = System.currentTimeMillis();
+			while (this.current == null) {
+				if (BufferRingPipe.this.readerClosed) {
+					throw new IOException("Pipe was closed by the reader");
+				}
+				long timeout = BufferRingPipe.this.writeTimeout;
+				if (timeout > 0 && System.currentTimeMillis() - waitStart > timeout) {
+					throw new IOException("Reader did not read from the pipe for " + timeout + " ms");
+				}
+				try {
+					this.current = BufferRingPipe.this.freeBuffers.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the reader");
+				}
+			}
+		}
+
+		private void publish() {
+			BufferRingPipe.this.filledBuffers.add(new Chunk(this.current, this.position));
+			this.current = null;
+			this.position = 0;
+		}
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		private Chunk current = null;
+		private int position = 0;
+		private boolean ended = false;
+
+		@Override
+		public int read() throws IOException {
+			if (!ensureData()) {
+				return -1;
+			}
+			return this.current.buffer[this.position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			if (!ensureData()) {
+				return -1;
+			}
+			int count = Math.min(length, this.current.length - this.position);
+			System.arraycopy(this.current.buffer, this.position, bytes, offset, count);
+			this.position += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return this.current == null ? 0 : this.current.length - this.position;
+		}
+
+		@Override
+		public void close() {
+			BufferRingPipe.this.readerClosed = true;
+			recycle();
+			Chunk chunk = null;
+			while ((chunk = BufferRingPipe.this.filledBuffers.poll()) != null) {
+				if (chunk.buffer != null) {
+					BufferRingPipe.this.freeBuffers.offer(chunk.buffer);
+				}
+			}
+		}
+
+		private boolean ensureData() throws IOException {
+			if (this.current != null && this.position < this.current.length) {
+				return true;
+			}
+			if (this.ended) {
+				return endOfData();
+			}
+			recycle();
+			Chunk chunk = null;
+			try {
+				chunk = BufferRingPipe.this.filledBuffers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the writer");
+			}
+			if (chunk == END) {
+				this.ended = true;
+				return endOfData();
+			}
+			this.current = chunk;
+			this.position = 0;
+			return true;
+		}
+
+		private boolean endOfData() throws IOException {
+			Throwable cause = BufferRingPipe.this.error;
+			if (cause != null) {
+				IOException exception = new IOException("Writing to pipe failed: " + cause.getMessage());
+				exception.initCause(cause);
+				throw exception;
+			}
+			return false;
+		}
+
+		private void recycle() {
+			if (this.current != null) {
+				BufferRingPipe.this.freeBuffers.offer(this.current.buffer);
+				this.current = null;
+				this.position = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.idega.graphics.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the background work of the graphics bundle, so that the
+ * worker pools never keep the application server from shutting down.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+	private final int priority;
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	public DaemonThreadFactory(String namePrefix) {
+		this(namePrefix, Thread.NORM_PRIORITY);
+	}
+
+	public DaemonThreadFactory(String namePrefix, int priority) {
+		this.namePrefix = namePrefix;
+		this.priority = priority;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, this.namePrefix + "-" + this.threadNumber.getAndIncrement());
+		thread.setDaemon(true);
+		thread.setPriority(this.priority);
+		return thread;
+	}
+}
@@ -0,0 +1,34 @@
+package com.idega.graphics.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * {@link ByteArrayOutputStream} which hands its data out without copying it, so the same buffer can
+ * be written and read again and again.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+	public ReusableByteArrayOutputStream() {
+		super();
+	}
+
+	public ReusableByteArrayOutputStream(int size) {
+		super(size);
+	}
+
+	/**
+	 * @return stream reading the data written so far, it is only valid until the next reset or write
+	 */
+	public synchronized InputStream toInputStream() {
+		return new ByteArrayInputStream(this.buf, 0, this.count);
+	}
+
+	/**
+	 * @return the size of the internal buffer
+	 */
+	public synchronized int getCapacity() {
+		return this.buf.length;
+	}
+}
@@ -0,0 +1,218 @@
+package com.idega.graphics.image.business;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the mirror against an in-process repository standing in for Slide
+ */
+public class RepositoryMirrorTest {
+
+	private File directory;
+	private MemoryRepository repository;
+
+	/**
+	 * Repository in memory, counts the downloads
+	 */
+	private static class MemoryRepository implements RepositorySource {
+
+		private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+		private final Map<String, String> versions = new ConcurrentHashMap<String, String>();
+		private final AtomicInteger downloads = new AtomicInteger(0);
+		private volatile long downloadTime = 0;
+
+		private void put(String path, String version, byte[] content) {
+			this.files.put(path, content);
+			this.versions.put(path, version);
+		}
+
+		public String getVersion(String path) {
+			return this.versions.get(path);
+		}
+
+		public InputStream getInputStream(String path) throws IOException {
+			this.downloads.incrementAndGet();
+			try {
+				Thread.sleep(this.downloadTime);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] content = this.files.get(path);
+			if (content == null) {
+				throw new FileNotFoundException(path);
+			}
+			return new ByteArrayInputStream(content);
+		}
+	}
+
+	@Before
+	public void createDirectory() throws IOException {
+		this.directory = File.createTempFile("mirror", "");
+		this.directory.delete();
+		this.repository = new MemoryRepository();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void downloadsOnlyChangedFiles() throws IOException {
+		RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 1024);
+		this.repository.put("/files/a.png", "1", new byte[] {1, 2, 3});
+
+		assertArrayEquals(new byte[] {1, 2, 3}, read(mirror, "/files/a.png"));
+		assertArrayEquals(new byte[] {1, 2, 3}, read(mirror, "/files/a.png"));
+		assertEquals(1, this.repository.downloads.get());
+
+		this.repository.put("/files/a.png", "2", new byte[] {4, 5});
+		assertArrayEquals(new byte[] {4, 5}, read(mirror, "/files/a.png"));
+		assertEquals(2, this.repository.downloads.get());
+		assertEquals(1, countMirroredFiles());
+	}
+
+	@Test
+	public void failsForMissingFile() throws IOException {
+		RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 1024);
+		try {
+			mirror.getInputStream("/files/missing.png");
+			fail("Missing file must fail");
+		} catch (FileNotFoundException e) {}
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedFiles() throws IOException {
+		RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 20);
+		this.repository.put("/a", "1", new byte[10]);
+		this.repository.put("/b", "1", new byte[10]);
+		this.repository.put("/c", "1", new byte[10]);
+
+		read(mirror, "/a");
+		read(mirror, "/b");
+		read(mirror, "/a");
+		read(mirror, "/c");
+		assertEquals(2, countMirroredFiles());
+		assertEquals(3, this.repository.downloads.get());
+
+		read(mirror, "/a");
+		assertEquals(3, this.repository.downloads.get());
+		read(mirror, "/b");
+		assertEquals(4, this.repository.downloads.get());
+	}
+
+	@Test
+	public void keepsEvictedFileWhileItIsRead() throws IOException {
+		RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 10);
+		this.repository.put("/a", "1", new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+		this.repository.put("/b", "1", new byte[10]);
+
+		InputStream input = mirror.getInputStream("/a");
+		assertEquals(1, input.read());
+		read(mirror, "/b");
+		mirror.invalidate("/a");
+		assertEquals(2, countMirroredFiles());
+
+		byte[] rest = new byte[9];
+		assertEquals(9, input.read(rest));
+		assertEquals(10, rest[8]);
+		input.close();
+		input.close();
+		assertEquals(1, countMirroredFiles());
+	}
+
+	@Test
+	public void keepsFileWhileHandlerRuns() throws IOException {
+		final RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 1024);
+		this.repository.put("/a", "1", new byte[] {1});
+
+		boolean existed = mirror.read("/a", new RepositoryMirror.FileHandler<Boolean>() {
+			public Boolean handle(File file) {
+				mirror.invalidate("/a");
+				return Boolean.valueOf(file.isFile());
+			}
+		}).booleanValue();
+		assertTrue(existed);
+		assertEquals(0, countMirroredFiles());
+	}
+
+	@Test
+	public void sharesConcurrentDownloads() throws Exception {
+		final RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 1024);
+		this.repository.put("/a", "1", new byte[] {1});
+		this.repository.downloadTime = 200;
+
+		final CountDownLatch done = new CountDownLatch(4);
+		final AtomicInteger failures = new AtomicInteger(0);
+		for (int i = 0; i < 4; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						read(mirror, "/a");
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(0, failures.get());
+		assertEquals(1, this.repository.downloads.get());
+	}
+
+	@Test
+	public void emptiesDirectoryOnStart() throws IOException {
+		RepositoryMirror mirror = new RepositoryMirror(this.repository, this.directory, 1024);
+		this.repository.put("/a", "1", new byte[] {1});
+		read(mirror, "/a");
+		assertEquals(1, countMirroredFiles());
+
+		new RepositoryMirror(this.repository, this.directory, 1024);
+		assertEquals(0, countMirroredFiles());
+	}
+
+	private static byte[] read(RepositoryMirror mirror, String path) throws IOException {
+		InputStream input = mirror.getInputStream(path);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[64];
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	private int countMirroredFiles() {
+		String[] names = this.directory.list();
+		return names == null ? 0 : names.length;
+	}
+}
@@ -0,0 +1,194 @@
+package com.idega.graphics.image.business;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the snapshot fallback against a stub snapshot service on the loopback interface
+ */
+public class SnapshotFallbackTest {
+
+	private static final String PAGE = "http://example.com/page.html";
+
+	private HttpServer server;
+	private String serviceUrl;
+	private final AtomicInteger requests = new AtomicInteger(0);
+	private volatile int status = 200;
+	private volatile long delay = 0;
+	private volatile String query = null;
+	private byte[] snapshot;
+
+	@Before
+	public void startService() throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB), "png", png);
+		this.snapshot = png.toByteArray();
+
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/snapper", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				SnapshotFallbackTest.this.requests.incrementAndGet();
+				SnapshotFallbackTest.this.query = exchange.getRequestURI().getRawQuery();
+				try {
+					Thread.sleep(SnapshotFallbackTest.this.delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				boolean ok = SnapshotFallbackTest.this.status == 200;
+				exchange.sendResponseHeaders(SnapshotFallbackTest.this.status, ok ? SnapshotFallbackTest.this.snapshot.length : -1);
+				if (ok) {
+					OutputStream body = exchange.getResponseBody();
+					body.write(SnapshotFallbackTest.this.snapshot);
+					body.close();
+				}
+				exchange.close();
+			}
+		});
+		this.server.start();
+		this.serviceUrl = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/snapper?url=";
+	}
+
+	@After
+	public void stopService() {
+		this.server.stop(0);
+	}
+
+	@Test
+	public void downloadsSnapshotOfRequestedSize() throws IOException {
+		BufferedImage image = new HttpSnapshotProvider(this.serviceUrl, 1000, 1000).getSnapshot(PAGE, 800, 600);
+		assertEquals(4, image.getWidth());
+		assertEquals("url=" + PAGE + "&w=800&h=600", this.query);
+	}
+
+	@Test
+	public void failsOnErrorStatus() {
+		this.status = 500;
+		try {
+			new HttpSnapshotProvider(this.serviceUrl, 1000, 1000).getSnapshot(PAGE, 800, 600);
+			fail("Error status must fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().indexOf("500") > -1);
+		}
+	}
+
+	@Test
+	public void failsWhenServiceIsTooSlow() {
+		this.delay = 2000;
+		long start = System.currentTimeMillis();
+		try {
+			new HttpSnapshotProvider(this.serviceUrl, 1000, 200).getSnapshot(PAGE, 800, 600);
+			fail("Read timeout must fail");
+		} catch (IOException e) {
+			assertTrue(System.currentTimeMillis() - start < 1500);
+		}
+	}
+
+	@Test
+	public void circuitOpensAfterFailuresInARow() throws IOException {
+		this.status = 503;
+		CircuitBreakerSnapshotProvider provider = new CircuitBreakerSnapshotProvider(new HttpSnapshotProvider(this.serviceUrl, 1000, 1000), 2,
+				60000);
+		for (int i = 0; i < 4; i++) {
+			try {
+				provider.getSnapshot(PAGE, 800, 600);
+				fail("Failing service must fail");
+			} catch (IOException e) {}
+		}
+		assertTrue(provider.isOpen());
+		assertEquals(2, this.requests.get());
+	}
+
+	@Test
+	public void circuitClosesAfterSuccessfulTrial() throws Exception {
+		this.status = 503;
+		CircuitBreakerSnapshotProvider provider = new CircuitBreakerSnapshotProvider(new HttpSnapshotProvider(this.serviceUrl, 1000, 1000), 1,
+				100);
+		try {
+			provider.getSnapshot(PAGE, 800, 600);
+			fail("Failing service must fail");
+		} catch (IOException e) {}
+		assertTrue(provider.isOpen());
+
+		this.status = 200;
+		Thread.sleep(150);
+		assertNotNull(provider.getSnapshot(PAGE, 800, 600));
+		assertFalse(provider.isOpen());
+	}
+
+	@Test
+	public void fallsBackToSnapshotWhenRenderingFails() {
+		SnapshotFallback fallback = new SnapshotFallback(new HttpSnapshotProvider(this.serviceUrl, 1000, 1000), 0);
+		GeneratedImage image = fallback.getImage(new Callable<GeneratedImage>() {
+			public GeneratedImage call() throws Exception {
+				throw new IOException("Render failed");
+			}
+		}, PAGE, 800, 600);
+		assertTrue(image.isExternalService());
+		assertEquals(1, this.requests.get());
+	}
+
+	@Test
+	public void renderedImageIsUsedWithoutCallingService() {
+		final GeneratedImage rendered = getRenderedImage();
+		SnapshotFallback fallback = new SnapshotFallback(new HttpSnapshotProvider(this.serviceUrl, 1000, 1000), 0);
+		assertSame(rendered, fallback.getImage(new Callable<GeneratedImage>() {
+			public GeneratedImage call() {
+				return rendered;
+			}
+		}, PAGE, 800, 600));
+		assertEquals(0, this.requests.get());
+	}
+
+	@Test
+	public void hedgedSnapshotWinsOverSlowRender() {
+		SnapshotFallback fallback = new SnapshotFallback(new HttpSnapshotProvider(this.serviceUrl, 1000, 1000), 50);
+		final GeneratedImage rendered = getRenderedImage();
+		long start = System.currentTimeMillis();
+		GeneratedImage image = fallback.getImage(new Callable<GeneratedImage>() {
+			public GeneratedImage call() throws InterruptedException {
+				Thread.sleep(2000);
+				return rendered;
+			}
+		}, PAGE, 800, 600);
+		assertTrue(image.isExternalService());
+		assertTrue(System.currentTimeMillis() - start < 1500);
+	}
+
+	@Test
+	public void noImageWhenRenderAndServiceFail() {
+		this.status = 500;
+		SnapshotFallback fallback = new SnapshotFallback(new HttpSnapshotProvider(this.serviceUrl, 1000, 1000), 0);
+		assertNull(fallback.getImage(new Callable<GeneratedImage>() {
+			public GeneratedImage call() {
+				return null;
+			}
+		}, PAGE, 800, 600));
+	}
+
+	private GeneratedImage getRenderedImage() {
+		return new GeneratedImage(new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB), "png", GeneratedImage.Source.RENDERER, 0, 0);
+	}
+}